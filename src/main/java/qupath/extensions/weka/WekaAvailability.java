@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Check whether Weka can be found on the classpath, caching the result.
+ * <p>
+ * Weka classes are only referenced by name here, so that this class can be loaded (and the check made)
+ * without Weka being available - and without delaying QuPath's startup.
+ */
+public class WekaAvailability {
+
+	final private static Logger logger = LoggerFactory.getLogger(WekaAvailability.class);
+
+	/**
+	 * Class used to test whether Weka is available.
+	 */
+	private static final String WEKA_PROBE_CLASS = "weka.core.Version";
+
+	/**
+	 * Classes that are needed by the classifier dialog, which can be loaded in the background to reduce the
+	 * delay when the dialog is first shown.
+	 */
+	private static final String[] WEKA_PRELOAD_CLASSES = {
+			"weka.core.Instances",
+			"weka.core.DenseInstance",
+			"weka.classifiers.AbstractClassifier",
+			"weka.classifiers.trees.RandomForest",
+			"weka.classifiers.trees.J48",
+			"weka.classifiers.rules.OneR",
+			"weka.classifiers.bayes.BayesNet",
+			"weka.classifiers.functions.SMO",
+			"weka.filters.unsupervised.attribute.Normalize",
+			"weka.filters.unsupervised.attribute.Standardize"
+	};
+
+	private static volatile Boolean isAvailable = null;
+
+	/**
+	 * Incremented whenever the cache is reset, so that a probe started before the reset cannot store a stale result.
+	 */
+	private static final AtomicInteger generation = new AtomicInteger();
+
+	/**
+	 * Returns true if Weka classes can be loaded.  The result is cached after the first call.
+	 *
+	 * @return
+	 */
+	public static boolean isWekaAvailable() {
+		Boolean available = isAvailable;
+		if (available == null) {
+			int probeGeneration = generation.get();
+			available = probe();
+			synchronized (WekaAvailability.class) {
+				if (probeGeneration == generation.get())
+					isAvailable = available;
+			}
+		}
+		return available;
+	}
+
+	/**
+	 * Reset the cached result, e.g. after a new JAR has been added to the classpath.
+	 */
+	public static void resetCache() {
+		synchronized (WekaAvailability.class) {
+			generation.incrementAndGet();
+			isAvailable = null;
+		}
+	}
+
+	/**
+	 * Check whether Weka is available in a background thread, preloading commonly-used classes if it is.
+	 * <p>
+	 * This only tests whether classes can be loaded; any JAR containing Weka should be added to the classpath beforehand.
+	 *
+	 * @param callback optional consumer to be notified of the result (called from the background thread)
+	 */
+	public static void probeInBackground(final Consumer<Boolean> callback) {
+		Thread thread = new Thread(() -> {
+			boolean available = isWekaAvailable();
+			if (available)
+				preloadClasses();
+			if (callback != null)
+				callback.accept(available);
+		}, "weka-probe");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static boolean probe() {
+		try {
+			Class.forName(WEKA_PROBE_CLASS, false, getClassLoader());
+			logger.debug("Weka found on classpath");
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			logger.debug("Weka not found on classpath");
+			return false;
+		}
+	}
+
+	private static void preloadClasses() {
+		long startTime = System.currentTimeMillis();
+		ClassLoader classLoader = getClassLoader();
+		for (String name : WEKA_PRELOAD_CLASSES) {
+			try {
+				Class.forName(name, true, classLoader);
+			} catch (ClassNotFoundException | LinkageError e) {
+				logger.debug("Unable to preload {}", name);
+			}
+		}
+		logger.debug("Weka classes preloaded in {} ms", System.currentTimeMillis() - startTime);
+	}
+
+	private static ClassLoader getClassLoader() {
+		return WekaAvailability.class.getClassLoader();
+	}
+
+}
@@ -0,0 +1,404 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.extensions.weka.WekaFeatureCache.FeatureSource;
+import qupath.extensions.weka.classifiers.WekaClassifier;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+
+/**
+ * Apply a single trained Weka classifier to the detections within many images.
+ * <p>
+ * Images are processed in parallel, and the detections within large images are also split into chunks
+ * that are classified in parallel.  One copy of the model is shared across all threads, and the number
+ * of hierarchies held in memory at any one time can be limited.
+ */
+public class WekaBatchClassifier {
+
+	final private static Logger logger = LoggerFactory.getLogger(WekaBatchClassifier.class);
+
+	/**
+	 * An image to be classified, which is able to provide (and optionally store) its object hierarchy.
+	 */
+	public static interface ImageEntry {
+
+		/**
+		 * Name used for logging.
+		 * 
+		 * @return
+		 */
+		public String getName();
+
+		/**
+		 * Read the object hierarchy for the image.
+		 * 
+		 * @return
+		 * @throws IOException
+		 */
+		public PathObjectHierarchy readHierarchy() throws IOException;
+
+		/**
+		 * Called after classification is complete, e.g. to write the hierarchy back to disk.
+		 * 
+		 * @param hierarchy
+		 * @throws IOException
+		 */
+		public void saveHierarchy(PathObjectHierarchy hierarchy) throws IOException;
+
+	}
+
+	/**
+	 * Snapshot of the progress of a batch classification.
+	 */
+	public static class BatchProgress {
+
+		private final int nImagesCompleted;
+		private final int nImagesTotal;
+		private final long nObjectsClassified;
+		private final long elapsedMillis;
+
+		BatchProgress(final int nImagesCompleted, final int nImagesTotal, final long nObjectsClassified, final long elapsedMillis) {
+			this.nImagesCompleted = nImagesCompleted;
+			this.nImagesTotal = nImagesTotal;
+			this.nObjectsClassified = nObjectsClassified;
+			this.elapsedMillis = elapsedMillis;
+		}
+
+		public int getImagesCompleted() {
+			return nImagesCompleted;
+		}
+
+		public int getImagesTotal() {
+			return nImagesTotal;
+		}
+
+		public long getObjectsClassified() {
+			return nObjectsClassified;
+		}
+
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		/**
+		 * Get the number of objects (cells) classified per second so far.
+		 * 
+		 * @return
+		 */
+		public double getObjectsPerSecond() {
+			return elapsedMillis == 0 ? Double.NaN : nObjectsClassified / (elapsedMillis / 1000.0);
+		}
+
+		/**
+		 * Get the estimated time remaining, based on the average time per image so far.
+		 * 
+		 * @return estimated milliseconds remaining, or -1 if no images have been completed
+		 */
+		public long getEstimatedMillisRemaining() {
+			if (nImagesCompleted == 0)
+				return -1;
+			return Math.round((double)elapsedMillis / nImagesCompleted * (nImagesTotal - nImagesCompleted));
+		}
+
+		@Override
+		public String toString() {
+			long eta = getEstimatedMillisRemaining();
+			return String.format("%d/%d images, %d objects, %.1f objects/s, ETA %s",
+					nImagesCompleted, nImagesTotal, nObjectsClassified, getObjectsPerSecond(),
+					eta < 0 ? "unknown" : String.format("%.1f s", eta / 1000.0));
+		}
+
+	}
+
+
+	private final WekaClassifier classifier;
+
+	private int nImageThreads = 2;
+	private int nThreads = Runtime.getRuntime().availableProcessors();
+	private int maxImagesInMemory = 2;
+	private int chunkSize = 10000;
+	private Consumer<BatchProgress> progressListener;
+	private WekaFeatureCache featureCache;
+
+
+	/**
+	 * Create a batch classifier using a trained classifier.
+	 * 
+	 * @param classifier
+	 */
+	public WekaBatchClassifier(final WekaClassifier classifier) {
+		if (classifier == null || !classifier.isValid())
+			throw new IllegalArgumentException("A trained classifier is required!");
+		this.classifier = classifier;
+	}
+
+	/**
+	 * Create a batch classifier using a classifier stored in a file.
+	 * 
+	 * @param fileClassifier
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public WekaBatchClassifier(final File fileClassifier) throws IOException, ClassNotFoundException {
+		this(WekaClassifierTools.loadClassifier(fileClassifier));
+	}
+
+	public WekaClassifier getClassifier() {
+		return classifier;
+	}
+
+	/**
+	 * Set the number of images to process in parallel.
+	 * 
+	 * @param nImageThreads
+	 * @return
+	 */
+	public WekaBatchClassifier setImageThreads(final int nImageThreads) {
+		this.nImageThreads = Math.max(1, nImageThreads);
+		return this;
+	}
+
+	/**
+	 * Set the number of threads used to classify chunks of detections (shared across all images).
+	 * 
+	 * @param nThreads
+	 * @return
+	 */
+	public WekaBatchClassifier setClassificationThreads(final int nThreads) {
+		this.nThreads = Math.max(1, nThreads);
+		return this;
+	}
+
+	/**
+	 * Set the maximum number of hierarchies that may be loaded at any one time.
+	 * 
+	 * @param maxImagesInMemory
+	 * @return
+	 */
+	public WekaBatchClassifier setMaxImagesInMemory(final int maxImagesInMemory) {
+		this.maxImagesInMemory = Math.max(1, maxImagesInMemory);
+		return this;
+	}
+
+	/**
+	 * Set the maximum number of detections to classify in a single task.  Images with more detections are split.
+	 * 
+	 * @param chunkSize
+	 * @return
+	 */
+	public WekaBatchClassifier setChunkSize(final int chunkSize) {
+		this.chunkSize = Math.max(1, chunkSize);
+		return this;
+	}
+
+	/**
+	 * Set an on-disk cache from which features should be read, if available.  
+	 * The name of each {@link ImageEntry} is used to identify its features in the cache, and so should be unique.
+	 * 
+	 * @param featureCache the cache, or null if features should always be read from each object's MeasurementList
+	 * @return
+	 */
+	public WekaBatchClassifier setFeatureCache(final WekaFeatureCache featureCache) {
+		this.featureCache = featureCache;
+		return this;
+	}
+
+	/**
+	 * Set a listener to be notified after each image has been completed.
+	 * 
+	 * @param listener
+	 * @return
+	 */
+	public WekaBatchClassifier setProgressListener(final Consumer<BatchProgress> listener) {
+		this.progressListener = listener;
+		return this;
+	}
+
+
+	/**
+	 * Classify all the detections in a collection of hierarchies that are already in memory.
+	 * 
+	 * @param hierarchies
+	 * @return the final progress
+	 * @throws Exception
+	 */
+	public BatchProgress classifyHierarchies(final Collection<PathObjectHierarchy> hierarchies) throws Exception {
+		List<ImageEntry> entries = new ArrayList<>();
+		int i = 0;
+		for (final PathObjectHierarchy hierarchy : hierarchies) {
+			final String name = "Image " + (++i);
+			entries.add(new ImageEntry() {
+				@Override
+				public String getName() {
+					return name;
+				}
+
+				@Override
+				public PathObjectHierarchy readHierarchy() {
+					return hierarchy;
+				}
+
+				@Override
+				public void saveHierarchy(PathObjectHierarchy hierarchy) {}
+			});
+		}
+		return classifyImages(entries);
+	}
+
+
+	/**
+	 * Classify all the detections within a collection of images.
+	 * <p>
+	 * If classification of any image fails, the error is logged and the remaining images are still processed.
+	 * 
+	 * @param images
+	 * @return the final progress
+	 * @throws InterruptedException
+	 */
+	public BatchProgress classifyImages(final Collection<? extends ImageEntry> images) throws InterruptedException {
+		final int nImages = images.size();
+		final long startTime = System.currentTimeMillis();
+		final AtomicInteger nCompleted = new AtomicInteger();
+		final AtomicLong nClassified = new AtomicLong();
+		final Semaphore semaphore = new Semaphore(maxImagesInMemory);
+
+		ExecutorService poolImages = Executors.newFixedThreadPool(Math.min(nImageThreads, Math.max(1, nImages)));
+		ExecutorService poolChunks = Executors.newFixedThreadPool(nThreads);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (final ImageEntry entry : images) {
+				futures.add(poolImages.submit(() -> {
+					try {
+						semaphore.acquire();
+						try {
+							long n = classifyImage(entry, poolChunks);
+							nClassified.addAndGet(n);
+						} finally {
+							semaphore.release();
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					} catch (Exception e) {
+						logger.error("Unable to classify " + entry.getName(), e);
+					}
+					BatchProgress progress = new BatchProgress(nCompleted.incrementAndGet(), nImages, nClassified.get(), System.currentTimeMillis() - startTime);
+					logger.info("{} complete ({})", entry.getName(), progress);
+					if (progressListener != null)
+						progressListener.accept(progress);
+				}));
+			}
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					logger.error("Batch classification error", e);
+				}
+			}
+		} finally {
+			poolImages.shutdownNow();
+			poolChunks.shutdownNow();
+		}
+		return new BatchProgress(nCompleted.get(), nImages, nClassified.get(), System.currentTimeMillis() - startTime);
+	}
+
+
+	private long classifyImage(final ImageEntry entry, final ExecutorService poolChunks) throws Exception {
+		PathObjectHierarchy hierarchy = entry.readHierarchy();
+		List<PathObject> detections = hierarchy.getObjects(null, PathDetectionObject.class);
+		FeatureSource features = null;
+		if (featureCache != null) {
+			try {
+				features = featureCache.getFeatures(entry.getName(), detections, classifier.getRequiredMeasurements());
+			} catch (IOException e) {
+				logger.warn("Unable to use feature cache for " + entry.getName(), e);
+			}
+		}
+		long n = classifyInParallel(classifier, detections, features, chunkSize, poolChunks);
+		hierarchy.fireObjectClassificationsChangedEvent(classifier, detections);
+		entry.saveHierarchy(hierarchy);
+		return n;
+	}
+
+
+	/**
+	 * Classify objects by splitting them into chunks, and classifying each chunk using a thread pool.
+	 * 
+	 * @param classifier
+	 * @param pathObjects
+	 * @param chunkSize
+	 * @param pool
+	 * @return the number of objects classified
+	 * @throws Exception
+	 */
+	public static long classifyInParallel(final WekaClassifier classifier, final List<PathObject> pathObjects, final int chunkSize, final ExecutorService pool) throws Exception {
+		return classifyInParallel(classifier, pathObjects, null, chunkSize, pool);
+	}
+
+	/**
+	 * Classify objects by splitting them into chunks, and classifying each chunk using a thread pool, 
+	 * optionally reading features from a {@link FeatureSource}.
+	 * 
+	 * @param classifier
+	 * @param pathObjects
+	 * @param features source of features (may be null)
+	 * @param chunkSize
+	 * @param pool
+	 * @return the number of objects classified
+	 * @throws Exception
+	 */
+	public static long classifyInParallel(final WekaClassifier classifier, final List<PathObject> pathObjects, final FeatureSource features, final int chunkSize, final ExecutorService pool) throws Exception {
+		if (pathObjects.size() <= chunkSize)
+			return classifier.classifyPathObjects(pathObjects, features);
+		List<Future<Integer>> futures = new ArrayList<>();
+		for (int i = 0; i < pathObjects.size(); i += chunkSize) {
+			final List<PathObject> chunk = pathObjects.subList(i, Math.min(i + chunkSize, pathObjects.size()));
+			futures.add(pool.submit(() -> classifier.classifyPathObjects(chunk, features)));
+		}
+		long n = 0;
+		for (Future<Integer> future : futures)
+			n += future.get();
+		return n;
+	}
+
+}
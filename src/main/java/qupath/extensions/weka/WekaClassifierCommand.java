@@ -26,7 +26,7 @@ package qupath.extensions.weka;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
-import java.util.Arrays;
+import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,16 +42,12 @@ import javafx.scene.layout.GridPane;
 import javafx.scene.layout.Priority;
 import javafx.stage.Stage;
 import qupath.extensions.weka.classifiers.WekaClassifier;
-import qupath.extensions.weka.classifiers.WekaClassifierBayesNet;
-import qupath.extensions.weka.classifiers.WekaClassifierJ48;
-import qupath.extensions.weka.classifiers.WekaClassifierOneR;
 import qupath.extensions.weka.classifiers.WekaClassifierRandomForests;
-import qupath.extensions.weka.classifiers.WekaClassifierSMO;
+import qupath.extensions.weka.classifiers.WekaClassifierRegistry;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.commands.interfaces.PathCommand;
 import qupath.lib.gui.helpers.DisplayHelpers;
 import qupath.lib.gui.panels.classify.ClassifierBuilderPanel;
-import qupath.lib.gui.prefs.PathPrefs;
 
 
 /**
@@ -66,7 +62,7 @@ public class WekaClassifierCommand implements PathCommand {
 
 	final private static Logger logger = LoggerFactory.getLogger(WekaClassifierCommand.class);
 
-	final private static StringProperty wekaPath = PathPrefs.createPersistentPreference("wekaPath", null);
+	final private static StringProperty wekaPath = WekaExtension.wekaPathProperty();
 	
 	
 	private QuPathGUI qupath;
@@ -76,17 +72,14 @@ public class WekaClassifierCommand implements PathCommand {
 	
 	public WekaClassifierCommand(final QuPathGUI qupath) {
 		this.qupath = qupath;
-		// Add Weka path
-		updateExtensionPath();
 		// Listen for changes to path property
+		// (the current path is added when the extension is installed)
 		wekaPath.addListener((v, o, n) -> updateExtensionPath());
 	}
 	
 	private void updateExtensionPath() {
-		String path = wekaPath.get();
-		if (path != null && new File(path).exists()) {
-			qupath.addExtensionJar(new File(path));
-		}
+		if (WekaExtension.addWekaJar(qupath))
+			WekaAvailability.resetCache();
 	}
 	
 	public Stage getDialog() {
@@ -97,8 +90,22 @@ public class WekaClassifierCommand implements PathCommand {
 		return panel;
 	}
 
+	/**
+	 * Create the classifiers to show in the dialog.  This should only be called if Weka is available.
+	 * 
+	 * @return
+	 */
+	private static List<WekaClassifier> createClassifiers() {
+		return WekaClassifierRegistry.createClassifiers();
+	}
+
 	@Override
 	public void run() {
+		// Any stored path to weka.jar was added when the extension was installed - so prompt for it if Weka still isn't available
+		if (dialog == null && !WekaAvailability.isWekaAvailable()) {
+			promptForWeka();
+			return;
+		}
 		try {
 			if (dialog == null) {
 				dialog = new Stage();
@@ -107,14 +114,13 @@ public class WekaClassifierCommand implements PathCommand {
 				dialog.setTitle(name);
 				
 				BorderPane pane = new BorderPane();
-				WekaClassifierRandomForests defaultClassifier = new WekaClassifierRandomForests();
-				panel = new ClassifierBuilderPanel<>(qupath, Arrays.asList(
-						new WekaClassifierBayesNet(),
-						new WekaClassifierJ48(),
-						new WekaClassifierOneR(),
-						defaultClassifier,
-						new WekaClassifierSMO()
-						), defaultClassifier);
+				List<WekaClassifier> classifiers = createClassifiers();
+				WekaClassifier defaultClassifier = classifiers.get(0);
+				for (WekaClassifier classifier : classifiers) {
+					if (classifier instanceof WekaClassifierRandomForests)
+						defaultClassifier = classifier;
+				}
+				panel = new ClassifierBuilderPanel<>(qupath, classifiers, defaultClassifier);
 				
 				ScrollPane scrollPane = new ScrollPane(panel.getPane());
 				scrollPane.setFitToWidth(true);
@@ -145,38 +151,52 @@ public class WekaClassifierCommand implements PathCommand {
 				dialog.setResizable(false);
 		} catch (NoClassDefFoundError e) {
 			dialog = null;
-			
-//			// Since we're running this (i.e. an extension), we really *should* have an extensions directory...
-//			File dirExtensions = QuPathGUI.getExtensionDirectory();
-//			if (dirExtensions == null || !dirExtensions.isDirectory()) {
-//				DisplayHelpers.showErrorMessage("Weka classifier error", "Cannot find either Weka or an extensions directory.  Please reinstall the Weka extension.");				
-//				return;
-//			}
-			
-			// Prompt to select path to Weka
-			if (!DisplayHelpers.showConfirmDialog("Set path to weka.jar", "Cannot find weka.jar.\n\nDo you want to select it manually from your Weka installation?"))
-				return;
-			File fileWeka = QuPathGUI.getDialogHelper(qupath.getStage()).promptForFile("Select weka.jar", null, "Weka JAR file", new String[]{".jar"});
-			if (fileWeka == null || !fileWeka.isFile()) {
-				logger.error("No Weka JAR file selected.");
-				return;
-			}
-			
-			// Set the path
-			wekaPath.set(fileWeka.getAbsolutePath());
-			
-//			// Create a symbolic link in the extensions directory, and add refresh extensions to update classpath
-//			try {
-//				Files.createSymbolicLink(new File(dirExtensions, "weka").toPath(), dirWeka.toPath());
-//			} catch (IOException e1) {
-//				DisplayHelpers.showErrorNotification("Weka link error", e1);
-//				return;
-//			}
-			qupath.refreshExtensions(false);
-			
-			// Now try again...
-			run();
+			WekaAvailability.resetCache();
+			promptForWeka();
+		}
+	}
+	
+	
+	/**
+	 * Prompt the user to locate weka.jar, and try again to show the dialog if successful.
+	 */
+	private void promptForWeka() {
+//		// Since we're running this (i.e. an extension), we really *should* have an extensions directory...
+//		File dirExtensions = QuPathGUI.getExtensionDirectory();
+//		if (dirExtensions == null || !dirExtensions.isDirectory()) {
+//			DisplayHelpers.showErrorMessage("Weka classifier error", "Cannot find either Weka or an extensions directory.  Please reinstall the Weka extension.");				
+//			return;
+//		}
+		
+		// Prompt to select path to Weka
+		if (!DisplayHelpers.showConfirmDialog("Set path to weka.jar", "Cannot find weka.jar.\n\nDo you want to select it manually from your Weka installation?"))
+			return;
+		File fileWeka = QuPathGUI.getDialogHelper(qupath.getStage()).promptForFile("Select weka.jar", null, "Weka JAR file", new String[]{".jar"});
+		if (fileWeka == null || !fileWeka.isFile()) {
+			logger.error("No Weka JAR file selected.");
+			return;
+		}
+		
+		// Set the path
+		wekaPath.set(fileWeka.getAbsolutePath());
+		
+//		// Create a symbolic link in the extensions directory, and add refresh extensions to update classpath
+//		try {
+//			Files.createSymbolicLink(new File(dirExtensions, "weka").toPath(), dirWeka.toPath());
+//		} catch (IOException e1) {
+//			DisplayHelpers.showErrorNotification("Weka link error", e1);
+//			return;
+//		}
+		qupath.refreshExtensions(false);
+		WekaAvailability.resetCache();
+		WekaClassifierRegistry.refresh();
+		if (!WekaAvailability.isWekaAvailable()) {
+			DisplayHelpers.showErrorMessage("Weka classifier error", "Unable to load Weka classes from " + fileWeka.getName());
+			return;
 		}
+		
+		// Now try again...
+		run();
 	}
 	
 	
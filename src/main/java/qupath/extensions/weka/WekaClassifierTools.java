@@ -0,0 +1,296 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.extensions.weka.WekaFeatureCache.FeatureSource;
+import qupath.extensions.weka.classifiers.WekaClassifier;
+import qupath.lib.classifiers.Normalization;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.plugins.parameters.Parameterizable;
+
+/**
+ * Static methods to train, save, load and apply Weka classifiers without any user interface.
+ * <p>
+ * This is intended for use from scripts and batch processing, and does not require JavaFX.
+ */
+public class WekaClassifierTools {
+
+	final private static Logger logger = LoggerFactory.getLogger(WekaClassifierTools.class);
+
+	/**
+	 * Create a training map from the classified annotations within a hierarchy.
+	 * <p>
+	 * Each detection that is a descendant of an annotation with a classification is assigned the classification of
+	 * its nearest classified annotation ancestor.
+	 * 
+	 * @param hierarchy
+	 * @return
+	 */
+	public static Map<PathClass, List<PathObject>> createTrainingMap(final PathObjectHierarchy hierarchy) {
+		Map<PathClass, List<PathObject>> map = new LinkedHashMap<>();
+		addToTrainingMap(hierarchy.getRootObject(), null, map);
+		return map;
+	}
+
+
+	/**
+	 * Create a training map from the classified annotations within multiple hierarchies.
+	 * 
+	 * @param hierarchies
+	 * @return
+	 * @see #createTrainingMap(PathObjectHierarchy)
+	 */
+	public static Map<PathClass, List<PathObject>> createTrainingMap(final Collection<PathObjectHierarchy> hierarchies) {
+		Map<PathClass, List<PathObject>> map = new LinkedHashMap<>();
+		for (PathObjectHierarchy hierarchy : hierarchies)
+			addToTrainingMap(hierarchy.getRootObject(), null, map);
+		return map;
+	}
+
+
+	private static void addToTrainingMap(final PathObject pathObject, PathClass pathClass, final Map<PathClass, List<PathObject>> map) {
+		if (pathObject instanceof PathAnnotationObject && pathObject.getPathClass() != null)
+			pathClass = pathObject.getPathClass();
+		else if (pathClass != null && pathObject instanceof PathDetectionObject) {
+			List<PathObject> list = map.get(pathClass);
+			if (list == null) {
+				list = new ArrayList<>();
+				map.put(pathClass, list);
+			}
+			list.add(pathObject);
+		}
+		if (pathObject.hasChildren()) {
+			for (PathObject child : pathObject.getChildObjects())
+				addToTrainingMap(child, pathClass, map);
+		}
+	}
+
+
+	/**
+	 * Get the names of all measurements found for objects within a training map, in the order in which they are first encountered.
+	 * 
+	 * @param map
+	 * @return
+	 */
+	public static List<String> getAvailableMeasurements(final Map<PathClass, ? extends Collection<? extends PathObject>> map) {
+		Set<String> names = new LinkedHashSet<>();
+		for (Collection<? extends PathObject> pathObjects : map.values()) {
+			for (PathObject pathObject : pathObjects)
+				names.addAll(pathObject.getMeasurementList().getMeasurementNames());
+		}
+		return new ArrayList<>(names);
+	}
+
+
+	/**
+	 * Create a new classifier of the specified type, setting any parameters.
+	 * 
+	 * @param cls
+	 * @param parameters parameter values, keyed by parameter name (may be null)
+	 * @return
+	 * @throws ReflectiveOperationException
+	 */
+	public static <T extends WekaClassifier> T createClassifier(final Class<T> cls, final Map<String, ?> parameters) throws ReflectiveOperationException {
+		T classifier = cls.newInstance();
+		if (parameters != null && !parameters.isEmpty())
+			setParameters(classifier, parameters);
+		return classifier;
+	}
+
+
+	/**
+	 * Set parameter values for a classifier.
+	 * 
+	 * @param classifier
+	 * @param parameters parameter values, keyed by parameter name
+	 * @throws IllegalArgumentException if the classifier does not have parameters, or one of the parameter names is unknown
+	 */
+	public static void setParameters(final WekaClassifier classifier, final Map<String, ?> parameters) throws IllegalArgumentException {
+		if (!(classifier instanceof Parameterizable))
+			throw new IllegalArgumentException(classifier.getName() + " does not support parameters!");
+		ParameterList params = ((Parameterizable)classifier).getParameterList();
+		Map<String, String> map = new HashMap<>();
+		for (Map.Entry<String, ?> entry : parameters.entrySet()) {
+			if (!params.getParameters().containsKey(entry.getKey()))
+				throw new IllegalArgumentException("Unknown parameter '" + entry.getKey() + "' for " + classifier.getName());
+			map.put(entry.getKey(), String.valueOf(entry.getValue()));
+		}
+		ParameterList.updateParameterList(params, map, Locale.US);
+	}
+
+
+	/**
+	 * Train a classifier.
+	 * 
+	 * @param classifier
+	 * @param map training objects for each classification
+	 * @param measurements the measurements to use as features; if null, all available measurements will be used
+	 * @param normalization
+	 * @return true if the classifier was trained successfully
+	 */
+	public static boolean trainClassifier(final WekaClassifier classifier, final Map<PathClass, List<PathObject>> map, List<String> measurements, final Normalization normalization) {
+		return trainClassifier(classifier, map, measurements, normalization, null);
+	}
+	
+	/**
+	 * Train a classifier, optionally reading features from a {@link FeatureSource} - such as a matrix from a {@link WekaFeatureCache}, 
+	 * or several matrices combined with {@link WekaFeatureCache#combine(Collection)}.
+	 * 
+	 * @param classifier
+	 * @param map training objects for each classification
+	 * @param measurements the measurements to use as features; if null, all available measurements will be used
+	 * @param normalization
+	 * @param features source of features (may be null)
+	 * @return true if the classifier was trained successfully
+	 */
+	public static boolean trainClassifier(final WekaClassifier classifier, final Map<PathClass, List<PathObject>> map, List<String> measurements, final Normalization normalization, final FeatureSource features) {
+		if (measurements == null)
+			measurements = getAvailableMeasurements(map);
+		long startTime = System.currentTimeMillis();
+		boolean success = classifier.updateClassifier(map, measurements, normalization, features) && classifier.isValid();
+		long endTime = System.currentTimeMillis();
+		if (success)
+			logger.info("{} trained in {} ms", classifier.getName(), endTime - startTime);
+		else
+			logger.error("Unable to train {}", classifier.getName());
+		return success;
+	}
+
+
+	/**
+	 * Save a classifier to a file, using Java serialization.
+	 * 
+	 * @param classifier
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void saveClassifier(final WekaClassifier classifier, final File file) throws IOException {
+		try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeObject(classifier);
+		}
+	}
+
+
+	/**
+	 * Load a classifier previously saved with {@link #saveClassifier(WekaClassifier, File)} (or from QuPath's user interface).
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static WekaClassifier loadClassifier(final File file) throws IOException, ClassNotFoundException {
+		try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			Object o = in.readObject();
+			if (!(o instanceof WekaClassifier))
+				throw new IOException(file + " does not contain a Weka classifier!");
+			return (WekaClassifier)o;
+		}
+	}
+
+
+	/**
+	 * Apply a classifier to all the detections within a hierarchy.
+	 * 
+	 * @param hierarchy
+	 * @param classifier
+	 * @return the number of objects that were classified
+	 */
+	public static int classifyDetections(final PathObjectHierarchy hierarchy, final WekaClassifier classifier) {
+		List<PathObject> detections = hierarchy.getObjects(null, PathDetectionObject.class);
+		int n = classifier.classifyPathObjects(detections);
+		hierarchy.fireObjectClassificationsChangedEvent(classifier, detections);
+		return n;
+	}
+
+
+	/**
+	 * Apply a classifier to all the detections within a hierarchy, reading features from an on-disk cache.
+	 * <p>
+	 * If the cache does not yet contain features for the image (or they are out of date), they are extracted and written first.
+	 * 
+	 * @param hierarchy
+	 * @param classifier
+	 * @param featureCache
+	 * @param imageKey unique identifier for the image within the cache
+	 * @return the number of objects that were classified
+	 * @throws IOException if the feature cache could not be read or written
+	 */
+	public static int classifyDetections(final PathObjectHierarchy hierarchy, final WekaClassifier classifier, final WekaFeatureCache featureCache, final String imageKey) throws IOException {
+		List<PathObject> detections = hierarchy.getObjects(null, PathDetectionObject.class);
+		FeatureSource features = featureCache.getFeatures(imageKey, detections, classifier.getRequiredMeasurements());
+		int n = classifier.classifyPathObjects(detections, features);
+		hierarchy.fireObjectClassificationsChangedEvent(classifier, detections);
+		return n;
+	}
+
+
+	/**
+	 * Apply a classifier to all the detections within multiple hierarchies, in parallel.
+	 * <p>
+	 * The same classifier is shared across all threads.  For more control (e.g. to limit the number of 
+	 * images loaded at any one time), use {@link WekaBatchClassifier}.
+	 * 
+	 * @param hierarchies
+	 * @param classifier
+	 * @param nThreads number of threads to use; if &lt;= 0, the number of available processors will be used
+	 * @return the total number of objects that were classified
+	 * @throws Exception
+	 */
+	public static long classifyDetections(final Collection<PathObjectHierarchy> hierarchies, final WekaClassifier classifier, final int nThreads) throws Exception {
+		int n = nThreads <= 0 ? Runtime.getRuntime().availableProcessors() : nThreads;
+		WekaBatchClassifier batch = new WekaBatchClassifier(classifier)
+				.setImageThreads(n)
+				.setClassificationThreads(n)
+				.setMaxImagesInMemory(hierarchies.size());
+		return batch.classifyHierarchies(hierarchies).getObjectsClassified();
+	}
+
+}
@@ -23,10 +23,15 @@
 
 package qupath.extensions.weka;
 
+import java.io.File;
+
+import javafx.beans.property.StringProperty;
 import javafx.scene.control.Menu;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.commands.OpenWebpageCommand;
+import qupath.lib.gui.commands.interfaces.PathCommand;
 import qupath.lib.gui.extensions.QuPathExtension;
+import qupath.lib.gui.prefs.PathPrefs;
 
 /**
  * QuPath extension for creating detection classifiers using Weka.
@@ -36,6 +41,13 @@ import qupath.lib.gui.extensions.QuPathExtension;
  */
 public class WekaExtension implements QuPathExtension {
 
+	final private static StringProperty wekaPath = PathPrefs.createPersistentPreference("wekaPath", null);
+
+	/**
+	 * Path to the JAR most recently added to the classpath, to avoid adding the same JAR repeatedly.
+	 */
+	private static String addedWekaPath = null;
+
 	@Override
 	public void installExtension(QuPathGUI qupath) {
 		Menu menu = qupath.getMenu("Extensions>Weka", true);
@@ -47,8 +59,61 @@ public class WekaExtension implements QuPathExtension {
 		Menu menuClassify = qupath.getMenu("Classify", true);
 		QuPathGUI.addMenuItems(
 				menuClassify,
-				QuPathGUI.createCommandAction(new WekaClassifierCommand(qupath), "Create detection classifier (Weka)")
+				QuPathGUI.createCommandAction(new LazyWekaClassifierCommand(qupath), "Create detection classifier (Weka)")
 				);
+		
+		// Add any previously-selected weka.jar to the classpath (so that it's available to scripts & when loading classifiers),
+		// then check for Weka & load commonly-used classes in the background, to avoid delaying startup
+		addWekaJar(qupath);
+		WekaAvailability.probeInBackground(null);
+	}
+	
+	/**
+	 * Get the persistent preference storing the path to weka.jar, if it has been selected by the user.
+	 * 
+	 * @return
+	 */
+	static StringProperty wekaPathProperty() {
+		return wekaPath;
+	}
+	
+	/**
+	 * Add the JAR specified by the Weka path preference to the extension classpath, if it exists and has not already been added.
+	 * <p>
+	 * This should only be called from the JavaFX Application thread.
+	 * 
+	 * @param qupath
+	 * @return true if a JAR was added, false otherwise
+	 */
+	static boolean addWekaJar(final QuPathGUI qupath) {
+		String path = wekaPath.get();
+		if (path == null || path.equals(addedWekaPath) || !new File(path).exists())
+			return false;
+		qupath.addExtensionJar(new File(path));
+		addedWekaPath = path;
+		return true;
+	}
+	
+	
+	/**
+	 * Command that only creates the (Weka-dependent) classifier command when it is first run.
+	 */
+	static class LazyWekaClassifierCommand implements PathCommand {
+		
+		private QuPathGUI qupath;
+		private WekaClassifierCommand command;
+		
+		LazyWekaClassifierCommand(final QuPathGUI qupath) {
+			this.qupath = qupath;
+		}
+
+		@Override
+		public void run() {
+			if (command == null)
+				command = new WekaClassifierCommand(qupath);
+			command.run();
+		}
+		
 	}
 
 	@Override
@@ -0,0 +1,511 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.extensions.weka.classifiers.FeatureVectorKey;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Persistent, on-disk cache of feature matrices for detection objects.
+ * <p>
+ * Features are stored in one binary file per image and measurement schema (i.e. the list of required measurement names).
+ * Files are memory-mapped when read, so that training and classification can take values directly from the cache
+ * rather than from each object's MeasurementList.
+ * <p>
+ * Objects are matched to rows of the cache using their ROI centroids, and the number of measurements of each object
+ * is stored to detect when measurements have been added or removed.  If the objects in an image no longer match those
+ * in the cache (e.g. because detections have been added, removed or moved), the cache is rebuilt automatically.
+ * <p>
+ * Measurement values are not checked when the cache is read, since this would require reading every object's measurements
+ * (and so remove most of the benefit of caching).  Therefore {@link #invalidate(String)} should be called whenever the
+ * measurements of an image are recalculated.
+ */
+public class WekaFeatureCache {
+
+	final private static Logger logger = LoggerFactory.getLogger(WekaFeatureCache.class);
+
+	private static final int MAGIC = 0x51574643;
+	private static final int VERSION = 3;
+	private static final String EXTENSION = ".features";
+	private static final String TEMP_EXTENSION = ".tmp";
+
+	private final File directory;
+
+	/**
+	 * Source of feature values for objects, which may be used instead of reading measurements from each object's MeasurementList.
+	 */
+	public static interface FeatureSource {
+
+		/**
+		 * Extract the values of the requested measurements for an object, optionally replacing missing values.
+		 * 
+		 * @param pathObject
+		 * @param measurements names of the measurements to extract
+		 * @param imputationValues values to use in place of missing (NaN) measurements, in the same order as the measurements (may be null)
+		 * @param values array into which the values should be written
+		 * @return the number of missing measurements (before imputation), or -1 if the object is not available from this source
+		 */
+		public int extractMeasurements(PathObject pathObject, List<String> measurements, double[] imputationValues, double[] values);
+
+	}
+
+
+	/**
+	 * Create a feature cache, which stores its files in the specified directory.
+	 * 
+	 * @param directory
+	 */
+	public WekaFeatureCache(final File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Get the directory used to store cached features.
+	 * 
+	 * @return
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+
+	/**
+	 * Get features for the specified objects, reading them from the cache if possible or extracting them
+	 * (and writing them to the cache) if necessary.
+	 * <p>
+	 * If the measurement values of the objects have changed since the cache was written, {@link #invalidate(String)}
+	 * must be called first.
+	 * 
+	 * @param imageKey unique identifier for the image, e.g. its path or project entry name
+	 * @param pathObjects the objects for which features are required
+	 * @param measurements the required measurements
+	 * @return
+	 * @throws IOException if the features could not be written to or read from the cache
+	 */
+	public FeatureMatrix getFeatures(final String imageKey, final Collection<? extends PathObject> pathObjects, final List<String> measurements) throws IOException {
+		File file = getFile(imageKey, measurements);
+		if (file.isFile()) {
+			try {
+				long startTime = System.currentTimeMillis();
+				FeatureMatrix matrix = FeatureMatrix.read(file, measurements, pathObjects);
+				if (matrix != null) {
+					logger.debug("Read {} cached feature vectors for {} in {} ms", matrix.getRowCount(), imageKey, System.currentTimeMillis() - startTime);
+					return matrix;
+				}
+				logger.info("Cached features for {} are out of date - features will be re-extracted", imageKey);
+			} catch (IOException e) {
+				logger.warn("Unable to read cached features from {} - features will be re-extracted", file, e);
+			}
+		}
+		long startTime = System.currentTimeMillis();
+		File fileWritten = write(file, pathObjects, measurements);
+		logger.debug("Wrote {} feature vectors for {} in {} ms", pathObjects.size(), imageKey, System.currentTimeMillis() - startTime);
+		FeatureMatrix matrix = FeatureMatrix.read(fileWritten, measurements, pathObjects);
+		if (matrix == null)
+			throw new IOException("Unable to read features from " + fileWritten);
+		return matrix;
+	}
+
+
+	/**
+	 * Remove all cached features for an image, for any measurement schema.
+	 * 
+	 * @param imageKey
+	 * @return the number of cache files removed
+	 */
+	public int invalidate(final String imageKey) {
+		String prefix = getImagePrefix(imageKey);
+		int n = 0;
+		File[] files = directory.listFiles();
+		if (files == null)
+			return 0;
+		for (File file : files) {
+			if (file.getName().startsWith(prefix) && isCacheFile(file)) {
+				if (file.delete())
+					n++;
+				else
+					logger.warn("Unable to delete cached features {}", file);
+			}
+		}
+		return n;
+	}
+
+
+	/**
+	 * Remove all cached features.
+	 * 
+	 * @return the number of cache files removed
+	 */
+	public int clear() {
+		int n = 0;
+		File[] files = directory.listFiles();
+		if (files == null)
+			return 0;
+		for (File file : files) {
+			if (isCacheFile(file) && file.delete())
+				n++;
+		}
+		return n;
+	}
+
+
+	/**
+	 * Get the file used to cache features for a specific image and list of measurements.
+	 * 
+	 * @param imageKey
+	 * @param measurements
+	 * @return
+	 */
+	public File getFile(final String imageKey, final List<String> measurements) {
+		return new File(directory, getImagePrefix(imageKey) + getSchemaKey(measurements) + EXTENSION);
+	}
+
+	/**
+	 * Returns true if a file is a cache file, or a temporary file created while writing one.
+	 */
+	private static boolean isCacheFile(final File file) {
+		String name = file.getName();
+		return name.endsWith(EXTENSION) || (name.endsWith(TEMP_EXTENSION) && name.contains(EXTENSION + "."));
+	}
+
+	private static String getImagePrefix(final String imageKey) {
+		return UUID.nameUUIDFromBytes(imageKey.getBytes(StandardCharsets.UTF_8)).toString() + "-";
+	}
+
+	/**
+	 * Get a key identifying an (ordered) list of measurements.
+	 * 
+	 * @param measurements
+	 * @return
+	 */
+	public static String getSchemaKey(final List<String> measurements) {
+		return UUID.nameUUIDFromBytes(String.join("\n", measurements).getBytes(StandardCharsets.UTF_8)).toString();
+	}
+
+
+	private static FeatureVectorKey getObjectKey(final PathObject pathObject) {
+		ROI roi = pathObject.getROI();
+		double[] centroid = roi == null ? new double[]{Double.NaN, Double.NaN} : new double[]{roi.getCentroidX(), roi.getCentroidY()};
+		return new FeatureVectorKey(centroid, 2, 0);
+	}
+
+	/**
+	 * Get the number of measurements of an object, which is stored in the cache as a cheap check that measurements
+	 * have not been added or removed.
+	 */
+	static int getMeasurementCount(final PathObject pathObject) {
+		MeasurementList list = pathObject.getMeasurementList();
+		return list == null ? 0 : list.size();
+	}
+
+
+	/**
+	 * Write features to a cache file.
+	 * <p>
+	 * Features are first written to a (uniquely-named) temporary file, which then replaces the cache file atomically.
+	 * If the cache file can't be replaced - e.g. because it is still memory-mapped by an earlier {@link FeatureMatrix} on Windows -
+	 * the temporary file is used instead, and the cache file will be replaced next time.
+	 * 
+	 * @return the file that was written
+	 */
+	private File write(final File file, final Collection<? extends PathObject> pathObjects, final List<String> measurements) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create feature cache directory " + directory);
+		List<PathObject> list = new ArrayList<>(pathObjects);
+		File fileTemp = new File(file.getParentFile(), file.getName() + "." + UUID.randomUUID() + TEMP_EXTENSION);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileTemp), 1024 * 1024))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(measurements.size());
+			for (String name : measurements)
+				out.writeUTF(name);
+			out.writeLong(list.size());
+			// Write the header size, so that the data can be memory-mapped
+			out.writeInt(out.size() + 4);
+			for (PathObject pathObject : list) {
+				ROI roi = pathObject.getROI();
+				out.writeDouble(roi == null ? Double.NaN : roi.getCentroidX());
+				out.writeDouble(roi == null ? Double.NaN : roi.getCentroidY());
+				out.writeLong(getMeasurementCount(pathObject));
+			}
+			double[] values = new double[measurements.size()];
+			for (PathObject pathObject : list) {
+				WekaHelpers.extractMeasurements(pathObject.getMeasurementList(), measurements, null, values);
+				for (double v : values)
+					out.writeDouble(v);
+			}
+		}
+		try {
+			try {
+				Files.move(fileTemp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(fileTemp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			return file;
+		} catch (IOException e) {
+			logger.warn("Unable to replace cached features {} (it may still be in use) - features will be read from {}", file, fileTemp);
+			logger.debug("Unable to replace cached features", e);
+			fileTemp.deleteOnExit();
+			return fileTemp;
+		}
+	}
+
+
+	/**
+	 * Combine multiple feature sources, e.g. from different images.  Each source is queried in turn until one can provide the requested features.
+	 * 
+	 * @param sources
+	 * @return
+	 */
+	public static FeatureSource combine(final Collection<? extends FeatureSource> sources) {
+		List<FeatureSource> list = new ArrayList<>(sources);
+		return new FeatureSource() {
+			@Override
+			public int extractMeasurements(PathObject pathObject, List<String> measurements, double[] imputationValues, double[] values) {
+				for (FeatureSource source : list) {
+					int nMissing = source.extractMeasurements(pathObject, measurements, imputationValues, values);
+					if (nMissing >= 0)
+						return nMissing;
+				}
+				return -1;
+			}
+		};
+	}
+
+
+	/**
+	 * Memory-mapped feature matrix for the objects within a single image.
+	 * <p>
+	 * Large matrices are mapped in chunks, since a single mapping cannot exceed 2 GB.
+	 */
+	public static class FeatureMatrix implements FeatureSource {
+
+		private final List<String> measurements;
+		private final int nRows;
+		private final int rowsPerChunk;
+		private final DoubleBuffer[] chunks;
+		private final Map<PathObject, Integer> rowMap;
+
+		private volatile ColumnMapping lastMapping;
+
+		private FeatureMatrix(final List<String> measurements, final int nRows, final int rowsPerChunk, final DoubleBuffer[] chunks, final Map<PathObject, Integer> rowMap) {
+			this.measurements = Collections.unmodifiableList(measurements);
+			this.nRows = nRows;
+			this.rowsPerChunk = rowsPerChunk;
+			this.chunks = chunks;
+			this.rowMap = rowMap;
+		}
+
+		/**
+		 * Read a feature matrix from a file, matching its rows to the specified objects.
+		 * 
+		 * @return the matrix, or null if the file does not match the measurements or objects
+		 * @throws IOException
+		 */
+		static FeatureMatrix read(final File file, final List<String> measurements, final Collection<? extends PathObject> pathObjects) throws IOException {
+			int nFeatures;
+			long nRowsLong;
+			int headerSize;
+			List<String> names = new ArrayList<>();
+			double[] keys;
+			long[] measurementCounts;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 1024))) {
+				if (in.readInt() != MAGIC)
+					throw new IOException(file + " is not a feature cache file");
+				int version = in.readInt();
+				if (version > VERSION)
+					throw new IOException("Unsupported feature cache version " + version);
+				if (version < VERSION)
+					return null;
+				nFeatures = in.readInt();
+				for (int i = 0; i < nFeatures; i++)
+					names.add(in.readUTF());
+				nRowsLong = in.readLong();
+				headerSize = in.readInt();
+				if (!names.equals(measurements) || nRowsLong != pathObjects.size())
+					return null;
+				keys = new double[(int)nRowsLong * 2];
+				measurementCounts = new long[(int)nRowsLong];
+				for (int r = 0; r < measurementCounts.length; r++) {
+					keys[r * 2] = in.readDouble();
+					keys[r * 2 + 1] = in.readDouble();
+					measurementCounts[r] = in.readLong();
+				}
+			}
+			int nRows = (int)nRowsLong;
+
+			// Match objects to rows - any ambiguous (duplicate) keys are excluded, so these objects will use their measurement lists
+			Map<FeatureVectorKey, Integer> keyMap = new HashMap<>();
+			double[] key = new double[2];
+			for (int r = 0; r < nRows; r++) {
+				key[0] = keys[r * 2];
+				key[1] = keys[r * 2 + 1];
+				if (keyMap.put(new FeatureVectorKey(key, 2, 0), r) != null)
+					keyMap.put(new FeatureVectorKey(key, 2, 0), -1);
+			}
+			Map<PathObject, Integer> rowMap = new IdentityHashMap<>(nRows);
+			int nAmbiguous = 0;
+			for (PathObject pathObject : pathObjects) {
+				Integer row = keyMap.get(getObjectKey(pathObject));
+				if (row == null)
+					return null;
+				if (row >= 0) {
+					// Measurements have been added or removed since the cache was written
+					if (measurementCounts[row] != getMeasurementCount(pathObject))
+						return null;
+					rowMap.put(pathObject, row);
+				} else
+					nAmbiguous++;
+			}
+			if (nAmbiguous > 0)
+				logger.info("{} objects share their centroid with another object - features for these will be read from their measurement lists", nAmbiguous);
+
+			// Map the feature values
+			int rowsPerChunk = nFeatures == 0 ? Math.max(1, nRows) : Math.max(1, Integer.MAX_VALUE / (8 * nFeatures));
+			int nChunks = nRows == 0 ? 0 : (nRows + rowsPerChunk - 1) / rowsPerChunk;
+			DoubleBuffer[] chunks = new DoubleBuffer[nChunks];
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+				long offset = headerSize + 24L * nRows;
+				if (channel.size() < offset + 8L * nFeatures * nRows)
+					throw new IOException("Feature cache " + file + " is truncated");
+				for (int c = 0; c < nChunks; c++) {
+					int rowsInChunk = Math.min(rowsPerChunk, nRows - c * rowsPerChunk);
+					long size = 8L * nFeatures * rowsInChunk;
+					chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, offset, size).order(ByteOrder.BIG_ENDIAN).asDoubleBuffer();
+					offset += size;
+				}
+			}
+			return new FeatureMatrix(new ArrayList<>(names), nRows, rowsPerChunk, chunks, rowMap);
+		}
+
+		/**
+		 * Get the number of rows (objects) in the matrix.
+		 * 
+		 * @return
+		 */
+		public int getRowCount() {
+			return nRows;
+		}
+
+		/**
+		 * Get the names of the measurements in the matrix.
+		 * 
+		 * @return
+		 */
+		public List<String> getMeasurements() {
+			return measurements;
+		}
+
+		/**
+		 * Get a single value from the matrix.
+		 * 
+		 * @param row
+		 * @param column
+		 * @return
+		 */
+		public double getValue(final int row, final int column) {
+			int nFeatures = measurements.size();
+			return chunks[row / rowsPerChunk].get((row % rowsPerChunk) * nFeatures + column);
+		}
+
+		@Override
+		public int extractMeasurements(final PathObject pathObject, final List<String> measurements, final double[] imputationValues, final double[] values) {
+			Integer row = rowMap.get(pathObject);
+			if (row == null)
+				return -1;
+			int[] columns = getColumns(measurements);
+			int nFeatures = this.measurements.size();
+			DoubleBuffer chunk = chunks[row / rowsPerChunk];
+			int offset = (row % rowsPerChunk) * nFeatures;
+			int nMissing = 0;
+			for (int i = 0; i < columns.length; i++) {
+				int col = columns[i];
+				double value = col < 0 ? Double.NaN : chunk.get(offset + col);
+				if (Double.isNaN(value)) {
+					nMissing++;
+					if (imputationValues != null)
+						value = imputationValues[i];
+				}
+				values[i] = value;
+			}
+			return nMissing;
+		}
+
+		private int[] getColumns(final List<String> measurements) {
+			ColumnMapping mapping = lastMapping;
+			if (mapping != null && mapping.measurements.equals(measurements))
+				return mapping.columns;
+			int[] columns = new int[measurements.size()];
+			for (int i = 0; i < columns.length; i++)
+				columns[i] = this.measurements.indexOf(measurements.get(i));
+			lastMapping = new ColumnMapping(new ArrayList<>(measurements), columns);
+			return columns;
+		}
+
+	}
+
+
+	private static class ColumnMapping {
+
+		private final List<String> measurements;
+		private final int[] columns;
+
+		ColumnMapping(final List<String> measurements, final int[] columns) {
+			this.measurements = measurements;
+			this.columns = columns;
+		}
+
+	}
+
+}
@@ -50,6 +50,55 @@ import weka.core.converters.ArffSaver;
  */
 public class WekaHelpers {
 
+	/**
+	 * Extract the values of the requested measurements into an array, optionally replacing missing values.
+	 * 
+	 * @param measurementList
+	 * @param measurements names of the measurements to extract
+	 * @param imputationValues values to use in place of any missing (NaN) measurements, in the same order as the measurements (may be null)
+	 * @param values array into which the values should be written; must have at least as many entries as there are measurements
+	 * @return the number of measurements that were missing (before imputation)
+	 */
+	public static int extractMeasurements(final MeasurementList measurementList, final List<String> measurements, final double[] imputationValues, final double[] values) {
+		int nMissing = 0;
+		int i = 0;
+		for (String measurement : measurements) {
+			double value = measurementList.getMeasurementValue(measurement);
+			if (Double.isNaN(value)) {
+				nMissing++;
+				if (imputationValues != null)
+					value = imputationValues[i];
+			}
+			values[i++] = value;
+		}
+		return nMissing;
+	}
+	
+	/**
+	 * Extract the values of the requested measurements into an array, optionally replacing missing values, 
+	 * where the measurements are specified according to their indices.
+	 * 
+	 * @param measurementList
+	 * @param indices indices of the measurements to extract; negative indices are treated as missing
+	 * @param imputationValues values to use in place of any missing (NaN) measurements, in the same order as the indices (may be null)
+	 * @param values array into which the values should be written; must have at least as many entries as there are indices
+	 * @return the number of measurements that were missing (before imputation)
+	 */
+	public static int extractMeasurements(final MeasurementList measurementList, final int[] indices, final double[] imputationValues, final double[] values) {
+		int nMissing = 0;
+		for (int i = 0; i < indices.length; i++) {
+			int ind = indices[i];
+			double value = ind < 0 ? Double.NaN : measurementList.getMeasurementValue(ind);
+			if (Double.isNaN(value)) {
+				nMissing++;
+				if (imputationValues != null)
+					value = imputationValues[i];
+			}
+			values[i] = value;
+		}
+		return nMissing;
+	}
+
 	/**
 	 * Create an Instance for Weka from a PathObject, using the requested measurements.
 	 * 
@@ -57,24 +106,16 @@ public class WekaHelpers {
 	 * @param measurements
 	 * @param pathClass
 	 * @param classAttribute
-	 * @return
+	 * @return the instance, or null if none of the measurements are available
 	 */
 	public static Instance createInstance(final MeasurementList measurementList, final List<String> measurements, final PathClass pathClass, final Attribute classAttribute) {
 		int n = measurements.size();
 		if (classAttribute != null)
 			n++;
 		double[] vals = new double[n];
-		int i = 0;
-//		measurementList.ensureListOpen();
-//		measurementList.closeList();
-		boolean hasMeasurements = false; // Check if we have any measurements - if not, no point trying to classify
-		for (String measurement : measurements) {
-			double value = measurementList.getMeasurementValue(measurement);
-			if (!hasMeasurements && !Double.isNaN(value))
-				hasMeasurements = true;
-			vals[i++] = value;
-		}
-		if (!hasMeasurements)
+		// Check if we have any measurements - if not, no point trying to classify
+		int nMissing = extractMeasurements(measurementList, measurements, null, vals);
+		if (nMissing == measurements.size())
 			return null;
 		if (classAttribute != null) {
 			if (pathClass != null)
@@ -94,17 +135,13 @@ public class WekaHelpers {
 	 * @param indices
 	 * @param pathClass
 	 * @param classAttribute
-	 * @return
+	 * @return the instance, or null if none of the measurements are available
 	 */
 	public static Instance createInstance(final MeasurementList measurementList, final int[] indices, final PathClass pathClass, final Attribute classAttribute) {
-//		int n = indices.length;
-//		if (pathClass != null)
-//			n++;
 		double[] vals = new double[indices.length+1];
-		int i = 0;
-		for (int ind : indices) {
-			vals[i++] = measurementList.getMeasurementValue(ind);
-		}
+		int nMissing = extractMeasurements(measurementList, indices, null, vals);
+		if (nMissing == indices.length)
+			return null;
 		if (pathClass != null)
 			vals[vals.length-1] = classAttribute.indexOfValue(pathClass.getName());
 		else
@@ -147,6 +184,26 @@ public class WekaHelpers {
 	
 	
 	
+	/**
+	 * Create Weka instances from a map containing PathDetectionObjects and their ground truth classifications.
+	 * <p>
+	 * The class attribute is the last attribute, and is set as the class index.
+	 * 
+	 * @param classificationMap
+	 * @param featureNames
+	 * @return
+	 */
+	public static Instances createInstances(final Map<PathClass, ? extends Collection<? extends PathObject>> classificationMap, final List<String> featureNames) {
+		ArrayList<Attribute> attributes = createAttributes(featureNames, classificationMap.keySet(), null);
+		int n = PathClassificationLabellingHelper.countObjectsInMap(classificationMap);
+		Instances instances = new Instances("QuPath objects", attributes, n);
+		instances.setClassIndex(attributes.size()-1);
+		for (Map.Entry<PathClass, ? extends Collection<? extends PathObject>> entry : classificationMap.entrySet())
+			populateInstances(entry.getValue(), instances, entry.getKey(), featureNames, false);
+		return instances;
+	}
+	
+	
 	/**
 	 * Populate Weka instances from a list of PathObjects.
 	 * Note: Only PathDetectionObjects will be created as instances,
@@ -0,0 +1,195 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Two-stage classifier, which applies a fast classifier first and only escalates to a second (expensive) classifier
+ * if the fast classifier is not sufficiently confident.
+ * <p>
+ * Both classifiers are trained on all the training data.
+ * <p>
+ * The number of instances classified, and the number escalated to the expensive classifier, are counted whenever the cascade is used.
+ * Copies created with {@link #copyWithSharedCounts()} update the same counts, so that the counts include all threads.
+ */
+public class CascadeClassifier extends AbstractClassifier {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Classifier fastClassifier;
+	private final Classifier expensiveClassifier;
+	private final double threshold;
+
+	private String summary;
+
+	private transient Counts counts = new Counts();
+
+	/**
+	 * Counts of instances classified and escalated, which may be shared between copies of a cascade.
+	 */
+	private static class Counts {
+
+		private final LongAdder nClassified = new LongAdder();
+		private final LongAdder nEscalated = new LongAdder();
+
+	}
+
+	/**
+	 * Create a cascade from two (untrained) classifiers.
+	 * 
+	 * @param fastClassifier the classifier to apply first
+	 * @param expensiveClassifier the classifier to apply whenever the first classifier is not confident
+	 * @param threshold the minimum probability output by the fast classifier to accept its prediction
+	 */
+	public CascadeClassifier(final Classifier fastClassifier, final Classifier expensiveClassifier, final double threshold) {
+		this.fastClassifier = fastClassifier;
+		this.expensiveClassifier = expensiveClassifier;
+		this.threshold = threshold;
+	}
+
+	@Override
+	public void buildClassifier(final Instances data) throws Exception {
+		fastClassifier.buildClassifier(data);
+		expensiveClassifier.buildClassifier(data);
+	}
+
+	/**
+	 * Returns true if the fast classifier is confident enough in a prediction that the expensive classifier is not needed.
+	 * 
+	 * @param distribution probabilities output by the fast classifier
+	 * @return
+	 */
+	boolean isConfident(final double[] distribution) {
+		for (double p : distribution) {
+			if (p >= threshold)
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public double[] distributionForInstance(final Instance instance) throws Exception {
+		Counts counts = this.counts;
+		counts.nClassified.increment();
+		double[] distribution = fastClassifier.distributionForInstance(instance);
+		if (isConfident(distribution))
+			return distribution;
+		counts.nEscalated.increment();
+		return expensiveClassifier.distributionForInstance(instance);
+	}
+
+	/**
+	 * Create a copy of this cascade (e.g. for use by another thread), which shares the counts of instances classified and escalated.
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	public CascadeClassifier copyWithSharedCounts() throws Exception {
+		CascadeClassifier copy = (CascadeClassifier)AbstractClassifier.makeCopy(this);
+		copy.counts = counts;
+		return copy;
+	}
+
+	/**
+	 * Get the number of instances classified by the cascade (and any copies sharing its counts).
+	 * 
+	 * @return
+	 */
+	public long getClassifiedCount() {
+		return counts.nClassified.sum();
+	}
+
+	/**
+	 * Get the number of instances escalated to the expensive classifier (including by any copies sharing its counts).
+	 * 
+	 * @return
+	 */
+	public long getEscalatedCount() {
+		return counts.nEscalated.sum();
+	}
+
+	/**
+	 * Get a summary of the fraction of instances escalated to the expensive classifier.
+	 * 
+	 * @return
+	 */
+	public String getEscalationSummary() {
+		long nClassified = getClassifiedCount();
+		long nEscalated = getEscalatedCount();
+		return String.format("Escalated to expensive classifier: %d of %d objects (%.1f%%)",
+				nEscalated, nClassified, nClassified == 0 ? 0.0 : nEscalated * 100.0 / nClassified);
+	}
+
+	public Classifier getFastClassifier() {
+		return fastClassifier;
+	}
+
+	public Classifier getExpensiveClassifier() {
+		return expensiveClassifier;
+	}
+
+	public double getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Get a summary of the performance of the cascade on held-out data, if available.
+	 * 
+	 * @return the summary, or null if the cascade has not been evaluated
+	 */
+	public String getSummary() {
+		return summary;
+	}
+
+	void setSummary(final String summary) {
+		this.summary = summary;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Cascade classifier (threshold ").append(threshold).append(")\n\n");
+		if (summary != null)
+			sb.append(summary).append("\n\n");
+		if (getClassifiedCount() > 0)
+			sb.append(getEscalationSummary()).append("\n\n");
+		sb.append("Fast classifier:\n\n").append(fastClassifier).append("\n\n");
+		sb.append("Expensive classifier:\n\n").append(expensiveClassifier).append("\n");
+		return sb.toString();
+	}
+
+	private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		counts = new Counts();
+	}
+
+}
@@ -0,0 +1,368 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import weka.classifiers.AbstractClassifier;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Compact, read-only representation of a trained random forest.
+ * <p>
+ * All trees are stored in flat arrays, with split thresholds and leaf class probabilities
+ * stored as either floats or (quantized) shorts.  Trees are laid out in pre-order, so that the left child
+ * of a split is always the next node; only the index of the right child needs to be stored.
+ * <p>
+ * Instances of this class are created using a {@link RandomForestCompactor}; they cannot be trained directly.
+ * They are immutable, and therefore safe to use from multiple threads.
+ */
+public class CompactRandomForest extends AbstractClassifier {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Precision used to store split thresholds and leaf probabilities.
+	 */
+	public static enum Precision {
+		/**
+		 * 32-bit floating point.
+		 */
+		FLOAT,
+		/**
+		 * 16-bit values, quantized according to the range of each attribute (for thresholds) or 0-1 (for probabilities).
+		 */
+		SHORT;
+	}
+
+	private final Precision precision;
+	private final int numClasses;
+
+	private final int[] roots;
+	private final int[] attributes;
+	private final int[] rightOrLeaf;
+	private final float[] propLeft;
+
+	private final float[] thresholdsFloat;
+	private final short[] thresholdsShort;
+	private final double[] thresholdMin;
+	private final double[] thresholdScale;
+
+	private final float[] leafFloat;
+	private final short[] leafShort;
+
+	private final int maxDepth;
+	private final List<String> summary = new ArrayList<>();
+
+
+	/**
+	 * Temporary node representation, used while building a compact forest.
+	 */
+	static class Node {
+
+		int attribute = -1;
+		double threshold;
+		double propLeft = 0.5;
+		Node left, right;
+		double[] distribution;
+
+		boolean isLeaf() {
+			return attribute < 0;
+		}
+
+		int countNodes() {
+			return isLeaf() ? 1 : 1 + left.countNodes() + right.countNodes();
+		}
+
+		int depth() {
+			return isLeaf() ? 0 : 1 + Math.max(left.depth(), right.depth());
+		}
+
+	}
+
+
+	CompactRandomForest(final List<Node> trees, final int numClasses, final int numAttributes, final Precision precision) {
+		this(trees, trees, numClasses, numAttributes, precision);
+	}
+
+	/**
+	 * Create a compact forest from the specified trees, quantizing thresholds according to the ranges found in a (possibly larger) set of trees.
+	 * This ensures that thresholds are unchanged when trees are dropped from a forest.
+	 */
+	CompactRandomForest(final List<Node> trees, final List<Node> quantizationTrees, final int numClasses, final int numAttributes, final Precision precision) {
+		this.precision = precision;
+		this.numClasses = numClasses;
+
+		int nNodes = 0;
+		int nLeaves = 0;
+		int depth = 0;
+		double[] attMin = new double[numAttributes];
+		double[] attMax = new double[numAttributes];
+		Arrays.fill(attMin, Double.POSITIVE_INFINITY);
+		Arrays.fill(attMax, Double.NEGATIVE_INFINITY);
+		for (Node tree : trees) {
+			int n = tree.countNodes();
+			nNodes += n;
+			nLeaves += (n + 1) / 2;
+			depth = Math.max(depth, tree.depth());
+		}
+		for (Node tree : quantizationTrees)
+			updateThresholdRanges(tree, attMin, attMax);
+		this.maxDepth = depth;
+
+		roots = new int[trees.size()];
+		attributes = new int[nNodes];
+		rightOrLeaf = new int[nNodes];
+		propLeft = new float[nNodes];
+		if (precision == Precision.SHORT) {
+			thresholdsFloat = null;
+			thresholdsShort = new short[nNodes];
+			thresholdMin = attMin;
+			thresholdScale = new double[numAttributes];
+			for (int a = 0; a < numAttributes; a++) {
+				if (attMax[a] > attMin[a])
+					thresholdScale[a] = (attMax[a] - attMin[a]) / 65535.0;
+				else
+					thresholdScale[a] = 1.0;
+			}
+			leafFloat = null;
+			leafShort = new short[nLeaves * numClasses];
+		} else {
+			thresholdsFloat = new float[nNodes];
+			thresholdsShort = null;
+			thresholdMin = null;
+			thresholdScale = null;
+			leafFloat = new float[nLeaves * numClasses];
+			leafShort = null;
+		}
+
+		int[] counts = new int[2];
+		for (int t = 0; t < trees.size(); t++) {
+			roots[t] = counts[0];
+			addNode(trees.get(t), counts);
+		}
+	}
+
+
+	private static void updateThresholdRanges(final Node node, final double[] attMin, final double[] attMax) {
+		if (node.isLeaf())
+			return;
+		attMin[node.attribute] = Math.min(attMin[node.attribute], node.threshold);
+		attMax[node.attribute] = Math.max(attMax[node.attribute], node.threshold);
+		updateThresholdRanges(node.left, attMin, attMax);
+		updateThresholdRanges(node.right, attMin, attMax);
+	}
+
+
+	/**
+	 * Add a node (and its descendants) to the flat arrays.
+	 * 
+	 * @param node
+	 * @param counts array containing the number of nodes and leaves added so far, updated by this method
+	 */
+	private void addNode(final Node node, final int[] counts) {
+		int ind = counts[0]++;
+		attributes[ind] = node.attribute;
+		if (node.isLeaf()) {
+			if (node.distribution == null) {
+				// Empty leaf, which makes no contribution
+				rightOrLeaf[ind] = -1;
+				return;
+			}
+			int leaf = counts[1]++;
+			rightOrLeaf[ind] = leaf;
+			for (int c = 0; c < numClasses; c++) {
+				double p = node.distribution[c];
+				if (leafShort != null)
+					leafShort[leaf * numClasses + c] = (short)(Math.round(p * 65535) - 32768);
+				else
+					leafFloat[leaf * numClasses + c] = (float)p;
+			}
+			return;
+		}
+		propLeft[ind] = (float)node.propLeft;
+		if (thresholdsShort != null) {
+			int a = node.attribute;
+			long q = Math.round((node.threshold - thresholdMin[a]) / thresholdScale[a]);
+			thresholdsShort[ind] = (short)(Math.max(0, Math.min(65535, q)) - 32768);
+		} else
+			thresholdsFloat[ind] = (float)node.threshold;
+		addNode(node.left, counts);
+		rightOrLeaf[ind] = counts[0];
+		addNode(node.right, counts);
+	}
+
+
+	private double getThreshold(final int node) {
+		if (thresholdsShort != null) {
+			int a = attributes[node];
+			return thresholdMin[a] + (thresholdsShort[node] + 32768) * thresholdScale[a];
+		}
+		return thresholdsFloat[node];
+	}
+
+
+	/**
+	 * Add the (weighted) class probabilities predicted by a single tree to an array.
+	 * 
+	 * @param tree index of the tree
+	 * @param instance
+	 * @param sums array to which the probabilities should be added
+	 */
+	void addTreeDistribution(final int tree, final Instance instance, final double[] sums) {
+		addDistribution(roots[tree], instance, sums, 1.0);
+	}
+
+
+	private void addDistribution(int node, final Instance instance, final double[] sums, final double weight) {
+		while (true) {
+			int a = attributes[node];
+			if (a < 0) {
+				int leaf = rightOrLeaf[node];
+				if (leaf < 0)
+					return;
+				int offset = leaf * numClasses;
+				for (int c = 0; c < numClasses; c++) {
+					if (leafShort != null)
+						sums[c] += weight * (leafShort[offset + c] + 32768) / 65535.0;
+					else
+						sums[c] += weight * leafFloat[offset + c];
+				}
+				return;
+			}
+			double value = instance.value(a);
+			if (Double.isNaN(value)) {
+				// Missing value - follow both branches, weighted by the proportion of training data in each
+				double p = propLeft[node];
+				addDistribution(node + 1, instance, sums, weight * p);
+				addDistribution(rightOrLeaf[node], instance, sums, weight * (1 - p));
+				return;
+			}
+			node = value < getThreshold(node) ? node + 1 : rightOrLeaf[node];
+		}
+	}
+
+
+	@Override
+	public double[] distributionForInstance(final Instance instance) throws Exception {
+		double[] sums = new double[numClasses];
+		for (int t = 0; t < roots.length; t++)
+			addTreeDistribution(t, instance, sums);
+		double total = 0;
+		for (double s : sums)
+			total += s;
+		if (total > 0) {
+			for (int c = 0; c < numClasses; c++)
+				sums[c] /= total;
+		}
+		return sums;
+	}
+
+
+	/**
+	 * Compact forests cannot be trained directly: instead, train a {@link weka.classifiers.trees.RandomForest}
+	 * and convert it with a {@link RandomForestCompactor}.
+	 * 
+	 * @throws Exception always, since the forest cannot be trained
+	 */
+	@Override
+	public void buildClassifier(final Instances data) throws Exception {
+		throw new Exception("CompactRandomForest cannot be trained directly - train a RandomForest and convert it using RandomForestCompactor.compact(forest, holdout) instead");
+	}
+
+
+	/**
+	 * Get the number of trees.
+	 * 
+	 * @return
+	 */
+	public int getNumTrees() {
+		return roots.length;
+	}
+
+	/**
+	 * Get the total number of nodes (splits and leaves) in all trees.
+	 * 
+	 * @return
+	 */
+	public int getNumNodes() {
+		return attributes.length;
+	}
+
+	/**
+	 * Get the precision used to store thresholds and probabilities.
+	 * 
+	 * @return
+	 */
+	public Precision getPrecision() {
+		return precision;
+	}
+
+	/**
+	 * Get an estimate of the memory required to store the trees, in bytes.
+	 * 
+	 * @return
+	 */
+	public long estimateMemoryBytes() {
+		long bytes = 4L * (roots.length + attributes.length + rightOrLeaf.length + propLeft.length);
+		if (thresholdsShort != null)
+			bytes += 2L * thresholdsShort.length + 16L * thresholdMin.length + 2L * leafShort.length;
+		else
+			bytes += 4L * thresholdsFloat.length + 4L * leafFloat.length;
+		return bytes;
+	}
+
+	/**
+	 * Get the summary of the compaction steps used to create this forest, including held-out accuracy.
+	 * 
+	 * @return
+	 */
+	public List<String> getCompactionSummary() {
+		return Collections.unmodifiableList(summary);
+	}
+
+	void addSummary(final String line) {
+		summary.add(line);
+	}
+
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Compact random forest\n\n");
+		sb.append(String.format("Trees: %d, nodes: %d, max depth: %d, precision: %s, approx. size: %.1f KB\n",
+				getNumTrees(), getNumNodes(), maxDepth, precision, estimateMemoryBytes() / 1024.0));
+		if (!summary.isEmpty()) {
+			sb.append("\nCompaction:\n");
+			for (String line : summary)
+				sb.append("    ").append(line).append("\n");
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,48 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Provider for the classifiers included with the QuPath Weka extension.
+ */
+public class DefaultWekaClassifierProvider implements WekaClassifierProvider {
+
+	@Override
+	public List<WekaClassifier> createClassifiers() {
+		List<WekaClassifier> classifiers = new ArrayList<>();
+		classifiers.add(new WekaClassifierBayesNet());
+		classifiers.add(new WekaClassifierJ48());
+		classifiers.add(new WekaClassifierOneR());
+		classifiers.add(new WekaClassifierRandomForests());
+		classifiers.add(new WekaClassifierSMO());
+		classifiers.add(new WekaClassifierGeneric("LogitBoost", "weka.classifiers.meta.LogitBoost", "-I 10 -W weka.classifiers.trees.DecisionStump"));
+		classifiers.add(new WekaClassifierKNN());
+		classifiers.add(new WekaClassifierCascade());
+		return classifiers;
+	}
+
+}
@@ -0,0 +1,76 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.util.Arrays;
+
+/**
+ * Hashable key representing a feature vector.
+ * <p>
+ * Values can optionally be quantized, so that feature vectors that differ only by a small amount
+ * are considered equal.
+ */
+public final class FeatureVectorKey {
+
+	private final long[] bits;
+	private final int hash;
+
+	/**
+	 * Create a key from the first <code>length</code> values of an array.
+	 * 
+	 * @param values
+	 * @param length
+	 * @param quantization If &gt; 0, values are rounded to the nearest multiple of this before comparison; otherwise exact values are used
+	 */
+	public FeatureVectorKey(final double[] values, final int length, final double quantization) {
+		bits = new long[length];
+		boolean doQuantize = quantization > 0 && !Double.isInfinite(quantization);
+		for (int i = 0; i < length; i++) {
+			double v = values[i];
+			if (Double.isNaN(v))
+				bits[i] = Double.doubleToLongBits(Double.NaN);
+			else if (doQuantize)
+				bits[i] = Math.round(v / quantization);
+			else
+				bits[i] = Double.doubleToLongBits(v + 0.0); // Adding 0.0 converts -0.0 to 0.0
+		}
+		hash = Arrays.hashCode(bits);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof FeatureVectorKey))
+			return false;
+		FeatureVectorKey other = (FeatureVectorKey)obj;
+		return hash == other.hash && Arrays.equals(bits, other.bits);
+	}
+
+}
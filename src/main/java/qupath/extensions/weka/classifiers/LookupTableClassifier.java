@@ -0,0 +1,353 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.lang.reflect.Field;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.bayes.BayesNet;
+import weka.classifiers.bayes.net.ParentSet;
+import weka.classifiers.bayes.net.estimate.SimpleEstimator;
+import weka.classifiers.rules.OneR;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.filters.Filter;
+import weka.filters.supervised.attribute.Discretize;
+import weka.filters.unsupervised.attribute.ReplaceMissingValues;
+
+/**
+ * Read-only classifier that reproduces the predictions of a trained Weka classifier using flat lookup tables,
+ * avoiding Weka's filters and estimator objects when classifying each instance.
+ * <p>
+ * Compiled classifiers are created with {@link #compile(Classifier)}, and give the same predictions as the original.
+ * They are immutable, and therefore safe to use from multiple threads.
+ */
+public abstract class LookupTableClassifier extends AbstractClassifier {
+
+	private static final long serialVersionUID = 1L;
+
+	final private static Logger logger = LoggerFactory.getLogger(LookupTableClassifier.class);
+
+	private final String description;
+
+
+	LookupTableClassifier(final Classifier classifier) {
+		this.description = classifier.toString();
+	}
+
+
+	/**
+	 * Compile a trained classifier into lookup tables, if possible.
+	 * <p>
+	 * Only {@link OneR} and {@link BayesNet} classifiers are currently supported;
+	 * other classifiers, or those using options that cannot be represented by the tables, are returned unchanged.
+	 * 
+	 * @param classifier the trained classifier
+	 * @return a compiled classifier, or the original classifier if it could not be compiled
+	 */
+	public static Classifier compile(final Classifier classifier) {
+		LookupTableClassifier compiled;
+		try {
+			if (classifier instanceof OneR)
+				compiled = new OneRTable((OneR)classifier);
+			else if (classifier instanceof BayesNet)
+				compiled = new BayesNetTable((BayesNet)classifier);
+			else
+				return classifier;
+		} catch (Exception e) {
+			logger.warn("Unable to compile {} - the Weka implementation will be used ({})", classifier.getClass().getSimpleName(), e.getLocalizedMessage());
+			return classifier;
+		}
+		logger.info("Compiled {} into lookup tables", classifier.getClass().getSimpleName());
+		return compiled;
+	}
+
+
+	/**
+	 * Lookup table classifiers cannot be trained directly - train the Weka classifier instead, 
+	 * and convert it using {@link #compile(Classifier)}.
+	 * 
+	 * @throws Exception always
+	 */
+	@Override
+	public void buildClassifier(final Instances data) throws Exception {
+		throw new Exception("LookupTableClassifier cannot be trained directly - train a OneR or BayesNet classifier and convert it using LookupTableClassifier.compile(classifier) instead");
+	}
+
+
+	/**
+	 * Get a short description of the lookup tables.
+	 */
+	abstract String getTableSummary();
+
+	@Override
+	public String toString() {
+		return getTableSummary() + "\n\n" + description;
+	}
+
+
+	/**
+	 * Find the index of the first value in a sorted array that is &gt;= the specified value (or the array length, if there is none).
+	 */
+	static int lowerBound(final double[] values, final double value) {
+		int lo = 0;
+		int hi = values.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (values[mid] < value)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Find the index of the first value in a sorted array that is &gt; the specified value (or the array length, if there is none).
+	 */
+	static int upperBound(final double[] values, final double value) {
+		int lo = 0;
+		int hi = values.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (values[mid] <= value)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	private static Object getField(final Object object, final Class<?> cls, final String name) throws ReflectiveOperationException {
+		Field field = cls.getDeclaredField(name);
+		field.setAccessible(true);
+		return field.get(object);
+	}
+
+
+	/**
+	 * Compiled OneR rule: a sorted array of breakpoints for a single attribute, and the class for each interval.
+	 */
+	static final class OneRTable extends LookupTableClassifier {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int numClasses;
+		private final int attribute;
+		private final boolean nominal;
+		private final double[] breakpoints;
+		private final int[] classifications;
+		private final int missingClass;
+
+		OneRTable(final OneR oneR) throws Exception {
+			super(oneR);
+			// Weka falls back to ZeroR if there is only a class attribute - not worth compiling
+			if (getField(oneR, OneR.class, "m_ZeroR") != null)
+				throw new UnsupportedOperationException("No rule to compile");
+			Object rule = getField(oneR, OneR.class, "m_rule");
+			Class<?> ruleClass = rule.getClass();
+			numClasses = ((Attribute)getField(rule, ruleClass, "m_class")).numValues();
+			Attribute att = (Attribute)getField(rule, ruleClass, "m_attr");
+			attribute = att.index();
+			nominal = att.isNominal();
+			double[] bp = (double[])getField(rule, ruleClass, "m_breakpoints");
+			breakpoints = bp == null ? new double[0] : bp.clone();
+			classifications = ((int[])getField(rule, ruleClass, "m_classifications")).clone();
+			int missing = (Integer)getField(rule, ruleClass, "m_missingValueClass");
+			missingClass = missing == -1 ? 0 : missing;
+		}
+
+		@Override
+		public double[] distributionForInstance(final Instance instance) throws Exception {
+			double[] distribution = new double[numClasses];
+			distribution[classifyIndex(instance)] = 1.0;
+			return distribution;
+		}
+
+		private int classifyIndex(final Instance instance) {
+			double value = instance.value(attribute);
+			if (Double.isNaN(value))
+				return missingClass;
+			if (nominal)
+				return classifications[(int)value];
+			// Weka's OneR counts the breakpoints that are <= the value
+			return classifications[upperBound(breakpoints, value)];
+		}
+
+		@Override
+		String getTableSummary() {
+			return String.format("Compiled OneR (attribute %d, %d intervals)", attribute, classifications.length);
+		}
+
+	}
+
+
+	/**
+	 * Compiled Bayes net: cut points to discretize each attribute, the bin to use for missing values,
+	 * and a table of log probabilities for each attribute (indexed by parent configuration and bin).
+	 * <p>
+	 * This currently supports only networks using a {@link SimpleEstimator}.
+	 */
+	static final class BayesNetTable extends LookupTableClassifier {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int numClasses;
+		private final int numAttributes;
+		private final int classIndex;
+		private final boolean[] discretize;
+		private final double[][] cutPoints;
+		private final double[] missingBins;
+		private final int[] cardinality;
+		private final int[][] parents;
+		private final double[][] logProbabilities;
+
+		BayesNetTable(final BayesNet bayesNet) throws Exception {
+			super(bayesNet);
+			if (bayesNet.getEstimator() == null || bayesNet.getEstimator().getClass() != SimpleEstimator.class)
+				throw new UnsupportedOperationException("Only the SimpleEstimator is supported");
+			Instances header = bayesNet.m_Instances;
+			numAttributes = header.numAttributes();
+			classIndex = header.classIndex();
+			numClasses = header.numClasses();
+
+			// Determine how to discretize each attribute
+			Discretize discretizeFilter = (Discretize)getField(bayesNet, BayesNet.class, "m_DiscretizeFilter");
+			discretize = new boolean[numAttributes];
+			cutPoints = new double[numAttributes][];
+			Instances input = discretizeFilter == null ? null : (Instances)getField(discretizeFilter, Filter.class, "m_InputFormat");
+			if (input != null) {
+				for (int a = 0; a < numAttributes; a++) {
+					if (a == classIndex || !input.attribute(a).isNumeric())
+						continue;
+					discretize[a] = true;
+					double[] cp = discretizeFilter.getCutPoints(a);
+					cutPoints[a] = cp == null ? new double[0] : cp.clone();
+				}
+			}
+
+			// Determine the replacement for missing values, by passing an instance with all values missing through the filter
+			ReplaceMissingValues missingFilter = (ReplaceMissingValues)getField(bayesNet, BayesNet.class, "m_MissingValuesFilter");
+			missingBins = new double[numAttributes];
+			Filter filter = Filter.makeCopy(missingFilter);
+			Instance allMissing = new DenseInstance(numAttributes);
+			allMissing.setDataset(header);
+			filter.input(allMissing);
+			Instance replaced = filter.output();
+			for (int a = 0; a < numAttributes; a++)
+				missingBins[a] = replaced.value(a);
+
+			// Build log probability tables
+			cardinality = new int[numAttributes];
+			for (int a = 0; a < numAttributes; a++)
+				cardinality[a] = header.attribute(a).numValues();
+			parents = new int[numAttributes][];
+			logProbabilities = new double[numAttributes][];
+			for (int a = 0; a < numAttributes; a++) {
+				ParentSet parentSet = bayesNet.getParentSet(a);
+				parents[a] = new int[parentSet.getNrOfParents()];
+				for (int p = 0; p < parents[a].length; p++)
+					parents[a][p] = parentSet.getParent(p);
+				int nConfigurations = parentSet.getCardinalityOfParents();
+				double[] table = new double[nConfigurations * cardinality[a]];
+				for (int cpt = 0; cpt < nConfigurations; cpt++) {
+					for (int v = 0; v < cardinality[a]; v++)
+						table[cpt * cardinality[a] + v] = Math.log(bayesNet.getDistributions()[a][cpt].getProbability(v));
+				}
+				logProbabilities[a] = table;
+			}
+		}
+
+		/**
+		 * Determine the bin for each attribute, after discretization and replacing missing values.
+		 */
+		private double[] getBins(final Instance instance) {
+			double[] bins = new double[numAttributes];
+			for (int a = 0; a < numAttributes; a++) {
+				if (a == classIndex)
+					continue;
+				double value = instance.value(a);
+				if (Double.isNaN(value))
+					bins[a] = missingBins[a];
+				else if (discretize[a])
+					bins[a] = lowerBound(cutPoints[a], value);
+				else
+					bins[a] = value;
+			}
+			return bins;
+		}
+
+		@Override
+		public double[] distributionForInstance(final Instance instance) throws Exception {
+			double[] bins = getBins(instance);
+			double[] probs = new double[numClasses];
+			for (int c = 0; c < numClasses; c++) {
+				// Follow the same order of summation as Weka, so that results are identical
+				double logP = 0;
+				for (int a = 0; a < numAttributes; a++) {
+					double cpt = 0;
+					for (int parent : parents[a]) {
+						if (parent == classIndex)
+							cpt = cpt * numClasses + c;
+						else
+							cpt = cpt * cardinality[parent] + bins[parent];
+					}
+					int value = a == classIndex ? c : (int)bins[a];
+					logP += logProbabilities[a][(int)cpt * cardinality[a] + value];
+				}
+				probs[c] += logP;
+			}
+			double max = probs[0];
+			for (int c = 1; c < numClasses; c++) {
+				if (probs[c] > max)
+					max = probs[c];
+			}
+			for (int c = 0; c < numClasses; c++)
+				probs[c] = Math.exp(probs[c] - max);
+			try {
+				Utils.normalize(probs);
+			} catch (IllegalArgumentException e) {
+				return new double[numClasses];
+			}
+			return probs;
+		}
+
+		@Override
+		String getTableSummary() {
+			int nEntries = 0;
+			for (double[] table : logProbabilities)
+				nEntries += table.length;
+			return String.format("Compiled Bayes net (%d attributes, %d table entries)", numAttributes, nEntries);
+		}
+
+	}
+
+}
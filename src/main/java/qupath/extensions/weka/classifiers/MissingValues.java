@@ -0,0 +1,299 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Policies and helper methods for handling objects with missing (NaN) measurements.
+ */
+public class MissingValues {
+
+	/**
+	 * Supported ways of handling objects with missing measurements.
+	 * <p>
+	 * Objects without any of the required measurements are always skipped, unless a fallback class is used.
+	 */
+	public static enum Policy {
+		/**
+		 * Pass missing values to Weka, and leave it to the classifier to handle them.
+		 */
+		NONE,
+		/**
+		 * Skip objects with any missing values, both during training and classification.
+		 */
+		SKIP,
+		/**
+		 * Replace missing values with the mean value of the measurement in the training data.
+		 */
+		IMPUTE_MEAN,
+		/**
+		 * Replace missing values with the median value of the measurement in the training data.
+		 */
+		IMPUTE_MEDIAN,
+		/**
+		 * Assign objects with any missing values to a fixed fallback class, rather than applying the classifier.
+		 */
+		FALLBACK_CLASS;
+
+		/**
+		 * Returns true if missing values should be replaced by values learned from the training data.
+		 * 
+		 * @return
+		 */
+		public boolean isImputation() {
+			return this == IMPUTE_MEAN || this == IMPUTE_MEDIAN;
+		}
+	}
+
+
+	/**
+	 * Compute the mean of each non-class attribute, ignoring missing values.
+	 * 
+	 * @param instances
+	 * @return array of means, with one entry per non-class attribute (in order); NaN if all values are missing
+	 */
+	public static double[] computeMeans(final Instances instances) {
+		int[] attributes = getFeatureIndices(instances);
+		double[] means = new double[attributes.length];
+		for (int i = 0; i < attributes.length; i++) {
+			double sum = 0;
+			int n = 0;
+			for (Instance instance : instances) {
+				double value = instance.value(attributes[i]);
+				if (!Double.isNaN(value)) {
+					sum += value;
+					n++;
+				}
+			}
+			means[i] = n == 0 ? Double.NaN : sum / n;
+		}
+		return means;
+	}
+
+
+	/**
+	 * Compute the median of each non-class attribute, ignoring missing values.
+	 * 
+	 * @param instances
+	 * @return array of medians, with one entry per non-class attribute (in order); NaN if all values are missing
+	 */
+	public static double[] computeMedians(final Instances instances) {
+		int[] attributes = getFeatureIndices(instances);
+		double[] medians = new double[attributes.length];
+		double[] values = new double[instances.numInstances()];
+		for (int i = 0; i < attributes.length; i++) {
+			int n = 0;
+			for (Instance instance : instances) {
+				double value = instance.value(attributes[i]);
+				if (!Double.isNaN(value))
+					values[n++] = value;
+			}
+			if (n == 0) {
+				medians[i] = Double.NaN;
+				continue;
+			}
+			Arrays.sort(values, 0, n);
+			if (n % 2 == 1)
+				medians[i] = values[n / 2];
+			else
+				medians[i] = (values[n / 2 - 1] + values[n / 2]) / 2.0;
+		}
+		return medians;
+	}
+
+
+	private static int[] getFeatureIndices(final Instances instances) {
+		int classIndex = instances.classIndex();
+		int[] indices = new int[classIndex < 0 ? instances.numAttributes() : instances.numAttributes() - 1];
+		int ind = 0;
+		for (int a = 0; a < instances.numAttributes(); a++) {
+			if (a != classIndex)
+				indices[ind++] = a;
+		}
+		return indices;
+	}
+
+
+	/**
+	 * Apply a missing value policy to training data.
+	 * <p>
+	 * Instances with missing values are removed if the policy is {@link Policy#SKIP} or {@link Policy#FALLBACK_CLASS},
+	 * or have their missing values replaced if the policy uses imputation.
+	 * 
+	 * @param instances the training instances, which will be modified in place
+	 * @param policy
+	 * @param imputationValues values to use for imputation, one per non-class attribute; required only if the policy uses imputation
+	 * @return the number of instances that were affected
+	 */
+	public static int applyToTrainingData(final Instances instances, final Policy policy, final double[] imputationValues) {
+		if (policy == null || policy == Policy.NONE)
+			return 0;
+		int[] attributes = getFeatureIndices(instances);
+		int nAffected = 0;
+		// Collect the instances to keep, rather than deleting one at a time (which would require shifting all later instances)
+		List<Instance> kept = policy.isImputation() ? null : new ArrayList<>(instances.numInstances());
+		for (Instance instance : instances) {
+			boolean hasMissing = false;
+			for (int a = 0; a < attributes.length; a++) {
+				if (!instance.isMissing(attributes[a]))
+					continue;
+				hasMissing = true;
+				if (!policy.isImputation())
+					break;
+				instance.setValue(attributes[a], imputationValues[a]);
+			}
+			if (hasMissing)
+				nAffected++;
+			else if (kept != null)
+				kept.add(instance);
+		}
+		if (kept != null && nAffected > 0) {
+			instances.delete();
+			for (Instance instance : kept)
+				instances.add(instance);
+		}
+		return nAffected;
+	}
+
+
+	/**
+	 * Counts of objects handled by a classifier, according to whether they had missing values.
+	 * <p>
+	 * Counts are updated atomically, so that they can be shared across classification threads.
+	 */
+	public static class Counts {
+
+		private final AtomicLong nComplete = new AtomicLong();
+		private final AtomicLong nNoMeasurements = new AtomicLong();
+		private final AtomicLong nPassed = new AtomicLong();
+		private final AtomicLong nSkipped = new AtomicLong();
+		private final AtomicLong nImputed = new AtomicLong();
+		private final AtomicLong nFallback = new AtomicLong();
+
+		void incrementComplete() {
+			nComplete.incrementAndGet();
+		}
+
+		void incrementNoMeasurements() {
+			nNoMeasurements.incrementAndGet();
+		}
+
+		void incrementPassed() {
+			nPassed.incrementAndGet();
+		}
+
+		void incrementSkipped() {
+			nSkipped.incrementAndGet();
+		}
+
+		void incrementImputed() {
+			nImputed.incrementAndGet();
+		}
+
+		void incrementFallback() {
+			nFallback.incrementAndGet();
+		}
+
+		/**
+		 * Number of objects with all required measurements.
+		 * 
+		 * @return
+		 */
+		public long getCompleteCount() {
+			return nComplete.get();
+		}
+
+		/**
+		 * Number of objects skipped because none of the required measurements were available.
+		 * 
+		 * @return
+		 */
+		public long getNoMeasurementsCount() {
+			return nNoMeasurements.get();
+		}
+
+		/**
+		 * Number of objects with missing values that were passed to Weka unchanged.
+		 * 
+		 * @return
+		 */
+		public long getPassedCount() {
+			return nPassed.get();
+		}
+
+		/**
+		 * Number of objects skipped because of missing values.
+		 * 
+		 * @return
+		 */
+		public long getSkippedCount() {
+			return nSkipped.get();
+		}
+
+		/**
+		 * Number of objects with missing values that were imputed.
+		 * 
+		 * @return
+		 */
+		public long getImputedCount() {
+			return nImputed.get();
+		}
+
+		/**
+		 * Number of objects assigned to the fallback class.
+		 * 
+		 * @return
+		 */
+		public long getFallbackCount() {
+			return nFallback.get();
+		}
+
+		/**
+		 * Reset all counts to zero.
+		 */
+		public void reset() {
+			nComplete.set(0);
+			nNoMeasurements.set(0);
+			nPassed.set(0);
+			nSkipped.set(0);
+			nImputed.set(0);
+			nFallback.set(0);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Missing values: %d complete, %d without measurements, %d passed to Weka, %d skipped, %d imputed, %d fallback",
+					getCompleteCount(), getNoMeasurementsCount(), getPassedCount(), getSkippedCount(), getImputedCount(), getFallbackCount());
+		}
+
+	}
+
+}
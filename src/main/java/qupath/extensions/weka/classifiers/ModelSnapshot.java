@@ -0,0 +1,228 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import qupath.lib.objects.classes.PathClass;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.filters.Filter;
+
+/**
+ * Immutable snapshot of everything learned when training a {@link WekaClassifier}.
+ * <p>
+ * A new snapshot is created whenever a classifier is trained or loaded, and published in a single (volatile) write.
+ * Classification reads the snapshot once, and then uses only its contents - so it cannot see a partially-updated model,
+ * and does not need to lock while the classifier is being retrained on another thread.
+ * <p>
+ * Weka classifiers and filters that are not thread-safe are never used directly; rather, each thread borrows its own copies
+ * from a pool held by the snapshot, which are discarded along with it.
+ * The pool only grows to the number of threads classifying simultaneously, and (unlike thread-local copies) does not keep
+ * copies reachable from long-lived threads after the snapshot has been replaced.
+ */
+final class ModelSnapshot {
+
+	private static final AtomicLong versionCounter = new AtomicLong();
+
+	private final long version = versionCounter.incrementAndGet();
+	private final long timestamp;
+	private final List<Attribute> trainingAttributes;
+	private final Attribute classAttribute;
+	private final Classifier classifier;
+	private final Filter filter;
+	private final List<String> measurements;
+	private final Map<String, PathClass> pathClassMap;
+	private final double[] trainingMeans;
+	private final double[] trainingMedians;
+	private final ProbabilityCalibration calibration;
+	private final boolean classifierThreadSafe;
+
+	private final Queue<Worker> idleWorkers = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Classifier and filter for use by a single thread at a time.
+	 */
+	static class Worker {
+
+		final Classifier classifier;
+		final Filter filter;
+		final Instances header;
+
+		private Worker(final Classifier classifier, final Filter filter, final Instances header) {
+			this.classifier = classifier;
+			this.filter = filter;
+			this.header = header;
+		}
+
+	}
+
+	ModelSnapshot(final long timestamp, final List<Attribute> trainingAttributes, final Attribute classAttribute,
+			final Classifier classifier, final Filter filter, final List<String> measurements, final Map<String, PathClass> pathClassMap,
+			final double[] trainingMeans, final double[] trainingMedians, final ProbabilityCalibration calibration, final boolean classifierThreadSafe) {
+		this.timestamp = timestamp;
+		this.trainingAttributes = trainingAttributes == null ? Collections.<Attribute>emptyList() : Collections.unmodifiableList(new ArrayList<>(trainingAttributes));
+		this.classAttribute = classAttribute;
+		this.classifier = classifier;
+		this.filter = filter;
+		this.measurements = measurements == null ? Collections.<String>emptyList() : Collections.unmodifiableList(new ArrayList<>(measurements));
+		this.pathClassMap = pathClassMap == null ? Collections.<String, PathClass>emptyMap() : Collections.unmodifiableMap(new TreeMap<>(pathClassMap));
+		this.trainingMeans = trainingMeans == null ? null : trainingMeans.clone();
+		this.trainingMedians = trainingMedians == null ? null : trainingMedians.clone();
+		this.calibration = calibration;
+		this.classifierThreadSafe = classifierThreadSafe;
+	}
+
+	long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Get a number that uniquely identifies this snapshot within the current JVM.
+	 * Versions increase monotonically, so a snapshot created later always has a higher version
+	 * (unlike timestamps, which may be identical for two snapshots).
+	 * 
+	 * @return
+	 */
+	long getVersion() {
+		return version;
+	}
+
+	List<Attribute> getTrainingAttributes() {
+		return trainingAttributes;
+	}
+
+	Attribute getClassAttribute() {
+		return classAttribute;
+	}
+
+	/**
+	 * Get the trained classifier.  This should not be used for classification directly unless it is thread-safe;
+	 * use {@link #acquireWorker()} instead.
+	 * 
+	 * @return
+	 */
+	Classifier getClassifier() {
+		return classifier;
+	}
+
+	Filter getFilter() {
+		return filter;
+	}
+
+	List<String> getMeasurements() {
+		return measurements;
+	}
+
+	Map<String, PathClass> getPathClassMap() {
+		return pathClassMap;
+	}
+
+	PathClass getPathClass(final String name) {
+		return pathClassMap.get(name);
+	}
+
+	/**
+	 * Get the values to use for imputation with the specified policy, or null if no imputation should be applied.
+	 * 
+	 * @param policy
+	 * @return
+	 */
+	double[] getImputationValues(final MissingValues.Policy policy) {
+		if (policy == MissingValues.Policy.IMPUTE_MEAN)
+			return trainingMeans;
+		if (policy == MissingValues.Policy.IMPUTE_MEDIAN)
+			return trainingMedians;
+		return null;
+	}
+
+	double[] getTrainingMeans() {
+		return trainingMeans;
+	}
+
+	double[] getTrainingMedians() {
+		return trainingMedians;
+	}
+
+	/**
+	 * Get the calibration to apply to predicted probabilities, or null if probabilities should not be calibrated.
+	 * 
+	 * @return
+	 */
+	ProbabilityCalibration getCalibration() {
+		return calibration;
+	}
+
+	boolean isValid() {
+		return classifier != null;
+	}
+
+	/**
+	 * Get a classifier and filter to use for predictions on the current thread, creating copies if none are available.
+	 * The worker must not be used by any other thread until it is returned with {@link #releaseWorker(Worker)}.
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	Worker acquireWorker() throws Exception {
+		Worker worker = idleWorkers.poll();
+		if (worker == null) {
+			Classifier classifierCopy = classifierThreadSafe ? classifier : copyClassifier(classifier);
+			Filter filterCopy = filter == null ? null : Filter.makeCopy(filter);
+			Instances header = new Instances("Classification", new ArrayList<>(trainingAttributes), 1);
+			header.setClassIndex(header.numAttributes()-1);
+			worker = new Worker(classifierCopy, filterCopy, header);
+		}
+		return worker;
+	}
+
+	/**
+	 * Copy a classifier for use by a worker.  Copies of a {@link CascadeClassifier} share its escalation counts, 
+	 * so that these include all threads.
+	 */
+	private static Classifier copyClassifier(final Classifier classifier) throws Exception {
+		if (classifier instanceof CascadeClassifier)
+			return ((CascadeClassifier)classifier).copyWithSharedCounts();
+		return AbstractClassifier.makeCopy(classifier);
+	}
+
+	/**
+	 * Return a worker to the pool, so that it can be reused by another thread.
+	 * 
+	 * @param worker
+	 */
+	void releaseWorker(final Worker worker) {
+		idleWorkers.offer(worker);
+	}
+
+}
@@ -0,0 +1,182 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, least-recently-used cache of class probability distributions, keyed by feature vector.
+ * <p>
+ * This is useful whenever many objects share identical (or, with quantization, near-identical)
+ * feature vectors - in which case the classifier only needs to be applied once.
+ * <p>
+ * The cache is tied to a model version, and is cleared automatically whenever a newer version is seen.
+ * Lookups and stores for any other version are ignored, so that a thread still classifying with an older model
+ * cannot add stale distributions after the cache has been cleared for a newer one.
+ */
+public class PredictionCache {
+
+	private final int maxSize;
+	private final double quantization;
+
+	private long modelVersion = Long.MIN_VALUE;
+
+	private long nHits = 0;
+	private long nMisses = 0;
+	private long nEvictions = 0;
+
+	private final Map<FeatureVectorKey, double[]> map;
+
+	/**
+	 * Create a new prediction cache.
+	 * 
+	 * @param maxSize The maximum number of distributions to retain
+	 * @param quantization Quantization to apply to feature values before comparison (0 for exact matching)
+	 */
+	public PredictionCache(final int maxSize, final double quantization) {
+		if (maxSize <= 0)
+			throw new IllegalArgumentException("Prediction cache size must be > 0!");
+		this.maxSize = maxSize;
+		this.quantization = quantization;
+		this.map = new LinkedHashMap<FeatureVectorKey, double[]>(Math.min(maxSize, 1024), 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<FeatureVectorKey, double[]> eldest) {
+				if (size() > PredictionCache.this.maxSize) {
+					nEvictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Create a key for the first <code>length</code> values, using this cache's quantization.
+	 * 
+	 * @param values
+	 * @param length
+	 * @return
+	 */
+	public FeatureVectorKey createKey(final double[] values, final int length) {
+		return new FeatureVectorKey(values, length, quantization);
+	}
+
+	/**
+	 * Ensure the cache is valid for a model with the specified version, clearing it if the version is newer than
+	 * the one currently cached.
+	 * <p>
+	 * Versions are expected to increase monotonically; an older version never replaces a newer one.
+	 * 
+	 * @param version
+	 */
+	public synchronized void validate(final long version) {
+		if (version > modelVersion) {
+			map.clear();
+			modelVersion = version;
+		}
+	}
+
+	/**
+	 * Get a cached distribution, or null if none is available for the specified model version.
+	 * 
+	 * @param version
+	 * @param key
+	 * @return
+	 */
+	public synchronized double[] get(final long version, final FeatureVectorKey key) {
+		double[] distribution = version == modelVersion ? map.get(key) : null;
+		if (distribution == null)
+			nMisses++;
+		else
+			nHits++;
+		return distribution;
+	}
+
+	/**
+	 * Store a distribution in the cache.  This is ignored if the version does not match the one the cache was
+	 * last validated for.
+	 * 
+	 * @param version
+	 * @param key
+	 * @param distribution
+	 */
+	public synchronized void put(final long version, final FeatureVectorKey key, final double[] distribution) {
+		if (version == modelVersion)
+			map.put(key, distribution);
+	}
+
+	/**
+	 * Remove all cached distributions, and reset the metrics.
+	 */
+	public synchronized void clear() {
+		map.clear();
+		nHits = 0;
+		nMisses = 0;
+		nEvictions = 0;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public double getQuantization() {
+		return quantization;
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	public synchronized long getHitCount() {
+		return nHits;
+	}
+
+	public synchronized long getMissCount() {
+		return nMisses;
+	}
+
+	public synchronized long getEvictionCount() {
+		return nEvictions;
+	}
+
+	/**
+	 * Get the proportion of lookups that were successful, or NaN if there have been no lookups.
+	 * 
+	 * @return
+	 */
+	public synchronized double getHitRate() {
+		long n = nHits + nMisses;
+		return n == 0 ? Double.NaN : (double)nHits / n;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("Prediction cache (size=%d/%d, hits=%d, misses=%d, evictions=%d, hit rate=%.3f)",
+				map.size(), maxSize, nHits, nMisses, nEvictions, getHitRate());
+	}
+
+}
@@ -0,0 +1,337 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Calibration of the class probabilities output by a classifier.
+ * <p>
+ * Each class is calibrated separately (one-vs-rest), using either Platt scaling (fitting a sigmoid) or isotonic regression,
+ * and the calibrated probabilities are then renormalized.
+ * Once fitted, each calibration function is stored as a lookup table - so applying the calibration is cheap,
+ * regardless of the method used.
+ * <p>
+ * Instances are immutable, and therefore safe to use from multiple threads.
+ */
+public class ProbabilityCalibration implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Supported calibration methods.
+	 */
+	public static enum Method {
+		/**
+		 * Use raw probabilities, without calibration.
+		 */
+		NONE,
+		/**
+		 * Fit a sigmoid to the raw probabilities for each class (Platt scaling).
+		 */
+		PLATT,
+		/**
+		 * Fit a monotonically-increasing step function to the raw probabilities for each class (isotonic regression).
+		 */
+		ISOTONIC;
+	}
+
+	/**
+	 * Number of entries in the lookup table for each class.
+	 */
+	private static final int LUT_SIZE = 1024;
+
+	private final Method method;
+	private final int nClasses;
+	private final double[] lut;
+
+	private final int nSamples;
+	private final double brierBefore;
+	private final double brierAfter;
+
+
+	private ProbabilityCalibration(final Method method, final int nClasses, final double[] lut, final int nSamples, final double brierBefore, final double brierAfter) {
+		this.method = method;
+		this.nClasses = nClasses;
+		this.lut = lut;
+		this.nSamples = nSamples;
+		this.brierBefore = brierBefore;
+		this.brierAfter = brierAfter;
+	}
+
+
+	/**
+	 * Fit a calibration from the raw probabilities predicted for held-out data.
+	 * 
+	 * @param method the calibration method; must not be NONE
+	 * @param distributions raw class probabilities predicted for each held-out object
+	 * @param labels the true class index for each held-out object
+	 * @param nClasses the number of classes
+	 * @return
+	 */
+	public static ProbabilityCalibration fit(final Method method, final double[][] distributions, final int[] labels, final int nClasses) {
+		if (method == null || method == Method.NONE)
+			throw new IllegalArgumentException("A calibration method is required");
+		int n = distributions.length;
+		double[] lut = new double[nClasses * LUT_SIZE];
+		double[] x = new double[n];
+		boolean[] y = new boolean[n];
+		for (int c = 0; c < nClasses; c++) {
+			int nPositive = 0;
+			for (int i = 0; i < n; i++) {
+				x[i] = distributions[i][c];
+				y[i] = labels[i] == c;
+				if (y[i])
+					nPositive++;
+			}
+			double[] classLut;
+			if (nPositive == 0 || nPositive == n)
+				classLut = createIdentityLUT();
+			else if (method == Method.PLATT)
+				classLut = fitPlatt(x, y, nPositive);
+			else
+				classLut = fitIsotonic(x, y);
+			System.arraycopy(classLut, 0, lut, c * LUT_SIZE, LUT_SIZE);
+		}
+		ProbabilityCalibration uncalibrated = new ProbabilityCalibration(method, nClasses, null, n, Double.NaN, Double.NaN);
+		ProbabilityCalibration calibration = new ProbabilityCalibration(method, nClasses, lut, n, Double.NaN, Double.NaN);
+		return new ProbabilityCalibration(method, nClasses, lut, n,
+				uncalibrated.computeBrierScore(distributions, labels),
+				calibration.computeBrierScore(distributions, labels));
+	}
+
+
+	private static double[] createIdentityLUT() {
+		double[] lut = new double[LUT_SIZE];
+		for (int i = 0; i < LUT_SIZE; i++)
+			lut[i] = i / (double)(LUT_SIZE - 1);
+		return lut;
+	}
+
+
+	/**
+	 * Fit a sigmoid 1/(1+exp(A*x+B)), using the method of Platt with the improvements described by Lin, Lin &amp; Weng (2007).
+	 */
+	private static double[] fitPlatt(final double[] x, final boolean[] y, final int nPositive) {
+		int n = x.length;
+		int nNegative = n - nPositive;
+		double hiTarget = (nPositive + 1.0) / (nPositive + 2.0);
+		double loTarget = 1.0 / (nNegative + 2.0);
+		double[] t = new double[n];
+		for (int i = 0; i < n; i++)
+			t[i] = y[i] ? hiTarget : loTarget;
+
+		double a = 0;
+		double b = Math.log((nNegative + 1.0) / (nPositive + 1.0));
+		double fval = plattObjective(x, t, a, b);
+		double sigma = 1e-12;
+		for (int iter = 0; iter < 100; iter++) {
+			// Gradient & Hessian
+			double h11 = sigma, h22 = sigma, h21 = 0, g1 = 0, g2 = 0;
+			for (int i = 0; i < n; i++) {
+				double fApB = x[i] * a + b;
+				double p, q;
+				if (fApB >= 0) {
+					p = Math.exp(-fApB) / (1.0 + Math.exp(-fApB));
+					q = 1.0 / (1.0 + Math.exp(-fApB));
+				} else {
+					p = 1.0 / (1.0 + Math.exp(fApB));
+					q = Math.exp(fApB) / (1.0 + Math.exp(fApB));
+				}
+				double d2 = p * q;
+				h11 += x[i] * x[i] * d2;
+				h22 += d2;
+				h21 += x[i] * d2;
+				double d1 = t[i] - p;
+				g1 += x[i] * d1;
+				g2 += d1;
+			}
+			if (Math.abs(g1) < 1e-5 && Math.abs(g2) < 1e-5)
+				break;
+			// Newton direction
+			double det = h11 * h22 - h21 * h21;
+			double dA = -(h22 * g1 - h21 * g2) / det;
+			double dB = -(-h21 * g1 + h11 * g2) / det;
+			double gd = g1 * dA + g2 * dB;
+			// Line search
+			double step = 1;
+			while (step >= 1e-10) {
+				double newA = a + step * dA;
+				double newB = b + step * dB;
+				double newF = plattObjective(x, t, newA, newB);
+				if (newF < fval + 1e-4 * step * gd) {
+					a = newA;
+					b = newB;
+					fval = newF;
+					break;
+				}
+				step /= 2.0;
+			}
+			if (step < 1e-10)
+				break;
+		}
+
+		double[] lut = new double[LUT_SIZE];
+		for (int i = 0; i < LUT_SIZE; i++) {
+			double fApB = i / (double)(LUT_SIZE - 1) * a + b;
+			lut[i] = fApB >= 0 ? Math.exp(-fApB) / (1.0 + Math.exp(-fApB)) : 1.0 / (1.0 + Math.exp(fApB));
+		}
+		return lut;
+	}
+
+	private static double plattObjective(final double[] x, final double[] t, final double a, final double b) {
+		double f = 0;
+		for (int i = 0; i < x.length; i++) {
+			double fApB = x[i] * a + b;
+			if (fApB >= 0)
+				f += t[i] * fApB + Math.log(1 + Math.exp(-fApB));
+			else
+				f += (t[i] - 1) * fApB + Math.log(1 + Math.exp(fApB));
+		}
+		return f;
+	}
+
+
+	/**
+	 * Fit an isotonic regression using the pool-adjacent-violators algorithm, and interpolate linearly between blocks.
+	 */
+	private static double[] fitIsotonic(final double[] x, final boolean[] y) {
+		int n = x.length;
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		Arrays.sort(order, (i, j) -> Double.compare(x[i], x[j]));
+
+		// Each block stores the mean x & y, along with its weight
+		double[] blockX = new double[n];
+		double[] blockY = new double[n];
+		double[] blockW = new double[n];
+		int nBlocks = 0;
+		int k = 0;
+		while (k < n) {
+			// Tied values must always be pooled, since they cannot be ordered
+			double xk = x[order[k]];
+			double sumY = 0;
+			int count = 0;
+			while (k < n && x[order[k]] == xk) {
+				if (y[order[k]])
+					sumY++;
+				count++;
+				k++;
+			}
+			blockX[nBlocks] = xk;
+			blockY[nBlocks] = sumY / count;
+			blockW[nBlocks] = count;
+			nBlocks++;
+			while (nBlocks > 1 && blockY[nBlocks-2] >= blockY[nBlocks-1]) {
+				double w = blockW[nBlocks-2] + blockW[nBlocks-1];
+				blockX[nBlocks-2] = (blockX[nBlocks-2] * blockW[nBlocks-2] + blockX[nBlocks-1] * blockW[nBlocks-1]) / w;
+				blockY[nBlocks-2] = (blockY[nBlocks-2] * blockW[nBlocks-2] + blockY[nBlocks-1] * blockW[nBlocks-1]) / w;
+				blockW[nBlocks-2] = w;
+				nBlocks--;
+			}
+		}
+
+		double[] lut = new double[LUT_SIZE];
+		int block = 0;
+		for (int i = 0; i < LUT_SIZE; i++) {
+			double p = i / (double)(LUT_SIZE - 1);
+			while (block < nBlocks - 1 && blockX[block + 1] <= p)
+				block++;
+			if (p <= blockX[0])
+				lut[i] = blockY[0];
+			else if (block == nBlocks - 1)
+				lut[i] = blockY[nBlocks - 1];
+			else {
+				double t = (p - blockX[block]) / (blockX[block + 1] - blockX[block]);
+				lut[i] = blockY[block] + t * (blockY[block + 1] - blockY[block]);
+			}
+		}
+		return lut;
+	}
+
+
+	/**
+	 * Apply the calibration to a distribution of raw class probabilities.
+	 * 
+	 * @param raw the raw probabilities
+	 * @param calibrated array to store the calibrated probabilities; may be the same as raw
+	 * @return the calibrated probabilities
+	 */
+	public double[] apply(final double[] raw, final double[] calibrated) {
+		if (lut == null) {
+			if (calibrated != raw)
+				System.arraycopy(raw, 0, calibrated, 0, nClasses);
+			return calibrated;
+		}
+		double sum = 0;
+		for (int c = 0; c < nClasses; c++) {
+			double p = raw[c];
+			int ind = p <= 0 ? 0 : p >= 1 ? LUT_SIZE - 1 : (int)(p * (LUT_SIZE - 1) + 0.5);
+			calibrated[c] = lut[c * LUT_SIZE + ind];
+			sum += calibrated[c];
+		}
+		if (sum > 0) {
+			for (int c = 0; c < nClasses; c++)
+				calibrated[c] /= sum;
+		}
+		return calibrated;
+	}
+
+
+	/**
+	 * Compute the multiclass Brier score (mean squared error of the probabilities) after applying this calibration.
+	 * 
+	 * @param distributions raw class probabilities
+	 * @param labels true class indices
+	 * @return
+	 */
+	public double computeBrierScore(final double[][] distributions, final int[] labels) {
+		double sum = 0;
+		double[] calibrated = new double[nClasses];
+		for (int i = 0; i < distributions.length; i++) {
+			apply(distributions[i], calibrated);
+			for (int c = 0; c < nClasses; c++) {
+				double d = calibrated[c] - (labels[i] == c ? 1 : 0);
+				sum += d * d;
+			}
+		}
+		return distributions.length == 0 ? Double.NaN : sum / distributions.length;
+	}
+
+	public Method getMethod() {
+		return method;
+	}
+
+	public int getNumClasses() {
+		return nClasses;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s calibration (%d held-out objects, Brier score %.4f -> %.4f)", method, nSamples, brierBefore, brierAfter);
+	}
+
+}
@@ -0,0 +1,454 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.extensions.weka.classifiers.CompactRandomForest.Node;
+import qupath.extensions.weka.classifiers.CompactRandomForest.Precision;
+import weka.classifiers.Classifier;
+import weka.classifiers.trees.RandomForest;
+import weka.classifiers.trees.RandomTree;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Helper class to convert a trained Weka RandomForest into a {@link CompactRandomForest}.
+ * <p>
+ * Compaction can involve
+ * <ul>
+ * <li>storing split thresholds and leaf probabilities as floats or shorts</li>
+ * <li>pruning trees to a maximum depth, and/or a maximum number of nodes per tree</li>
+ * <li>dropping trees that do not improve accuracy on held-out data</li>
+ * </ul>
+ * Accuracy on the held-out data is logged (and stored in the compact forest's summary) after each step.
+ * <p>
+ * Weka does not provide public access to the trees within a RandomForest, so these are read using reflection.
+ * If this fails (e.g. with an incompatible Weka version), an exception is thrown and the original forest should be used instead.
+ */
+public class RandomForestCompactor {
+
+	final private static Logger logger = LoggerFactory.getLogger(RandomForestCompactor.class);
+
+	private Precision precision = Precision.FLOAT;
+	private int maxDepth = 0;
+	private int maxNodesPerTree = 0;
+	private boolean dropTrees = true;
+	private double maxAccuracyLoss = 0.005;
+	private int minTrees = 1;
+
+	/**
+	 * Set the precision used to store thresholds and leaf probabilities.
+	 * 
+	 * @param precision
+	 * @return this compactor
+	 */
+	public RandomForestCompactor setPrecision(final Precision precision) {
+		this.precision = precision == null ? Precision.FLOAT : precision;
+		return this;
+	}
+
+	/**
+	 * Set the maximum depth of each tree - any deeper splits are replaced by leaves.
+	 * 
+	 * @param maxDepth maximum depth, or 0 for no limit
+	 * @return this compactor
+	 */
+	public RandomForestCompactor setMaxDepth(final int maxDepth) {
+		this.maxDepth = Math.max(0, maxDepth);
+		return this;
+	}
+
+	/**
+	 * Set the maximum number of nodes in each tree.  Trees that are too large are pruned to the greatest depth that meets this budget.
+	 * 
+	 * @param maxNodes maximum number of nodes, or 0 for no limit
+	 * @return this compactor
+	 */
+	public RandomForestCompactor setMaxNodesPerTree(final int maxNodes) {
+		this.maxNodesPerTree = Math.max(0, maxNodes);
+		return this;
+	}
+
+	/**
+	 * Set whether trees that do not improve held-out accuracy should be dropped.
+	 * 
+	 * @param dropTrees
+	 * @return this compactor
+	 */
+	public RandomForestCompactor setDropTrees(final boolean dropTrees) {
+		this.dropTrees = dropTrees;
+		return this;
+	}
+
+	/**
+	 * Set the maximum reduction in held-out accuracy (as a proportion, e.g. 0.005 for 0.5%) accepted when dropping trees,
+	 * relative to the accuracy of the compact forest before any trees are dropped.
+	 * 
+	 * @param maxAccuracyLoss
+	 * @return this compactor
+	 */
+	public RandomForestCompactor setMaxAccuracyLoss(final double maxAccuracyLoss) {
+		this.maxAccuracyLoss = Math.max(0, maxAccuracyLoss);
+		return this;
+	}
+
+	/**
+	 * Set the minimum number of trees to retain when dropping trees.
+	 * 
+	 * @param minTrees
+	 * @return this compactor
+	 */
+	public RandomForestCompactor setMinTrees(final int minTrees) {
+		this.minTrees = Math.max(1, minTrees);
+		return this;
+	}
+
+
+	/**
+	 * Create a compact version of a trained random forest.
+	 * 
+	 * @param forest the trained forest
+	 * @param holdout held-out data used to evaluate the compaction (and to select trees to drop); may be null, in which case no trees are dropped
+	 * @return
+	 * @throws Exception if the trees could not be read from the forest
+	 */
+	public CompactRandomForest compact(final RandomForest forest, final Instances holdout) throws Exception {
+		long startTime = System.currentTimeMillis();
+
+		TreeReader reader = new TreeReader();
+		Classifier[] classifiers = reader.getClassifiers(forest);
+		Instances header = null;
+		List<Node> trees = new ArrayList<>();
+		int nOriginalNodes = 0;
+		for (Classifier classifier : classifiers) {
+			if (!(classifier instanceof RandomTree))
+				throw new UnsupportedOperationException("Only forests of RandomTrees can be compacted, not " + classifier.getClass().getName());
+			RandomTree tree = (RandomTree)classifier;
+			if (header == null)
+				header = reader.getHeader(tree);
+			Node node = reader.readTree(tree, header);
+			nOriginalNodes += node.countNodes();
+			trees.add(pruneToBudget(node));
+		}
+		if (header == null || !header.classAttribute().isNominal())
+			throw new UnsupportedOperationException("Only classification forests with a nominal class can be compacted");
+
+		int numClasses = header.numClasses();
+		int numAttributes = header.numAttributes();
+		CompactRandomForest compact = new CompactRandomForest(trees, numClasses, numAttributes, precision);
+
+		List<String> summary = new ArrayList<>();
+		summary.add(String.format("Original: %d trees, %d nodes, approx. %.1f KB serialized", classifiers.length, nOriginalNodes, estimateSerializedBytes(forest) / 1024.0));
+		summary.add(String.format("Compact: %d trees, %d nodes, approx. %.1f KB (%s%s)", compact.getNumTrees(), compact.getNumNodes(),
+				compact.estimateMemoryBytes() / 1024.0, precision,
+				maxDepth > 0 || maxNodesPerTree > 0 ? ", max depth " + maxDepth + ", max nodes " + maxNodesPerTree : ""));
+		logger.info(summary.get(0));
+		logger.info(summary.get(1));
+
+		if (holdout != null && holdout.numInstances() > 0) {
+			double accuracyOriginal = computeAccuracy(forest, holdout);
+			double accuracyCompact = computeAccuracy(compact, holdout);
+			addSummary(summary, String.format("Held-out accuracy (n=%d): original %.2f%%, compact %.2f%%",
+					holdout.numInstances(), accuracyOriginal * 100, accuracyCompact * 100));
+
+			if (dropTrees && trees.size() > minTrees) {
+				List<Integer> retained = dropTrees(compact, holdout, summary);
+				if (retained.size() < trees.size()) {
+					List<Node> retainedTrees = new ArrayList<>();
+					for (int t : retained)
+						retainedTrees.add(trees.get(t));
+					compact = new CompactRandomForest(retainedTrees, trees, numClasses, numAttributes, precision);
+					addSummary(summary, String.format("Final: %d trees, %d nodes, approx. %.1f KB, held-out accuracy %.2f%%",
+							compact.getNumTrees(), compact.getNumNodes(), compact.estimateMemoryBytes() / 1024.0, computeAccuracy(compact, holdout) * 100));
+				}
+			}
+		} else
+			addSummary(summary, "No held-out data - accuracy not evaluated, no trees dropped");
+
+		for (String line : summary)
+			compact.addSummary(line);
+		logger.info("Random forest compacted in {} ms", System.currentTimeMillis() - startTime);
+		return compact;
+	}
+
+
+	private static void addSummary(final List<String> summary, final String line) {
+		logger.info(line);
+		summary.add(line);
+	}
+
+
+	/**
+	 * Prune a tree so that it meets the maximum depth and node budgets.
+	 */
+	private Node pruneToBudget(final Node tree) {
+		int depth = tree.depth();
+		if (maxDepth > 0 && depth > maxDepth) {
+			prune(tree, 0, maxDepth);
+			depth = maxDepth;
+		}
+		if (maxNodesPerTree > 0) {
+			while (depth > 0 && tree.countNodes() > maxNodesPerTree) {
+				depth--;
+				prune(tree, 0, depth);
+			}
+		}
+		return tree;
+	}
+
+
+	private static void prune(final Node node, final int depth, final int maxDepth) {
+		if (node.isLeaf())
+			return;
+		if (depth >= maxDepth) {
+			node.attribute = -1;
+			node.left = null;
+			node.right = null;
+			return;
+		}
+		prune(node.left, depth + 1, maxDepth);
+		prune(node.right, depth + 1, maxDepth);
+	}
+
+
+	/**
+	 * Greedily drop trees, each time removing the tree whose absence gives the highest held-out accuracy,
+	 * until removing any further trees would reduce the accuracy by more than the maximum accepted loss.
+	 * 
+	 * @return indices of the trees to retain
+	 */
+	private List<Integer> dropTrees(final CompactRandomForest compact, final Instances holdout, final List<String> summary) {
+		int nTrees = compact.getNumTrees();
+		int n = holdout.numInstances();
+		int numClasses = holdout.numClasses();
+
+		// Cache the contribution of each tree for each held-out instance
+		double[][] contributions = new double[nTrees][n * numClasses];
+		int[] labels = new int[n];
+		for (int i = 0; i < n; i++) {
+			Instance instance = holdout.instance(i);
+			labels[i] = (int)instance.classValue();
+			for (int t = 0; t < nTrees; t++) {
+				double[] dist = new double[numClasses];
+				compact.addTreeDistribution(t, instance, dist);
+				System.arraycopy(dist, 0, contributions[t], i * numClasses, numClasses);
+			}
+		}
+
+		List<Integer> retained = new ArrayList<>();
+		for (int t = 0; t < nTrees; t++)
+			retained.add(t);
+		double[] totals = sumContributions(contributions, retained);
+		double baseAccuracy = computeAccuracy(totals, null, labels, numClasses);
+		double minAccuracy = baseAccuracy - maxAccuracyLoss;
+
+		while (retained.size() > minTrees) {
+			// Select the tree to drop quickly by subtracting its contribution...
+			int bestTree = -1;
+			double bestAccuracy = Double.NEGATIVE_INFINITY;
+			for (int t : retained) {
+				double accuracy = computeAccuracy(totals, contributions[t], labels, numClasses);
+				if (accuracy > bestAccuracy) {
+					bestAccuracy = accuracy;
+					bestTree = t;
+				}
+			}
+			// ...but then recompute the sums, since rounding errors can otherwise change the outcome of ties
+			List<Integer> candidate = new ArrayList<>(retained);
+			candidate.remove(Integer.valueOf(bestTree));
+			double[] candidateTotals = sumContributions(contributions, candidate);
+			double accuracy = computeAccuracy(candidateTotals, null, labels, numClasses);
+			if (accuracy < minAccuracy)
+				break;
+			retained = candidate;
+			totals = candidateTotals;
+			addSummary(summary, String.format("Dropped tree %d, %d trees remaining: held-out accuracy %.2f%%", bestTree, retained.size(), accuracy * 100));
+		}
+		return retained;
+	}
+
+
+	private static double[] sumContributions(final double[][] contributions, final List<Integer> trees) {
+		double[] totals = new double[contributions[0].length];
+		for (int t : trees) {
+			double[] contribution = contributions[t];
+			for (int i = 0; i < totals.length; i++)
+				totals[i] += contribution[i];
+		}
+		return totals;
+	}
+
+
+	/**
+	 * Compute accuracy from summed class probabilities, optionally after subtracting the contribution of one tree.
+	 */
+	private static double computeAccuracy(final double[] totals, final double[] subtract, final int[] labels, final int numClasses) {
+		int nCorrect = 0;
+		for (int i = 0; i < labels.length; i++) {
+			int best = 0;
+			double bestValue = Double.NEGATIVE_INFINITY;
+			for (int c = 0; c < numClasses; c++) {
+				double value = totals[i * numClasses + c];
+				if (subtract != null)
+					value -= subtract[i * numClasses + c];
+				if (value > bestValue) {
+					bestValue = value;
+					best = c;
+				}
+			}
+			if (best == labels[i])
+				nCorrect++;
+		}
+		return (double)nCorrect / labels.length;
+	}
+
+
+	static double computeAccuracy(final Classifier classifier, final Instances instances) throws Exception {
+		int nCorrect = 0;
+		for (Instance instance : instances) {
+			if (classifier.classifyInstance(instance) == instance.classValue())
+				nCorrect++;
+		}
+		return (double)nCorrect / instances.numInstances();
+	}
+
+
+	private static long estimateSerializedBytes(final Object object) {
+		try (ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ObjectOutputStream stream = new ObjectOutputStream(bytes)) {
+			stream.writeObject(object);
+			stream.flush();
+			return bytes.size();
+		} catch (IOException e) {
+			logger.debug("Unable to estimate serialized size", e);
+			return -1;
+		}
+	}
+
+
+	/**
+	 * Read the trees from a Weka RandomForest using reflection.
+	 */
+	static class TreeReader {
+
+		private final Field fClassifiers;
+		private final Field fTree;
+		private final Field fInfo;
+		private final Field fZeroR;
+		private final Field fSuccessors;
+		private final Field fAttribute;
+		private final Field fSplitPoint;
+		private final Field fProp;
+		private final Field fClassDistribution;
+
+		TreeReader() throws ReflectiveOperationException {
+			fClassifiers = getField(weka.classifiers.IteratedSingleClassifierEnhancer.class, "m_Classifiers");
+			fTree = getField(RandomTree.class, "m_Tree");
+			fInfo = getField(RandomTree.class, "m_Info");
+			fZeroR = getField(RandomTree.class, "m_zeroR");
+			Class<?> cTree = Class.forName(RandomTree.class.getName() + "$Tree", false, RandomTree.class.getClassLoader());
+			fSuccessors = getField(cTree, "m_Successors");
+			fAttribute = getField(cTree, "m_Attribute");
+			fSplitPoint = getField(cTree, "m_SplitPoint");
+			fProp = getField(cTree, "m_Prop");
+			fClassDistribution = getField(cTree, "m_ClassDistribution");
+		}
+
+		private static Field getField(final Class<?> cls, final String name) throws NoSuchFieldException {
+			Field field = cls.getDeclaredField(name);
+			field.setAccessible(true);
+			return field;
+		}
+
+		Classifier[] getClassifiers(final RandomForest forest) throws IllegalAccessException {
+			Classifier[] classifiers = (Classifier[])fClassifiers.get(forest);
+			if (classifiers == null)
+				throw new IllegalArgumentException("Random forest has not been trained!");
+			return classifiers;
+		}
+
+		Instances getHeader(final RandomTree tree) throws IllegalAccessException {
+			return (Instances)fInfo.get(tree);
+		}
+
+		Node readTree(final RandomTree tree, final Instances header) throws Exception {
+			Classifier zeroR = (Classifier)fZeroR.get(tree);
+			if (zeroR != null) {
+				// Tree was built without any useful attributes - a single leaf
+				Instance instance = new DenseInstance(header.numAttributes());
+				instance.setDataset(header);
+				Node node = new Node();
+				node.distribution = zeroR.distributionForInstance(instance);
+				return node;
+			}
+			return readNode(fTree.get(tree), header, null);
+		}
+
+		private Node readNode(final Object tree, final Instances header, final double[] parentDistribution) throws Exception {
+			Node node = new Node();
+			double[] classDistribution = (double[])fClassDistribution.get(tree);
+			// Empty nodes use the distribution of their parent - as Weka does
+			node.distribution = classDistribution == null ? parentDistribution : normalize(classDistribution);
+			int attribute = fAttribute.getInt(tree);
+			if (attribute < 0)
+				return node;
+
+			Object[] successors = (Object[])fSuccessors.get(tree);
+			if (successors == null || successors.length != 2 || !header.attribute(attribute).isNumeric())
+				throw new UnsupportedOperationException("Only binary splits on numeric attributes can be compacted");
+			node.attribute = attribute;
+			node.threshold = fSplitPoint.getDouble(tree);
+			double[] prop = (double[])fProp.get(tree);
+			if (prop != null && prop.length == 2 && prop[0] + prop[1] > 0)
+				node.propLeft = prop[0] / (prop[0] + prop[1]);
+			node.left = readNode(successors[0], header, node.distribution);
+			node.right = readNode(successors[1], header, node.distribution);
+			return node;
+		}
+
+		private static double[] normalize(final double[] values) {
+			double[] result = values.clone();
+			double sum = 0;
+			for (double v : result)
+				sum += v;
+			if (sum > 0) {
+				for (int i = 0; i < result.length; i++)
+					result[i] /= sum;
+			}
+			return result;
+		}
+
+	}
+
+}
@@ -0,0 +1,153 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Helper class to merge duplicate training rows into single, weighted instances.
+ * <p>
+ * Duplicates commonly arise whenever the same objects are labelled more than once (e.g. with overlapping annotations).
+ * Only rows with the same class are merged.
+ * Optionally, near-duplicates can also be merged: these are rows for which every feature falls within the same bin,
+ * where the bin width is a proportion of the feature's standard deviation.  Merged near-duplicates are replaced by their
+ * (weighted) mean.
+ * <p>
+ * This should only be used with classifiers that treat an instance with weight <i>w</i> as equivalent to <i>w</i> copies
+ * of the instance.
+ */
+public class TrainingDeduplication {
+
+	/**
+	 * Result of deduplication.
+	 */
+	public static class Result {
+
+		private final Instances instances;
+		private final int nBefore;
+		private final long nanos;
+
+		Result(final Instances instances, final int nBefore, final long nanos) {
+			this.instances = instances;
+			this.nBefore = nBefore;
+			this.nanos = nanos;
+		}
+
+		/**
+		 * Get the deduplicated instances.  If no duplicates were found, these are the original instances.
+		 * 
+		 * @return
+		 */
+		public Instances getInstances() {
+			return instances;
+		}
+
+		public int getCountBefore() {
+			return nBefore;
+		}
+
+		public int getCountAfter() {
+			return instances.numInstances();
+		}
+
+		public int getRemovedCount() {
+			return nBefore - instances.numInstances();
+		}
+
+		public double getMillis() {
+			return nanos / 1e6;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d/%d rows removed (%.1f%%) in %.1f ms", getRemovedCount(), nBefore,
+					nBefore == 0 ? 0.0 : getRemovedCount() * 100.0 / nBefore, getMillis());
+		}
+
+	}
+
+
+	/**
+	 * Merge duplicate rows.
+	 * 
+	 * @param instances the instances, with class index set; these are not modified
+	 * @param tolerance if &gt; 0, merge near-duplicates using bins of this width (as a proportion of each feature's standard deviation);
+	 * 					otherwise, only merge rows with identical features
+	 * @return
+	 */
+	public static Result deduplicate(final Instances instances, final double tolerance) {
+		long startTime = System.nanoTime();
+		int nAttributes = instances.numAttributes();
+		int classIndex = instances.classIndex();
+		int n = instances.numInstances();
+
+		// Determine how to scale each attribute for near-duplicate matching
+		double[] scale = null;
+		if (tolerance > 0) {
+			scale = new double[nAttributes];
+			for (int a = 0; a < nAttributes; a++) {
+				double sd = a == classIndex || !instances.attribute(a).isNumeric() ? 0 : Math.sqrt(instances.variance(a));
+				scale[a] = sd > 0 && !Double.isNaN(sd) ? 1.0 / (sd * tolerance) : 0;
+			}
+		}
+
+		Map<FeatureVectorKey, Integer> rows = new HashMap<>();
+		Instances deduplicated = new Instances(instances, n);
+		double[] values = new double[nAttributes];
+		for (int i = 0; i < n; i++) {
+			Instance instance = instances.instance(i);
+			for (int a = 0; a < nAttributes; a++) {
+				double v = instance.value(a);
+				// Round scaled values to bins; others (including the class) must match exactly
+				values[a] = scale == null || scale[a] == 0 ? v : Math.rint(v * scale[a]);
+			}
+			FeatureVectorKey key = new FeatureVectorKey(values, nAttributes, 0);
+			Integer row = rows.get(key);
+			if (row == null) {
+				rows.put(key, deduplicated.numInstances());
+				deduplicated.add(instance);
+				continue;
+			}
+			Instance merged = deduplicated.instance(row);
+			double w0 = merged.weight();
+			double w = instance.weight();
+			if (scale != null) {
+				for (int a = 0; a < nAttributes; a++) {
+					if (a != classIndex && !merged.isMissing(a))
+						merged.setValue(a, (merged.value(a) * w0 + instance.value(a) * w) / (w0 + w));
+				}
+			}
+			merged.setWeight(w0 + w);
+		}
+		if (deduplicated.numInstances() == n)
+			return new Result(instances, n, System.nanoTime() - startTime);
+		deduplicated.compactify();
+		return new Result(deduplicated, n, System.nanoTime() - startTime);
+	}
+
+}
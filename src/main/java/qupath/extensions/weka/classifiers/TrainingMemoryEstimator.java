@@ -0,0 +1,439 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Helper class to estimate the memory required to train a {@link WekaClassifier}, before any training data is created,
+ * and to record the memory actually used so that the estimates can be checked.
+ * <p>
+ * Estimates are deliberately rough: they account for the size of Weka's dense instances, the copies made while
+ * preparing the training data (e.g. for normalization and calibration), and the memory required by the classifier itself
+ * (see {@link WekaClassifier#estimateClassifierMemory(long, int, int)}).
+ */
+public class TrainingMemoryEstimator {
+
+	/**
+	 * Maximum proportion of the currently-available heap that training is permitted to use,
+	 * to leave room for the garbage collector &amp; the rest of the application.
+	 */
+	static final double MAX_HEAP_FRACTION = 0.5;
+
+	/**
+	 * Approximate overhead of each DenseInstance (object header, weight, dataset reference, array header,
+	 * and reference from the Instances list), excluding the values themselves.
+	 */
+	private static final long BYTES_PER_INSTANCE = 64;
+
+	/**
+	 * Maximum number of records to retain.
+	 */
+	private static final int MAX_RECORDS = 100;
+
+	private static final List<Record> records = new LinkedList<>();
+
+
+	/**
+	 * Memory used when training a classifier, as estimated before training and as measured afterwards.
+	 */
+	public static class Record {
+
+		private final String classifierName;
+		private final long nRows;
+		private final int nFeatures;
+		private final long estimatedBytes;
+		private final long peakBytes;
+
+		Record(final String classifierName, final long nRows, final int nFeatures, final long estimatedBytes, final long peakBytes) {
+			this.classifierName = classifierName;
+			this.nRows = nRows;
+			this.nFeatures = nFeatures;
+			this.estimatedBytes = estimatedBytes;
+			this.peakBytes = peakBytes;
+		}
+
+		public String getClassifierName() {
+			return classifierName;
+		}
+
+		public long getRowCount() {
+			return nRows;
+		}
+
+		public int getFeatureCount() {
+			return nFeatures;
+		}
+
+		public long getEstimatedBytes() {
+			return estimatedBytes;
+		}
+
+		/**
+		 * Get the peak heap usage during training, above the usage when training started.
+		 * <p>
+		 * This includes any garbage that had not been collected, and so is an upper bound on the memory actually required
+		 * (particularly when the heap is much larger than needed).
+		 * If other classifiers were trained at the same time, it also includes the memory they used (see {@link PeakMonitor}).
+		 * 
+		 * @return the peak, or -1 if this could not be measured
+		 */
+		public long getPeakBytes() {
+			return peakBytes;
+		}
+
+		/**
+		 * Get the ratio of the measured peak to the estimate; values &gt; 1 indicate that the memory required was underestimated.
+		 * 
+		 * @return
+		 */
+		public double getRatio() {
+			return peakBytes < 0 || estimatedBytes <= 0 ? Double.NaN : (double)peakBytes / estimatedBytes;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s (%d rows, %d features): estimated %.1f MB, peak %.1f MB (ratio %.2f)",
+					classifierName, nRows, nFeatures, toMB(estimatedBytes), toMB(peakBytes), getRatio());
+		}
+
+	}
+
+
+	/**
+	 * Monitor the peak heap usage from the time it is created, using the {@link MemoryPoolMXBean}s for the heap.
+	 * <p>
+	 * Note that this sums the peaks of all pools - which may overestimate the true peak, 
+	 * since pools need not reach their peaks at the same time.
+	 * <p>
+	 * Peak usage is recorded by the JVM for each pool, not for each monitor.  The peaks are therefore only reset when
+	 * a monitor is created while no other monitor is open, so that overlapping trainings (e.g. parallel cross-validation folds
+	 * or parameter searches) do not reset one another's peaks.  In this case, the peak reported by each monitor is the combined
+	 * peak of all the overlapping trainings.
+	 * <p>
+	 * Monitors should be closed when they are no longer needed.
+	 */
+	static class PeakMonitor implements AutoCloseable {
+
+		private static int nOpen = 0;
+
+		private final List<MemoryPoolMXBean> pools = new ArrayList<>();
+		private final long baselineBytes;
+		private final boolean overlapping;
+		private boolean closed = false;
+		private long closedPeakBytes = -1;
+
+		PeakMonitor() {
+			long used = 0;
+			synchronized (PeakMonitor.class) {
+				overlapping = nOpen > 0;
+				for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+					if (pool.getType() != MemoryType.HEAP || !pool.isValid())
+						continue;
+					try {
+						if (!overlapping)
+							pool.resetPeakUsage();
+						used += pool.getUsage().getUsed();
+						pools.add(pool);
+					} catch (SecurityException e) {
+						pools.clear();
+						break;
+					}
+				}
+				nOpen++;
+			}
+			baselineBytes = used;
+		}
+
+		/**
+		 * Returns true if another monitor was open when this monitor was created, 
+		 * in which case the peak may include memory used by other trainings.
+		 * 
+		 * @return
+		 */
+		public boolean isOverlapping() {
+			return overlapping;
+		}
+
+		/**
+		 * Get the peak heap usage since the monitor was created, above the usage when it was created.
+		 * If the monitor has been closed, this is the peak at the time it was closed.
+		 * 
+		 * @return the peak, or -1 if this could not be measured
+		 */
+		public synchronized long getPeakBytes() {
+			if (closed)
+				return closedPeakBytes;
+			if (pools.isEmpty())
+				return -1;
+			long peak = 0;
+			for (MemoryPoolMXBean pool : pools)
+				peak += pool.getPeakUsage().getUsed();
+			return Math.max(0, peak - baselineBytes);
+		}
+
+		/**
+		 * Stop monitoring, so that the peaks can be reset by the next monitor to be created.
+		 */
+		@Override
+		public synchronized void close() {
+			if (closed)
+				return;
+			closedPeakBytes = getPeakBytes();
+			closed = true;
+			synchronized (PeakMonitor.class) {
+				nOpen--;
+			}
+		}
+
+	}
+
+
+	/**
+	 * Memory reserved for a training in progress.
+	 * <p>
+	 * The bytes reserved by all open reservations are subtracted from {@link TrainingMemoryEstimator#getAvailableBytes()}, 
+	 * so that concurrent trainings (e.g. parallel cross-validation folds or parameter searches) each budget against the memory 
+	 * that is not already expected to be used by the others.
+	 * <p>
+	 * Reservations should be closed when training is complete.
+	 */
+	static class Reservation implements AutoCloseable {
+
+		private static long reservedBytes = 0;
+
+		private final long bytes;
+		private final long availableBytes;
+		private final double trainingIncrement;
+		private boolean closed = false;
+
+		private Reservation(final long bytes, final long availableBytes, final double trainingIncrement) {
+			this.bytes = bytes;
+			this.availableBytes = availableBytes;
+			this.trainingIncrement = trainingIncrement;
+		}
+
+		/**
+		 * Reserve memory for training, subsampling if the estimate does not fit within the memory available after 
+		 * accounting for other reservations.  The increment is computed and the memory reserved atomically, so that 
+		 * trainings starting at the same time cannot both claim the same memory.
+		 * 
+		 * @param estimatedBytes the estimated memory required to train using all objects
+		 * @return
+		 * @see TrainingMemoryEstimator#computeTrainingIncrement(long, long)
+		 */
+		static Reservation reserve(final long estimatedBytes) {
+			synchronized (Reservation.class) {
+				long available = TrainingMemoryEstimator.getAvailableBytes();
+				double increment = computeTrainingIncrement(estimatedBytes, available);
+				long bytes = Math.max(0, (long)(estimatedBytes / increment));
+				reservedBytes += bytes;
+				return new Reservation(bytes, available, increment);
+			}
+		}
+
+		/**
+		 * Get the total bytes reserved by all open reservations.
+		 * 
+		 * @return
+		 */
+		static long getReservedBytes() {
+			synchronized (Reservation.class) {
+				return reservedBytes;
+			}
+		}
+
+		/**
+		 * Get the bytes reserved, i.e. the estimate after any subsampling.
+		 * 
+		 * @return
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Get the memory that was available (excluding other reservations) when this reservation was made.
+		 * 
+		 * @return
+		 */
+		public long getAvailableBytes() {
+			return availableBytes;
+		}
+
+		/**
+		 * Get the increment to use when selecting training objects.
+		 * 
+		 * @return 1 if all training objects can be used, or a larger value to subsample
+		 */
+		public double getTrainingIncrement() {
+			return trainingIncrement;
+		}
+
+		/**
+		 * Release the reserved memory.
+		 */
+		@Override
+		public synchronized void close() {
+			if (closed)
+				return;
+			closed = true;
+			synchronized (Reservation.class) {
+				reservedBytes -= bytes;
+			}
+		}
+
+	}
+
+
+	/**
+	 * Estimate the memory required to store instances with the specified number of rows and attributes.
+	 * 
+	 * @param nRows
+	 * @param nAttributes number of attributes, including the class attribute
+	 * @return
+	 */
+	public static long estimateInstancesBytes(final long nRows, final int nAttributes) {
+		return nRows * (BYTES_PER_INSTANCE + 8L * nAttributes);
+	}
+
+	/**
+	 * Estimate the memory required to train a classifier.
+	 * 
+	 * @param classifier
+	 * @param nRows number of training objects
+	 * @param nFeatures number of features (excluding the class)
+	 * @param nClasses number of classes
+	 * @param normalize true if the training data will be normalized (which creates a copy)
+	 * @param calibrate true if probabilities will be calibrated (which trains an additional classifier on part of the data)
+	 * @return
+	 */
+	public static long estimateTrainingBytes(final WekaClassifier classifier, final long nRows, final int nFeatures, final int nClasses, final boolean normalize, final boolean calibrate) {
+		long dataBytes = estimateInstancesBytes(nRows, nFeatures + 1);
+		long classifierBytes = classifier.estimateClassifierMemory(nRows, nFeatures, nClasses);
+		long bytes = dataBytes + classifierBytes;
+		if (normalize)
+			bytes += dataBytes;
+		// The calibration classifier is discarded before the final classifier is trained, so isn't added
+		if (calibrate)
+			bytes = Math.max(bytes, dataBytes * 2 + classifierBytes);
+		return bytes;
+	}
+
+	/**
+	 * Get the heap memory currently available, i.e. the maximum heap size minus the memory used.
+	 * <p>
+	 * Where possible, the memory used is taken from each heap pool's usage after it was last garbage collected, 
+	 * so that garbage that has not yet been collected is not counted as used.
+	 * Otherwise, the current usage is used.
+	 * <p>
+	 * Memory reserved by trainings in progress is also treated as used, even if it has not yet been allocated.
+	 * 
+	 * @return
+	 */
+	public static long getAvailableBytes() {
+		return Math.max(0, getUnusedHeapBytes() - Reservation.getReservedBytes());
+	}
+
+	private static long getUnusedHeapBytes() {
+		Runtime runtime = Runtime.getRuntime();
+		try {
+			Set<String> collectedPools = new HashSet<>();
+			for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+				if (collector.getCollectionCount() > 0)
+					collectedPools.addAll(Arrays.asList(collector.getMemoryPoolNames()));
+			}
+			long used = 0;
+			boolean measured = false;
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				if (pool.getType() != MemoryType.HEAP || !pool.isValid())
+					continue;
+				MemoryUsage usage = collectedPools.contains(pool.getName()) ? pool.getCollectionUsage() : null;
+				if (usage == null)
+					usage = pool.getUsage();
+				if (usage == null)
+					continue;
+				used += usage.getUsed();
+				measured = true;
+			}
+			if (measured)
+				return runtime.maxMemory() - used;
+		} catch (SecurityException e) {
+			// Fall back to the current usage
+		}
+		return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+	}
+
+	/**
+	 * Compute the increment to use when selecting training objects, so that training is expected to fit within the available memory.
+	 * This assumes that the memory required scales (roughly) linearly with the number of training objects.
+	 * <p>
+	 * If no memory is available at all, the increment is as large as possible - so that only the first object of each class is used.
+	 * 
+	 * @param estimatedBytes the estimated memory required to train using all objects
+	 * @param availableBytes the memory available
+	 * @return 1 if all training objects can be used, or a larger value to subsample
+	 */
+	public static double computeTrainingIncrement(final long estimatedBytes, final long availableBytes) {
+		double budget = availableBytes * MAX_HEAP_FRACTION;
+		if (estimatedBytes <= budget)
+			return 1;
+		return Math.max(1, estimatedBytes / Math.max(budget, 1));
+	}
+
+	static void addRecord(final Record record) {
+		synchronized (records) {
+			records.add(record);
+			while (records.size() > MAX_RECORDS)
+				records.remove(0);
+		}
+	}
+
+	/**
+	 * Get records of the estimated and measured memory for the most recent training runs, oldest first.
+	 * 
+	 * @return
+	 */
+	public static List<Record> getRecords() {
+		synchronized (records) {
+			return Collections.unmodifiableList(new ArrayList<>(records));
+		}
+	}
+
+	static double toMB(final long bytes) {
+		return bytes / (1024.0 * 1024.0);
+	}
+
+}
@@ -0,0 +1,244 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Spatially-stratified sampler for training objects.
+ * <p>
+ * Training objects are grouped according to the annotation that contains them, and then according to a grid of tiles.
+ * The number of objects drawn from each annotation and from each tile can be capped, and objects are drawn in turn from
+ * each tile so that the sample is spread across the annotation - rather than being determined by the order of the objects
+ * in a list.
+ * <p>
+ * This keeps the size of the training set (and hence the training time) bounded, however large the annotations are,
+ * while avoiding small annotations being swamped by large ones.
+ */
+public class TrainingSampler {
+
+	private int maxPerAnnotation = 1000;
+	private int maxPerTile = 0;
+	private double tileSize = 0;
+	private long seed = 1;
+
+	/**
+	 * Set the maximum number of objects to draw from each annotation.
+	 * 
+	 * @param maxPerAnnotation maximum number of objects, or &lt;= 0 for no limit
+	 * @return this sampler
+	 */
+	public TrainingSampler setMaxPerAnnotation(final int maxPerAnnotation) {
+		this.maxPerAnnotation = maxPerAnnotation;
+		return this;
+	}
+
+	/**
+	 * Set the maximum number of objects to draw from each tile within an annotation.
+	 * 
+	 * @param maxPerTile maximum number of objects, or &lt;= 0 for no limit
+	 * @return this sampler
+	 */
+	public TrainingSampler setMaxPerTile(final int maxPerTile) {
+		this.maxPerTile = maxPerTile;
+		return this;
+	}
+
+	/**
+	 * Set the size of each (square) tile, in pixels.
+	 * <p>
+	 * If &lt;= 0, the tile size is chosen for each annotation so that there are approximately as many tiles as there are objects to be drawn.
+	 * 
+	 * @param tileSize
+	 * @return this sampler
+	 */
+	public TrainingSampler setTileSize(final double tileSize) {
+		this.tileSize = tileSize;
+		return this;
+	}
+
+	/**
+	 * Set the seed used to randomize the order of objects within each tile.
+	 * 
+	 * @param seed
+	 * @return this sampler
+	 */
+	public TrainingSampler setSeed(final long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	public int getMaxPerAnnotation() {
+		return maxPerAnnotation;
+	}
+
+	public int getMaxPerTile() {
+		return maxPerTile;
+	}
+
+	public double getTileSize() {
+		return tileSize;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+
+	/**
+	 * Sample objects from a training map.
+	 * 
+	 * @param map training objects for each classification
+	 * @return a new map, containing the sampled objects for each classification
+	 */
+	public Map<PathClass, List<PathObject>> sample(final Map<PathClass, List<PathObject>> map) {
+		Map<PathClass, List<PathObject>> sampled = new LinkedHashMap<>();
+		Random random = new Random(seed);
+		for (Map.Entry<PathClass, List<PathObject>> entry : map.entrySet()) {
+			List<PathObject> list = new ArrayList<>();
+			for (List<PathObject> group : groupByAnnotation(entry.getValue()).values())
+				list.addAll(sampleGroup(group, random));
+			sampled.put(entry.getKey(), list);
+		}
+		return sampled;
+	}
+
+
+	/**
+	 * Group objects by their closest ancestor annotation (or by their parent, if there is no annotation).
+	 */
+	private static Map<PathObject, List<PathObject>> groupByAnnotation(final List<PathObject> pathObjects) {
+		// Use insertion order, so that groups are always sampled in the same order (PathObjects use identity for equality anyway)
+		Map<PathObject, List<PathObject>> groups = new LinkedHashMap<>();
+		List<PathObject> noParent = new ArrayList<>();
+		for (PathObject pathObject : pathObjects) {
+			PathObject parent = pathObject.getParent();
+			while (parent != null && !parent.isAnnotation() && parent.getParent() != null)
+				parent = parent.getParent();
+			if (parent == null)
+				noParent.add(pathObject);
+			else {
+				List<PathObject> group = groups.get(parent);
+				if (group == null) {
+					group = new ArrayList<>();
+					groups.put(parent, group);
+				}
+				group.add(pathObject);
+			}
+		}
+		if (!noParent.isEmpty())
+			groups.put(null, noParent);
+		return groups;
+	}
+
+
+	/**
+	 * Sample objects from a single annotation, drawing objects from each tile in turn.
+	 */
+	private List<PathObject> sampleGroup(final List<PathObject> group, final Random random) {
+		int maxTotal = maxPerAnnotation <= 0 ? group.size() : Math.min(maxPerAnnotation, group.size());
+		if (maxTotal == group.size() && maxPerTile <= 0)
+			return group;
+
+		// Determine the tile size
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (PathObject pathObject : group) {
+			ROI roi = pathObject.getROI();
+			if (roi == null)
+				continue;
+			minX = Math.min(minX, roi.getCentroidX());
+			minY = Math.min(minY, roi.getCentroidY());
+			maxX = Math.max(maxX, roi.getCentroidX());
+			maxY = Math.max(maxY, roi.getCentroidY());
+		}
+		double size = tileSize;
+		if (size <= 0) {
+			double area = (maxX - minX) * (maxY - minY);
+			size = area > 0 ? Math.sqrt(area / maxTotal) : 1;
+		}
+
+		// Assign objects to tiles
+		Map<Long, List<PathObject>> tiles = new LinkedHashMap<>();
+		for (PathObject pathObject : group) {
+			ROI roi = pathObject.getROI();
+			long key = Long.MIN_VALUE;
+			if (roi != null && !Double.isInfinite(minX)) {
+				long tx = (long)Math.floor((roi.getCentroidX() - minX) / size);
+				long ty = (long)Math.floor((roi.getCentroidY() - minY) / size);
+				key = (tx << 32) ^ (ty & 0xFFFFFFFFL);
+			}
+			List<PathObject> tile = tiles.get(key);
+			if (tile == null) {
+				tile = new ArrayList<>();
+				tiles.put(key, tile);
+			}
+			tile.add(pathObject);
+		}
+
+		// Randomize within tiles (applying the cap per tile), and randomize the order of tiles
+		List<List<PathObject>> tileList = new ArrayList<>();
+		for (List<PathObject> tile : tiles.values()) {
+			Collections.shuffle(tile, random);
+			if (maxPerTile > 0 && tile.size() > maxPerTile)
+				tile = tile.subList(0, maxPerTile);
+			tileList.add(tile);
+		}
+		Collections.shuffle(tileList, random);
+
+		// Draw objects from each tile in turn
+		List<PathObject> sampled = new ArrayList<>(maxTotal);
+		int ind = 0;
+		boolean added = true;
+		while (sampled.size() < maxTotal && added) {
+			added = false;
+			for (List<PathObject> tile : tileList) {
+				if (ind < tile.size()) {
+					sampled.add(tile.get(ind));
+					added = true;
+					if (sampled.size() >= maxTotal)
+						break;
+				}
+			}
+			ind++;
+		}
+		return sampled;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("TrainingSampler (max per annotation: %d, max per tile: %d, tile size: %s)",
+				maxPerAnnotation, maxPerTile, tileSize > 0 ? Double.toString(tileSize) : "auto");
+	}
+
+}
@@ -0,0 +1,393 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.trees.RandomTree;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Random forest that can be retrained incrementally, reusing trees from a previously-trained forest.
+ * <p>
+ * Each tree is grown from its own bootstrap sample using its own seed, so that trees are independent of one another.
+ * When retraining with a previous forest:
+ * <ul>
+ * <li>if the training data is unchanged, all existing trees are kept and only additional trees are grown (if needed);</li>
+ * <li>if training data has only been added, a (seeded, reproducible) random subset of the trees is replaced -
+ * the fraction being the larger of {@link #setReplaceFraction(double)} and the fraction of new training data;</li>
+ * <li>otherwise (e.g. training data has been removed, or the forest settings have changed), the forest is rebuilt from scratch.</li>
+ * </ul>
+ * Training data is compared using a sorted array of hashes for each row, so the order of the training instances does not matter.
+ * Rows are compared after any preprocessing: a {@link WekaClassifier} therefore reuses the normalization &amp; imputation values
+ * of the previous model when warm-starting (see {@link WekaClassifier#isWarmStartEnabled()}), since otherwise adding training data 
+ * would change every row - and the trees that are kept would no longer match the preprocessing.
+ * <p>
+ * Trees are never modified once grown, so a new forest can safely share trees with the forest it was updated from -
+ * and both can be used for classification from multiple threads.
+ */
+public class WarmStartRandomForest extends AbstractClassifier {
+
+	private static final long serialVersionUID = 1L;
+
+	final private static Logger logger = LoggerFactory.getLogger(WarmStartRandomForest.class);
+
+	private int numTrees = 50;
+	private int maxDepth = 0;
+	private int numFeatures = 0;
+	private int bagSizePercent = 100;
+	private int seed = 1;
+	private int numThreads = 1;
+	private double replaceFraction = 0.2;
+
+	private Instances header;
+	private long[] rowHashes;
+	private List<RandomTree> trees = new ArrayList<>();
+	private int generation = 0;
+
+	private transient String updateSummary;
+
+
+	public void setNumTrees(final int numTrees) {
+		this.numTrees = numTrees;
+	}
+
+	public int getNumTrees() {
+		return numTrees;
+	}
+
+	/**
+	 * Set the maximum depth of each tree.
+	 * 
+	 * @param maxDepth maximum depth, or 0 for unlimited
+	 */
+	public void setMaxDepth(final int maxDepth) {
+		this.maxDepth = maxDepth;
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * Set the number of randomly-chosen features to consider at each split.
+	 * 
+	 * @param numFeatures number of features, or 0 to use the default (log2(number of features) + 1)
+	 */
+	public void setNumFeatures(final int numFeatures) {
+		this.numFeatures = numFeatures;
+	}
+
+	public int getNumFeatures() {
+		return numFeatures;
+	}
+
+	public void setBagSizePercent(final int bagSizePercent) {
+		this.bagSizePercent = bagSizePercent;
+	}
+
+	public int getBagSizePercent() {
+		return bagSizePercent;
+	}
+
+	public void setSeed(final int seed) {
+		this.seed = seed;
+	}
+
+	public int getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Set the number of threads to use when growing trees.
+	 * 
+	 * @param numThreads
+	 */
+	public void setNumThreads(final int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * Set the minimum fraction of trees to replace whenever training data has been added.
+	 * 
+	 * @param replaceFraction value between 0 and 1
+	 */
+	public void setReplaceFraction(final double replaceFraction) {
+		this.replaceFraction = Math.max(0, Math.min(1, replaceFraction));
+	}
+
+	public double getReplaceFraction() {
+		return replaceFraction;
+	}
+
+	/**
+	 * Get a short description of what happened during the last update, e.g. how many trees were reused.
+	 * 
+	 * @return
+	 */
+	public String getUpdateSummary() {
+		return updateSummary;
+	}
+
+
+	@Override
+	public void buildClassifier(final Instances data) throws Exception {
+		buildClassifier(data, null);
+	}
+
+	/**
+	 * Train the forest, reusing trees from a previous forest where possible.
+	 * <p>
+	 * The previous forest is not modified.
+	 * 
+	 * @param data the training data
+	 * @param previous the previous forest (may be null)
+	 * @throws Exception
+	 */
+	public void buildClassifier(final Instances data, final WarmStartRandomForest previous) throws Exception {
+		long startTime = System.currentTimeMillis();
+
+		Instances header = new Instances(data, 0);
+		long[] rowHashes = computeRowHashes(data);
+		List<RandomTree> trees = new ArrayList<>();
+		int generation = 0;
+
+		int nKept = 0;
+		int nReplaced = 0;
+		String reason;
+		if (previous == null)
+			reason = "no previous forest";
+		else if (!isCompatible(previous))
+			reason = "forest settings changed";
+		else if (previous.header == null || header.equalHeadersMsg(previous.header) != null)
+			reason = "features or classes changed";
+		else {
+			int nAdded = countAdded(previous.rowHashes, rowHashes);
+			if (nAdded < 0)
+				reason = "training data removed or changed";
+			else {
+				generation = previous.generation + 1;
+				trees.addAll(previous.trees.subList(0, Math.min(previous.trees.size(), numTrees)));
+				if (nAdded > 0) {
+					double fraction = Math.max(replaceFraction, nAdded / (double)rowHashes.length);
+					nReplaced = (int)Math.min(trees.size(), Math.ceil(trees.size() * fraction));
+					reason = String.format("%d training instances added", nAdded);
+				} else
+					reason = "training data unchanged";
+				nKept = trees.size() - nReplaced;
+			}
+		}
+
+		// Determine which trees need to be grown (either replacements or additional trees)
+		Random random = new Random(seed * 31L + generation);
+		List<Integer> toGrow = new ArrayList<>();
+		if (nReplaced > 0) {
+			List<Integer> indices = new ArrayList<>();
+			for (int i = 0; i < trees.size(); i++)
+				indices.add(i);
+			Collections.shuffle(indices, random);
+			toGrow.addAll(indices.subList(0, nReplaced));
+			Collections.sort(toGrow);
+		}
+		while (trees.size() < numTrees) {
+			toGrow.add(trees.size());
+			trees.add(null);
+		}
+		long[] treeSeeds = new long[toGrow.size()];
+		for (int i = 0; i < treeSeeds.length; i++)
+			treeSeeds[i] = random.nextLong();
+
+		growTrees(data, trees, toGrow, treeSeeds);
+
+		this.header = header;
+		this.rowHashes = rowHashes;
+		this.trees = trees;
+		this.generation = generation;
+
+		updateSummary = String.format("%d trees kept, %d replaced, %d added (%s) in %d ms",
+				nKept, nReplaced, toGrow.size() - nReplaced, reason, System.currentTimeMillis() - startTime);
+		logger.info("Random forest update: {}", updateSummary);
+	}
+
+
+	private boolean isCompatible(final WarmStartRandomForest previous) {
+		return previous.maxDepth == maxDepth &&
+				previous.numFeatures == numFeatures &&
+				previous.bagSizePercent == bagSizePercent &&
+				previous.seed == seed;
+	}
+
+
+	private void growTrees(final Instances data, final List<RandomTree> trees, final List<Integer> toGrow, final long[] treeSeeds) throws Exception {
+		if (toGrow.isEmpty())
+			return;
+		int nThreads = Math.min(numThreads, toGrow.size());
+		if (nThreads <= 1) {
+			for (int i = 0; i < toGrow.size(); i++)
+				trees.set(toGrow.get(i), growTree(data, treeSeeds[i]));
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		try {
+			List<Future<RandomTree>> futures = new ArrayList<>();
+			for (int i = 0; i < toGrow.size(); i++) {
+				final long treeSeed = treeSeeds[i];
+				futures.add(pool.submit(() -> growTree(data, treeSeed)));
+			}
+			for (int i = 0; i < toGrow.size(); i++)
+				trees.set(toGrow.get(i), futures.get(i).get());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+
+	/**
+	 * Grow a single tree from a bootstrap sample of the data.
+	 * The tree depends only upon the data and the seed, not on any other trees.
+	 */
+	private RandomTree growTree(final Instances data, final long treeSeed) throws Exception {
+		Random random = new Random(treeSeed);
+		int n = data.numInstances();
+		int nBag = Math.max(1, (int)Math.round(n * bagSizePercent / 100.0));
+		// As for Weka's Bagging, include each sampled instance once - weighted by the number of times it was drawn
+		int[] counts = new int[n];
+		for (int i = 0; i < nBag; i++)
+			counts[random.nextInt(n)]++;
+		Instances bag = new Instances(data, nBag);
+		for (int i = 0; i < n; i++) {
+			if (counts[i] == 0)
+				continue;
+			bag.add(data.instance(i));
+			Instance instance = bag.lastInstance();
+			instance.setWeight(instance.weight() * counts[i]);
+		}
+		RandomTree tree = new RandomTree();
+		tree.setKValue(numFeatures);
+		tree.setMaxDepth(maxDepth);
+		tree.setSeed(random.nextInt());
+		tree.setDoNotCheckCapabilities(true);
+		tree.buildClassifier(bag);
+		return tree;
+	}
+
+
+	/**
+	 * Compute a sorted array of hashes, one for each instance (including its weight and class).
+	 */
+	static long[] computeRowHashes(final Instances data) {
+		long[] hashes = new long[data.numInstances()];
+		for (int i = 0; i < hashes.length; i++) {
+			Instance instance = data.instance(i);
+			long hash = mix(Double.doubleToLongBits(instance.weight()));
+			for (int a = 0; a < instance.numAttributes(); a++)
+				hash = mix(hash * 31 + Double.doubleToLongBits(instance.value(a)));
+			hashes[i] = hash;
+		}
+		Arrays.sort(hashes);
+		return hashes;
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Count how many rows have been added, given sorted arrays of row hashes.
+	 * 
+	 * @return the number of rows in current that are not in previous, or -1 if any rows of previous are missing from current
+	 */
+	static int countAdded(final long[] previous, final long[] current) {
+		if (previous == null)
+			return -1;
+		int i = 0;
+		int j = 0;
+		int nAdded = 0;
+		while (i < previous.length) {
+			if (j == current.length || previous[i] < current[j])
+				return -1;
+			if (previous[i] == current[j])
+				i++;
+			else
+				nAdded++;
+			j++;
+		}
+		return nAdded + current.length - j;
+	}
+
+
+	@Override
+	public double[] distributionForInstance(final Instance instance) throws Exception {
+		double[] sums = new double[instance.numClasses()];
+		for (RandomTree tree : trees) {
+			double[] dist = tree.distributionForInstance(instance);
+			if (dist == null)
+				continue;
+			for (int c = 0; c < sums.length; c++)
+				sums[c] += dist[c];
+		}
+		double total = 0;
+		for (double s : sums)
+			total += s;
+		if (total > 0) {
+			for (int c = 0; c < sums.length; c++)
+				sums[c] /= total;
+		}
+		return sums;
+	}
+
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Warm-start random forest\n\n");
+		sb.append(String.format("Trees: %d, max depth: %d, features: %d, bag size: %d%%, seed: %d\n",
+				trees.size(), maxDepth, numFeatures, bagSizePercent, seed));
+		if (updateSummary != null)
+			sb.append("Last update: ").append(updateSummary).append("\n");
+		return sb.toString();
+	}
+
+}
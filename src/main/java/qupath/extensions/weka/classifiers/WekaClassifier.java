@@ -30,15 +30,16 @@ import java.io.ObjectOutput;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.TreeMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import qupath.extensions.weka.WekaFeatureCache.FeatureSource;
 import qupath.extensions.weka.WekaHelpers;
 import qupath.lib.classifiers.Normalization;
 import qupath.lib.classifiers.PathObjectClassifier;
@@ -48,6 +49,7 @@ import weka.classifiers.Classifier;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Attribute;
+import weka.core.DenseInstance;
 import weka.core.Summarizable;
 import weka.filters.Filter;
 import weka.filters.unsupervised.attribute.Normalize;
@@ -63,157 +65,731 @@ public abstract class WekaClassifier implements Externalizable, PathObjectClassi
 	
 	private static final long serialVersionUID = 2L;
 	
+	/**
+	 * Version of the data written by {@link #writeExternal(ObjectOutput)}.
+	 * This is distinct from the serialVersionUID, so that additional fields can be read only when present.
+	 */
+	private static final long EXTERNAL_VERSION = 5L;
+	
 	final private static Logger logger = LoggerFactory.getLogger(WekaClassifier.class);
 	
-	private long lastModifiedTimestamp;
+	/**
+	 * Everything learned during training, replaced (never modified) whenever the classifier is trained or loaded.
+	 */
+	private transient volatile ModelSnapshot snapshot;
+	
+	private transient PredictionCache predictionCache;
+	
+	private WekaFeatureSelection.Method featureSelectionMethod = WekaFeatureSelection.Method.NONE;
+	private int maxFeatures = -1;
+	
+	private MissingValues.Policy missingValuePolicy = MissingValues.Policy.NONE;
+	private PathClass fallbackPathClass;
+	private transient MissingValues.Counts missingValueCounts = new MissingValues.Counts();
+	
+	private ProbabilityCalibration.Method calibrationMethod = ProbabilityCalibration.Method.NONE;
+	private double rejectThreshold = 0;
 	
-	private ArrayList<Attribute> trainingAttributes = new ArrayList<>();
-	private Attribute classAttribute;
-	private Classifier classifier;
-	private Filter filter;
-	private List<String> measurements = new ArrayList<>();
-	private Map<String, PathClass> pathClassMap = new TreeMap<>();
+	/**
+	 * Number of folds used to determine the held-out data for calibration (i.e. 5 folds hold out 20% of the training data).
+	 */
+	private static final int CALIBRATION_FOLDS = 5;
+	
+	private TrainingSampler trainingSampler;
+	
+	private boolean deduplicate = true;
+	private double deduplicationTolerance = 0;
 	
 	@Override
 	public List<String> getRequiredMeasurements() {
-		return Collections.unmodifiableList(measurements);
+		ModelSnapshot snapshot = this.snapshot;
+		if (snapshot == null)
+			return Collections.emptyList();
+		return snapshot.getMeasurements();
 	}
 	
 	@Override
 	public Collection<PathClass> getPathClasses() {
-		return Collections.unmodifiableCollection(pathClassMap.values());
+		ModelSnapshot snapshot = this.snapshot;
+		if (snapshot == null)
+			return Collections.emptyList();
+		return Collections.unmodifiableCollection(snapshot.getPathClassMap().values());
+	}
+
+	/**
+	 * Set the maximum number of predictions to cache, keyed by feature vector.
+	 * <p>
+	 * This can help whenever many objects have identical (or near-identical, if quantization is used) 
+	 * measurements, so that the classifier need only be applied once.
+	 * 
+	 * @param maxSize Maximum number of cached predictions; if &lt;= 0 then caching is turned off
+	 * @param quantization Quantization to apply to measurement values for matching; if &lt;= 0 then exact values are required
+	 */
+	public void setPredictionCache(final int maxSize, final double quantization) {
+		if (maxSize <= 0)
+			predictionCache = null;
+		else
+			predictionCache = new PredictionCache(maxSize, quantization);
+	}
+	
+	/**
+	 * Get the prediction cache, if one is in use.  This can be used to query hit-rate metrics.
+	 * 
+	 * @return the cache, or null if predictions are not being cached
+	 */
+	public PredictionCache getPredictionCache() {
+		return predictionCache;
 	}
 
+	/**
+	 * Set a method to use to reduce the number of features (measurements) prior to training the classifier.
+	 * <p>
+	 * If features are removed, these are no longer included in the required measurements - 
+	 * thereby reducing the cost of applying the classifier as well.
+	 * 
+	 * @param method the feature selection method (or null, or NONE, to retain all features)
+	 * @param maxFeatures maximum number of features to retain, or &lt;= 0 if this should be determined by the method
+	 */
+	public void setFeatureSelection(final WekaFeatureSelection.Method method, final int maxFeatures) {
+		this.featureSelectionMethod = method == null ? WekaFeatureSelection.Method.NONE : method;
+		this.maxFeatures = maxFeatures;
+	}
+	
+	public WekaFeatureSelection.Method getFeatureSelectionMethod() {
+		return featureSelectionMethod;
+	}
+	
+	public int getMaxFeatures() {
+		return maxFeatures;
+	}
+	
+	/**
+	 * Set how objects with missing (NaN) measurements should be handled.
+	 * <p>
+	 * The policy is applied to training data the next time the classifier is updated, and immediately when classifying objects.
+	 * Values for imputation are learned from the training data whenever the classifier is updated.
+	 * 
+	 * @param policy the policy (or null, or NONE, to pass missing values to Weka unchanged)
+	 * @param fallbackPathClass the class to assign if the policy is {@link MissingValues.Policy#FALLBACK_CLASS}; may be null, in which case objects are unclassified
+	 */
+	public void setMissingValuePolicy(final MissingValues.Policy policy, final PathClass fallbackPathClass) {
+		this.missingValuePolicy = policy == null ? MissingValues.Policy.NONE : policy;
+		this.fallbackPathClass = fallbackPathClass;
+	}
+	
+	public MissingValues.Policy getMissingValuePolicy() {
+		return missingValuePolicy;
+	}
+	
+	public PathClass getFallbackPathClass() {
+		return fallbackPathClass;
+	}
+	
+	/**
+	 * Get counts of objects with missing values encountered when classifying objects.
+	 * 
+	 * @return
+	 */
+	public MissingValues.Counts getMissingValueCounts() {
+		return missingValueCounts;
+	}
+	
+	/**
+	 * Set how predicted probabilities should be calibrated, and the minimum (calibrated) probability required to classify an object.
+	 * <p>
+	 * Calibration is fitted the next time the classifier is updated, using a classifier trained on 80% of the training data
+	 * to make predictions for the remaining 20%.  The final classifier is then trained on all the training data.
+	 * <p>
+	 * The reject threshold is applied immediately when classifying objects: objects where the probability of the 
+	 * most likely class is below the threshold are left unclassified.
+	 * 
+	 * @param method the calibration method (or null, or NONE, to use raw probabilities)
+	 * @param rejectThreshold the minimum probability required to classify an object, or 0 to always classify
+	 */
+	public void setCalibration(final ProbabilityCalibration.Method method, final double rejectThreshold) {
+		this.calibrationMethod = method == null ? ProbabilityCalibration.Method.NONE : method;
+		this.rejectThreshold = rejectThreshold;
+	}
+	
+	public ProbabilityCalibration.Method getCalibrationMethod() {
+		return calibrationMethod;
+	}
+	
+	public double getRejectThreshold() {
+		return rejectThreshold;
+	}
+	
+	/**
+	 * Get the calibration fitted when the classifier was last updated, or null if probabilities are not calibrated.
+	 * 
+	 * @return
+	 */
+	public ProbabilityCalibration getCalibration() {
+		ModelSnapshot snapshot = this.snapshot;
+		return snapshot == null ? null : snapshot.getCalibration();
+	}
+	
+	/**
+	 * Set a sampler to use to select a spatially-stratified subset of the training objects whenever the classifier is updated.
+	 * <p>
+	 * This can greatly reduce training time when large annotations contain many (often highly correlated) objects.
+	 * 
+	 * @param sampler the sampler, or null if all training objects should be used
+	 */
+	public void setTrainingSampler(final TrainingSampler sampler) {
+		this.trainingSampler = sampler;
+	}
+	
+	public TrainingSampler getTrainingSampler() {
+		return trainingSampler;
+	}
+	
+	/**
+	 * Set whether duplicate training rows should be merged into single, weighted instances before the classifier is trained.
+	 * <p>
+	 * This is only applied if the classifier supports instance weights (see {@link #supportsInstanceWeights()}).
+	 * 
+	 * @param enabled true if duplicates should be merged (the default)
+	 * @param tolerance if &gt; 0, also merge near-duplicates, using bins of this width (as a proportion of each feature's standard deviation);
+	 * 					if 0, only rows with identical features are merged
+	 * @see TrainingDeduplication
+	 */
+	public void setDeduplication(final boolean enabled, final double tolerance) {
+		this.deduplicate = enabled;
+		this.deduplicationTolerance = tolerance;
+	}
+	
+	public boolean getDeduplication() {
+		return deduplicate;
+	}
+	
+	public double getDeduplicationTolerance() {
+		return deduplicationTolerance;
+	}
+	
 	@Override
 	public boolean isValid() {
-		return classifier != null;
+		ModelSnapshot snapshot = this.snapshot;
+		return snapshot != null && snapshot.isValid();
+	}
+	
+	/**
+	 * Publish a new snapshot of the trained model.
+	 * This is the only place the model used for classification changes.
+	 */
+	private void setSnapshot(final ModelSnapshot snapshot) {
+		this.snapshot = snapshot;
 	}
 		
-	private ArrayList<Attribute> getAttributesCopy() {
-		if (trainingAttributes == null)
+	private static ArrayList<Attribute> getAttributesCopy(final ModelSnapshot snapshot) {
+		if (snapshot == null)
 			return null;
-		ArrayList<Attribute> attributes = new ArrayList<>(trainingAttributes.size());
-		for (Attribute attribute : trainingAttributes)
+		ArrayList<Attribute> attributes = new ArrayList<>(snapshot.getTrainingAttributes().size());
+		for (Attribute attribute : snapshot.getTrainingAttributes())
 			attributes.add((Attribute)attribute.copy());
 		return attributes;
 	}
 	
 	public Instances createEmptyInstances(int capacity) {
-		ArrayList<Attribute> attributes = getAttributesCopy();
+		ModelSnapshot snapshot = this.snapshot;
+		ArrayList<Attribute> attributes = getAttributesCopy(snapshot);
 		if (attributes == null || attributes.isEmpty())
 			return null;
 		Instances instances = new Instances("Explorer", attributes, capacity);
-		instances.setClass(classAttribute);
+		instances.setClass(snapshot.getClassAttribute());
 		return instances;
 	}
 	
 	
 	protected abstract Classifier createClassifier(final Instances trainingInstances) throws Exception;
 	
+	/**
+	 * Create a classifier when updating this WekaClassifier, optionally reusing the previously-trained classifier.
+	 * <p>
+	 * The default implementation simply calls {@link #createClassifier(Instances)}; subclasses may override this
+	 * to support warm-starting (in which case they should also override {@link #isWarmStartEnabled()}).  
+	 * The previous classifier must not be modified, because it may still be in use.
+	 * <p>
+	 * Note that {@link #createClassifier(Instances)} should remain independent of any previous training, 
+	 * because it may be called concurrently (e.g. for cross-validation).
+	 * 
+	 * @param trainingInstances
+	 * @param previous the classifier trained previously, or null
+	 * @return
+	 * @throws Exception
+	 */
+	protected Classifier createClassifier(final Instances trainingInstances, final Classifier previous) throws Exception {
+		return createClassifier(trainingInstances);
+	}
+	
+	
+	/**
+	 * Estimate the memory required by the Weka classifier during training, in addition to the training data itself.
+	 * <p>
+	 * The default implementation assumes that the classifier makes one copy of the training data. 
+	 * Subclasses should override this if the memory required depends upon the classifier's parameters.
+	 * 
+	 * @param nRows number of training objects
+	 * @param nFeatures number of features (excluding the class)
+	 * @param nClasses number of classes
+	 * @return
+	 * @see TrainingMemoryEstimator
+	 */
+	protected long estimateClassifierMemory(final long nRows, final int nFeatures, final int nClasses) {
+		return TrainingMemoryEstimator.estimateInstancesBytes(nRows, nFeatures + 1);
+	}
+	
+	/**
+	 * Returns true if the classifier treats an instance with weight <i>w</i> as equivalent to <i>w</i> copies of that instance,
+	 * so that duplicate training rows can be merged without changing the result.
+	 * <p>
+	 * The default is false.  Note that this isn't the same as implementing Weka's <code>WeightedInstancesHandler</code>: 
+	 * for example, bagging samples according to the number of distinct instances, and nearest neighbour classifiers
+	 * count neighbours rather than summing their weights.
+	 * 
+	 * @return
+	 * @see #setDeduplication(boolean, double)
+	 */
+	protected boolean supportsInstanceWeights() {
+		return false;
+	}
+	
+	/**
+	 * Returns true if the classifier will be updated from a previously-trained classifier, rather than trained from scratch,
+	 * whenever possible (see {@link #createClassifier(Instances, Classifier)}).
+	 * <p>
+	 * If so, the normalization &amp; imputation values of the previous model are reused whenever the features and classes are unchanged,
+	 * so that the previous training data is transformed in exactly the same way.
+	 * The default is false.
+	 * 
+	 * @return
+	 */
+	protected boolean isWarmStartEnabled() {
+		return false;
+	}
+	
+	/**
+	 * Approximate exponent describing how training time scales with the number of training instances,
+	 * used only to report the time saved by deduplication.
+	 * <p>
+	 * The default is 1, i.e. linear scaling.
+	 * 
+	 * @return
+	 */
+	protected double getTrainingTimeExponent() {
+		return 1.0;
+	}
+	
+	
+	/**
+	 * Create a (not yet initialized) Weka filter to apply the requested normalization.
+	 * 
+	 * @param normalization
+	 * @return the filter, or null if no normalization is required
+	 */
+	static Filter createNormalizationFilter(final Normalization normalization) {
+		if (normalization == null || normalization == Normalization.NONE)
+			return null;
+		if (normalization == Normalization.MIN_MAX)
+			return new Normalize();
+		return new Standardize();
+	}
+	
+	
+	
+	/**
+	 * Returns true if the model could be reused when training with the specified attributes &amp; normalization, 
+	 * i.e. if the features &amp; classes are the same, and the same type of normalization is used.
+	 */
+	private static boolean canReusePreprocessing(final ModelSnapshot previous, final List<Attribute> trainingAttributes, final Normalization normalization) {
+		if (!previous.getTrainingAttributes().equals(trainingAttributes))
+			return false;
+		Filter filter = createNormalizationFilter(normalization);
+		Filter previousFilter = previous.getFilter();
+		if (filter == null || previousFilter == null)
+			return filter == previousFilter;
+		return filter.getClass() == previousFilter.getClass();
+	}
+	
+	
+	private static int countObjects(final Map<PathClass, List<PathObject>> map) {
+		int n = 0;
+		for (List<PathObject> list : map.values())
+			n += list.size();
+		return n;
+	}
 	
 	
 	public boolean updateClassifier(final Map<PathClass, List<PathObject>> map, final List<String> measurements, Normalization normalization) {
+		return updateClassifier(map, measurements, normalization, null);
+	}
+	
+	/**
+	 * Update the classifier, optionally reading features from a {@link FeatureSource} (e.g. an on-disk feature cache) 
+	 * rather than from each object's MeasurementList.
+	 * 
+	 * @param map training objects for each classification
+	 * @param measurements the measurements to use as features
+	 * @param normalization
+	 * @param features source of features (may be null); objects not available from this source use their MeasurementList
+	 * @return
+	 */
+	public boolean updateClassifier(final Map<PathClass, List<PathObject>> map, final List<String> measurements, Normalization normalization, final FeatureSource features) {
 		
 		if (map == null || map.size() < 2) {
 			logger.error("At two classes of labelled objects are required!");
 			return false;
 		}
 		
-		// Reset variables in case we don't make it the whole way through...
-		classifier = null;
-		filter = null;
-		this.measurements.clear();
-		this.measurements.addAll(measurements);
-		this.trainingAttributes.clear();
-		
-		
-		if (map.size() <= 1) {
-			logger.error("At least two different classes required to train a classifier!");
-			return false;
-		}
-		// Determine the 'training increment' based on the maximum number of training instances
-		double trainingIncrement = 1;
+		// Train using local variables only - the model used for classification is unchanged until a new snapshot is published
+		ModelSnapshot previousSnapshot = this.snapshot;
+		ModelSnapshot snapshot = trainSnapshot(map, measurements, normalization, features, previousSnapshot);
+		Classifier classifier = snapshot.getClassifier();
+		System.out.println(classifier);
+		if (classifier instanceof Summarizable)
+			logger.info(((Summarizable)classifier).toSummaryString());
+		setSnapshot(snapshot);
+		return true;
+	}
+	
+	/**
+	 * Train a new model from labelled objects, applying all the training options of this classifier 
+	 * (sampling, feature selection, missing value handling, normalization, calibration and deduplication).
+	 * <p>
+	 * The model is returned rather than published, so this can also be used to train models for evaluation
+	 * without modifying the classifier.
+	 * 
+	 * @param map training objects for each classification; at least two classes are required
+	 * @param measurements the measurements to use as features
+	 * @param normalization
+	 * @param features source of features (may be null)
+	 * @param previous the previously-trained model, which may be updated rather than trained from scratch (may be null)
+	 * @return
+	 * @see #classifyPathObjects(ModelSnapshot, List)
+	 */
+	ModelSnapshot trainSnapshot(final Map<PathClass, List<PathObject>> map, final List<String> measurements, final Normalization normalization, final FeatureSource features, final ModelSnapshot previous) {
+		Classifier previousClassifier = previous == null ? null : previous.getClassifier();
+		List<String> trainingMeasurements = new ArrayList<>(measurements);
 		
 		// Create a map connecting PathClasses to the class names
 		// TODO: Consider using an unique identifier rather than names
-		pathClassMap.clear();
+		Map<String, PathClass> pathClassMap = new TreeMap<>();
 		for (PathClass pathClass : map.keySet())
 			pathClassMap.put(pathClass.getName(), pathClass);
 		
 		// Create attributes
-		trainingAttributes = WekaHelpers.createAttributes(measurements, map.keySet(), trainingAttributes);
-		classAttribute = trainingAttributes.get(trainingAttributes.size()-1);
+		ArrayList<Attribute> trainingAttributes = WekaHelpers.createAttributes(measurements, map.keySet(), null);
+		Attribute classAttribute = trainingAttributes.get(trainingAttributes.size()-1);
 		
 		// Create training instances
-		Instances trainingInstances = new Instances("Training", trainingAttributes, map.size());
-		trainingInstances.setClassIndex(trainingInstances.numAttributes()-1);
-		for (Map.Entry<PathClass, List<PathObject>> entry : map.entrySet()) {
-			PathClass pathClass = entry.getKey();
-			List<PathObject> list = entry.getValue();
-			for (double i = 0; i < list.size(); i += trainingIncrement) {
-				PathObject pathObject = list.get((int)i);
-				Instance instance = WekaHelpers.createInstance(pathObject.getMeasurementList(), measurements, pathClass, classAttribute);
-				if (instance != null)
-					trainingInstances.add(instance);
-			}
+		Map<PathClass, List<PathObject>> trainingMap = map;
+		if (trainingSampler != null) {
+			trainingMap = trainingSampler.sample(map);
+			logger.info("Training objects sampled: {}/{} ({})", countObjects(trainingMap), countObjects(map), trainingSampler);
 		}
 		
+		// Determine the 'training increment' based on the memory expected to be required for training
+		int nObjects = countObjects(trainingMap);
+		long estimatedBytes = TrainingMemoryEstimator.estimateTrainingBytes(this, nObjects, measurements.size(), map.size(),
+				normalization != null && normalization != Normalization.NONE, calibrationMethod != ProbabilityCalibration.Method.NONE);
+		// Reserve the memory until training is complete, so that concurrent trainings don't budget against it too
+		try (TrainingMemoryEstimator.Reservation memoryReservation = TrainingMemoryEstimator.Reservation.reserve(estimatedBytes);
+				TrainingMemoryEstimator.PeakMonitor memoryMonitor = new TrainingMemoryEstimator.PeakMonitor()) {
+			double trainingIncrement = memoryReservation.getTrainingIncrement();
+			if (trainingIncrement > 1) {
+				logger.warn("Training with {} objects would require an estimated {} MB, but only {} MB is available - using 1 in every {} objects",
+						nObjects, String.format("%.1f", TrainingMemoryEstimator.toMB(estimatedBytes)),
+						String.format("%.1f", TrainingMemoryEstimator.toMB(memoryReservation.getAvailableBytes())), String.format("%.2f", trainingIncrement));
+				estimatedBytes = memoryReservation.getBytes();
+			}
+			Instances trainingInstances = new Instances("Training", trainingAttributes, map.size());
+			trainingInstances.setClassIndex(trainingInstances.numAttributes()-1);
+			for (Map.Entry<PathClass, List<PathObject>> entry : trainingMap.entrySet()) {
+				PathClass pathClass = entry.getKey();
+				List<PathObject> list = entry.getValue();
+				double classValue = classAttribute.indexOfValue(pathClass.getName());
+				for (double i = 0; i < list.size(); i += trainingIncrement) {
+					PathObject pathObject = list.get((int)i);
+					double[] vals = new double[measurements.size() + 1];
+					int nMissing = extractMeasurements(pathObject, measurements, null, features, vals);
+					if (nMissing == measurements.size())
+						continue;
+					vals[vals.length-1] = classValue;
+					trainingInstances.add(new DenseInstance(1.0, vals));
+				}
+			}
+			// Record the number of rows corresponding to the estimate, before any are removed or merged
+			int nTrainingRows = trainingInstances.numInstances();
+		
+			// Prune features, if required
+			if (featureSelectionMethod != WekaFeatureSelection.Method.NONE && trainingInstances.numInstances() > 0) {
+				try {
+					int[] selected = WekaFeatureSelection.selectAttributes(trainingInstances, featureSelectionMethod, maxFeatures);
+					if (selected.length > 0 && selected.length < trainingMeasurements.size()) {
+						List<String> selectedMeasurements = new ArrayList<>();
+						for (int ind : selected)
+							selectedMeasurements.add(trainingMeasurements.get(ind));
+						trainingInstances = WekaFeatureSelection.retainAttributes(trainingInstances, selected);
+						logger.info("Feature selection ({}) retained {}/{} features", featureSelectionMethod, selectedMeasurements.size(), trainingMeasurements.size());
+						trainingMeasurements = selectedMeasurements;
+						trainingAttributes = WekaHelpers.createAttributes(trainingMeasurements, map.keySet(), null);
+						classAttribute = trainingAttributes.get(trainingAttributes.size()-1);
+					} else
+						logger.info("Feature selection ({}) retained all {} features", featureSelectionMethod, trainingMeasurements.size());
+				} catch (Exception e) {
+					logger.error("Feature selection failed - all features will be used", e);
+				}
+			}
+		
+			// When updating a previous model, keep its preprocessing fixed if possible - so that the previous training data
+			// is transformed exactly as before, and anything learned from it remains valid
+			ModelSnapshot warmStartSnapshot = null;
+			if (previous != null && isWarmStartEnabled()) {
+				if (canReusePreprocessing(previous, trainingAttributes, normalization)) {
+					warmStartSnapshot = previous;
+					logger.debug("Warm start: reusing normalization & imputation values from the previous model");
+				} else
+					logger.info("Warm start: features, classes or normalization have changed - preprocessing will be refitted");
+			}
+		
+			// Learn values for imputation & handle missing values in the training data
+			MissingValues.Policy missingPolicy = missingValuePolicy;
+			double[] trainingMeans = warmStartSnapshot == null || warmStartSnapshot.getTrainingMeans() == null ?
+					MissingValues.computeMeans(trainingInstances) : warmStartSnapshot.getTrainingMeans();
+			double[] trainingMedians = warmStartSnapshot == null || warmStartSnapshot.getTrainingMedians() == null ?
+					MissingValues.computeMedians(trainingInstances) : warmStartSnapshot.getTrainingMedians();
+			double[] imputationValues = missingPolicy == MissingValues.Policy.IMPUTE_MEAN ? trainingMeans : trainingMedians;
+			int nMissing = MissingValues.applyToTrainingData(trainingInstances, missingPolicy, imputationValues);
+			if (nMissing > 0)
+				logger.info("Missing value policy {} applied to {} training objects", missingPolicy, nMissing);
+		
 //		// TODO: Support normalization properly using Weka
 //		logger.warn("Weka classifiers do not yet support normalization options!");
 		
-		// Perform feature normalization
-		if (normalization != null && normalization != Normalization.NONE) {
+			// Perform feature normalization
+			Filter filter = null;
+			if (normalization != null && normalization != Normalization.NONE) {
+				try {
+					if (warmStartSnapshot != null) {
+						// The filter has already been fitted, so only needs to be applied
+						filter = Filter.makeCopy(warmStartSnapshot.getFilter());
+					} else {
+						filter = createNormalizationFilter(normalization);
+						filter.setInputFormat(trainingInstances);
+					}
+					trainingInstances = Filter.useFilter(trainingInstances, filter);
+					logger.debug("Training classifier with normalization: {}", normalization);
+				} catch (Exception e1) {
+					// TODO Auto-generated catch block
+					e1.printStackTrace();
+				}
+			} else {
+				logger.debug("Training classifier without normalization");
+			}
+		
+			// Fit calibration, if required
+			ProbabilityCalibration calibration = null;
+			if (calibrationMethod != ProbabilityCalibration.Method.NONE)
+				calibration = fitCalibration(trainingInstances, calibrationMethod);
+		
+			// Merge duplicate rows, if the classifier can use weights instead
+			TrainingDeduplication.Result deduplication = null;
+			if (deduplicate && supportsInstanceWeights()) {
+				deduplication = TrainingDeduplication.deduplicate(trainingInstances, deduplicationTolerance);
+				trainingInstances = deduplication.getInstances();
+			}
+		
+		    // Perform classification
+			Classifier classifier = null;
 			try {
-				if (normalization == Normalization.MIN_MAX)
-					filter = new Normalize();
-				else
-					filter = new Standardize();
-				filter.setInputFormat(trainingInstances);
-				trainingInstances = Filter.useFilter(trainingInstances, filter);
-				logger.debug("Training classifier with normalization: {}", normalization);
-			} catch (Exception e1) {
-				// TODO Auto-generated catch block
-				e1.printStackTrace();
+				long startTime = System.nanoTime();
+				classifier = createClassifier(trainingInstances, previousClassifier);
+				if (deduplication != null && deduplication.getRemovedCount() > 0) {
+					double trainMillis = (System.nanoTime() - startTime) / 1e6;
+					double savedMillis = trainMillis * (Math.pow((double)deduplication.getCountBefore() / deduplication.getCountAfter(), getTrainingTimeExponent()) - 1);
+					logger.info("Deduplication: {}, training time {} ms (estimated {} ms saved)", deduplication,
+							Math.round(trainMillis), Math.round(savedMillis - deduplication.getMillis()));
+				}
+//		    classifier = builder.buildClassifier(trainingInstances);
+			} catch (Exception e) {
+				e.printStackTrace();
 			}
-		} else {
-			logger.debug("Training classifier without normalization");
-			filter = null;
-		}
 		
-	    // Perform classification
+			TrainingMemoryEstimator.Record memoryRecord = new TrainingMemoryEstimator.Record(getName(),
+					nTrainingRows, measurements.size(), estimatedBytes, memoryMonitor.getPeakBytes());
+			TrainingMemoryEstimator.addRecord(memoryRecord);
+			if (memoryMonitor.isOverlapping())
+				logger.info("Training memory: {} (peak includes other trainings running at the same time)", memoryRecord);
+			else
+				logger.info("Training memory: {}", memoryRecord);
+		
+			return new ModelSnapshot(System.currentTimeMillis(), trainingAttributes, classAttribute, classifier, filter,
+					trainingMeasurements, pathClassMap, trainingMeans, trainingMedians, calibration, isThreadSafe(classifier));
+		}
+	}
+	
+	
+	/**
+	 * Fit a probability calibration, by training a classifier on part of the training data and predicting the remainder.
+	 * 
+	 * @return the calibration, or null if it could not be fitted
+	 */
+	private ProbabilityCalibration fitCalibration(final Instances trainingInstances, final ProbabilityCalibration.Method method) {
+		int nClasses = trainingInstances.numClasses();
+		if (trainingInstances.numInstances() < CALIBRATION_FOLDS * nClasses * 2) {
+			logger.warn("Not enough training data for {} calibration - probabilities will not be calibrated", method);
+			return null;
+		}
 		try {
-			classifier = createClassifier(trainingInstances);
-//		    classifier = builder.buildClassifier(trainingInstances);
-			System.out.println(classifier);
-			if (classifier instanceof Summarizable)
-				logger.info(((Summarizable)classifier).toSummaryString());
+			Instances randomized = new Instances(trainingInstances);
+			randomized.randomize(new Random(1));
+			randomized.stratify(CALIBRATION_FOLDS);
+			Instances train = randomized.trainCV(CALIBRATION_FOLDS, 0);
+			Instances holdout = randomized.testCV(CALIBRATION_FOLDS, 0);
+			Classifier classifier = createClassifier(train);
+			double[][] distributions = new double[holdout.numInstances()][];
+			int[] labels = new int[holdout.numInstances()];
+			for (int i = 0; i < distributions.length; i++) {
+				distributions[i] = classifier.distributionForInstance(holdout.instance(i));
+				labels[i] = (int)holdout.instance(i).classValue();
+			}
+			ProbabilityCalibration calibration = ProbabilityCalibration.fit(method, distributions, labels, nClasses);
+			logger.info("{}", calibration);
+			return calibration;
 		} catch (Exception e) {
-			e.printStackTrace();
+			logger.error("Unable to fit probability calibration - probabilities will not be calibrated", e);
+			return null;
 		}
-		
-		lastModifiedTimestamp = System.currentTimeMillis();
-		
-		return true;
 	}
 	
 	
 	@Override
 	public int classifyPathObjects(final Collection<PathObject> pathObjects) {
+		return classifyPathObjects(pathObjects, null);
+	}
+	
+	/**
+	 * Classify objects, optionally reading features from a {@link FeatureSource} (e.g. an on-disk feature cache) 
+	 * rather than from each object's MeasurementList.
+	 * 
+	 * @param pathObjects
+	 * @param features source of features (may be null); objects not available from this source use their MeasurementList
+	 * @return the number of objects classified
+	 */
+	public int classifyPathObjects(final Collection<PathObject> pathObjects, final FeatureSource features) {
 		if (!isValid())
 			return 0;
-		return classifyDetectionObjects(pathObjects);
+		return classifyDetectionObjects(pathObjects, features);
 	}
 	
 	
+	/**
+	 * Extract measurements for an object, using the feature source if possible and the object's MeasurementList otherwise.
+	 */
+	private static int extractMeasurements(final PathObject pathObject, final List<String> measurements, final double[] imputationValues, final FeatureSource features, final double[] values) {
+		if (features != null) {
+			int nMissing = features.extractMeasurements(pathObject, measurements, imputationValues, values);
+			if (nMissing >= 0)
+				return nMissing;
+		}
+		return WekaHelpers.extractMeasurements(pathObject.getMeasurementList(), measurements, imputationValues, values);
+	}
+	
+	
+	/**
+	 * Copy all the training options that are not part of a classifier's parameters from another classifier
+	 * (i.e. sampling, feature selection, missing value handling, calibration, the reject threshold and deduplication), 
+	 * so that both classifiers are trained &amp; applied in the same way.
+	 * 
+	 * @param source
+	 */
+	void copyTrainingOptions(final WekaClassifier source) {
+		setTrainingSampler(source.getTrainingSampler());
+		setFeatureSelection(source.getFeatureSelectionMethod(), source.getMaxFeatures());
+		setMissingValuePolicy(source.getMissingValuePolicy(), source.getFallbackPathClass());
+		setCalibration(source.getCalibrationMethod(), source.getRejectThreshold());
+		setDeduplication(source.getDeduplication(), source.getDeduplicationTolerance());
+	}
+	
+	/**
+	 * Get the trained Weka classifier currently used for classification.
+	 * This should not be used to classify instances directly unless {@link #isClassifierThreadSafe()} returns true.
+	 * 
+	 * @return the classifier, or null if the classifier has not been trained
+	 */
+	protected Classifier getTrainedClassifier() {
+		ModelSnapshot snapshot = this.snapshot;
+		return snapshot == null ? null : snapshot.getClassifier();
+	}
+	
+	/**
+	 * Returns true if the trained Weka classifier may be used to classify instances from multiple threads simultaneously.
+	 * <p>
+	 * If false, each thread that calls {@link #classifyPathObjects(Collection)} will use its own copy of the classifier
+	 * (held by the current model snapshot).
+	 * The default is false; subclasses that wrap classifiers known to be stateless when making predictions 
+	 * (e.g. decision trees) should override this to avoid the overhead of copying.
+	 * 
+	 * @return
+	 */
+	protected boolean isClassifierThreadSafe() {
+		return false;
+	}
+	
+	/**
+	 * Returns true if a specific trained classifier may be used from multiple threads.
+	 * Compiled lookup tables are always thread-safe, regardless of the classifier they were compiled from.
+	 */
+	private boolean isThreadSafe(final Classifier classifier) {
+		return classifier instanceof LookupTableClassifier || isClassifierThreadSafe();
+	}
+	
 	// Apply classification, having previously stripped out any non-detection objects
-	int classifyDetectionObjects(final Collection<PathObject> pathObjects) {
-		if (!isValid() || pathObjects == null || pathObjects.isEmpty())
+	int classifyDetectionObjects(final Collection<PathObject> pathObjects, final FeatureSource features) {
+		// Read the snapshot once, so that the model cannot change part way through
+		return classifyDetectionObjects(this.snapshot, pathObjects, features, null);
+	}
+	
+	/**
+	 * Predict the classifications of objects using a model returned by {@link #trainSnapshot(Map, List, Normalization, FeatureSource, ModelSnapshot)},
+	 * without setting the classifications of the objects themselves.
+	 * <p>
+	 * Predictions are made in exactly the same way as when classifying, including the handling of missing values and the reject threshold.
+	 * 
+	 * @param snapshot
+	 * @param pathObjects
+	 * @return the predicted classification for each object, or null for objects that would be left unclassified
+	 */
+	PathClass[] classifyPathObjects(final ModelSnapshot snapshot, final List<PathObject> pathObjects) {
+		PathClass[] predictions = new PathClass[pathObjects.size()];
+		classifyDetectionObjects(snapshot, pathObjects, null, predictions);
+		return predictions;
+	}
+	
+	/**
+	 * Classify objects using a specified snapshot.
+	 * If predictions is null, classifications are set for each object; otherwise, they are stored in the array (in iteration order)
+	 * and neither the objects nor the prediction cache &amp; missing value counts are modified.
+	 */
+	private int classifyDetectionObjects(final ModelSnapshot snapshot, final Collection<PathObject> pathObjects, final FeatureSource features, final PathClass[] predictions) {
+		if (snapshot == null || !snapshot.isValid() || pathObjects == null || pathObjects.isEmpty())
 			return 0;
 		
-		// Apply filter if we have one
+		// Weka filters & some classifiers are stateful, so use separate copies to allow classification from multiple threads
+		ModelSnapshot.Worker worker;
+		try {
+			worker = snapshot.acquireWorker();
+		} catch (Exception e) {
+			logger.error("Unable to prepare Weka classifier {}", getName(), e);
+			return 0;
+		}
+		Classifier classifier = worker.classifier;
+		Filter filter = worker.filter;
+		Instances classificationInstances = worker.header;
+		List<String> measurements = snapshot.getMeasurements();
+		Attribute classAttribute = snapshot.getClassAttribute();
+		
 		int nClassified = 0;
-		Instances classificationInstances = new Instances("Classification", trainingAttributes, 1);
-		classificationInstances.setClassIndex(classificationInstances.numAttributes()-1);
 		
 		// In the case that we have 'many' path objects, try to see if they all share the same measurement names -
 		// if so, we can get away with determining the indices only once (and potentially classifying a bit faster)
@@ -231,35 +807,120 @@ public abstract class WekaClassifier implements Externalizable, PathObjectClassi
 				namesRef = null;
 		}
 		
+		// Ensure any cached predictions are still relevant for the current model
+		PredictionCache cache = predictions == null ? predictionCache : null;
+		long modelVersion = snapshot.getVersion();
+		if (cache != null)
+			cache.validate(modelVersion);
+		int nFeatures = measurements.size();
+		
+		// Determine how to handle missing values
+		MissingValues.Policy missingPolicy = missingValuePolicy;
+		PathClass fallbackPathClass = this.fallbackPathClass;
+		double[] imputationValues = snapshot.getImputationValues(missingPolicy);
+		if (missingPolicy.isImputation() && imputationValues == null) {
+			logger.warn("No values available for imputation (classifier needs to be retrained) - missing values will be passed to Weka");
+			missingPolicy = MissingValues.Policy.NONE;
+		}
+		MissingValues.Counts counts = predictions == null ? missingValueCounts : new MissingValues.Counts();
+		
+		// Determine how to handle probabilities
+		ProbabilityCalibration calibration = snapshot.getCalibration();
+		double[] calibrated = new double[classAttribute.numValues()];
+		double rejectThreshold = this.rejectThreshold;
+		int nRejected = 0;
+		
+		int ind = -1;
 		try {
 			for (PathObject pathObject : pathObjects) {
+				ind++;
 //				if (!(pathObject instanceof PathDetectionObject))
 //					continue;
-				Instance instance;
-				if (namesRef == null || !namesRef.equals(pathObject.getMeasurementList().getMeasurementNames()))
-					instance = WekaHelpers.createInstance(pathObject.getMeasurementList(), measurements, null, classAttribute);
-				else
-					instance = WekaHelpers.createInstance(pathObject.getMeasurementList(), indices, null, classAttribute);
-				if (instance == null)
-					continue;
-				instance.setDataset(classificationInstances);
-				if (filter != null) {
-					filter.input(instance);
-					instance = filter.output();
+				double[] vals = new double[nFeatures + 1];
+				int nMissing = features == null ? -1 : features.extractMeasurements(pathObject, measurements, imputationValues, vals);
+				if (nMissing < 0) {
+					if (namesRef == null || !namesRef.equals(pathObject.getMeasurementList().getMeasurementNames()))
+						nMissing = WekaHelpers.extractMeasurements(pathObject.getMeasurementList(), measurements, imputationValues, vals);
+					else
+						nMissing = WekaHelpers.extractMeasurements(pathObject.getMeasurementList(), indices, imputationValues, vals);
+				}
+				
+				if (nMissing > 0) {
+					if (missingPolicy == MissingValues.Policy.FALLBACK_CLASS) {
+						if (predictions == null)
+							pathObject.setPathClass(fallbackPathClass);
+						else
+							predictions[ind] = fallbackPathClass;
+						counts.incrementFallback();
+						nClassified++;
+						continue;
+					}
+					if (nMissing == nFeatures) {
+						// No measurements - no point trying to classify
+						counts.incrementNoMeasurements();
+						continue;
+					}
+					if (missingPolicy == MissingValues.Policy.SKIP) {
+						counts.incrementSkipped();
+						continue;
+					}
+					if (missingPolicy.isImputation())
+						counts.incrementImputed();
+					else
+						counts.incrementPassed();
+				} else
+					counts.incrementComplete();
+				vals[nFeatures] = Double.NaN;
+				Instance instance = new DenseInstance(1.0, vals);
+				
+				// Check if we've seen the same feature vector before
+				FeatureVectorKey key = null;
+				double[] classDistribution = null;
+				if (cache != null) {
+					key = cache.createKey(instance.toDoubleArray(), nFeatures);
+					classDistribution = cache.get(modelVersion, key);
 				}
+				
+				if (classDistribution == null) {
+					instance.setDataset(classificationInstances);
+					if (filter != null) {
+						filter.input(instance);
+						instance = filter.output();
+					}
 
-//				System.out.println(instance);
-				double[] classDistribution = classifier.distributionForInstance(instance);
+//					System.out.println(instance);
+					classDistribution = classifier.distributionForInstance(instance);
+					if (cache != null)
+						cache.put(modelVersion, key, classDistribution);
+				}
+				if (calibration != null)
+					classDistribution = calibration.apply(classDistribution, calibrated);
 				int classIndex = WekaHelpers.getMaxIndex(classDistribution);
-				String className = classAttribute.value(classIndex);
-				PathClass pathClass = pathClassMap.get(className);
 				double probability = classDistribution[classIndex];
-				pathObject.setPathClass(pathClass, probability);
+				if (probability < rejectThreshold) {
+					if (predictions == null)
+						pathObject.setPathClass(null);
+					nRejected++;
+					continue;
+				}
+				String className = classAttribute.value(classIndex);
+				PathClass pathClass = snapshot.getPathClass(className);
+				if (predictions == null)
+					pathObject.setPathClass(pathClass, probability);
+				else
+					predictions[ind] = pathClass;
 				nClassified++;
 			}
+			// Only reuse the worker if nothing went wrong, in case it has been left in an inconsistent state
+			snapshot.releaseWorker(worker);
 		} catch (Exception e) {
 			logger.error("Problem applying Weka classifier {}", getName(), e);
 		}
+		if (cache != null)
+			logger.debug("{}", cache);
+		logger.debug("{}", counts);
+		if (nRejected > 0)
+			logger.debug("{} objects left unclassified (probability < {})", nRejected, rejectThreshold);
 
 		return nClassified;
 	}
@@ -267,8 +928,11 @@ public abstract class WekaClassifier implements Externalizable, PathObjectClassi
 	
 	@Override
 	public String getDescription() {
-		if (classifier == null)
+		ModelSnapshot snapshot = this.snapshot;
+		if (snapshot == null || !snapshot.isValid())
 			return "No classifier set!";
+		Classifier classifier = snapshot.getClassifier();
+		Filter filter = snapshot.getFilter();
 		
 		StringBuilder sb = new StringBuilder();
 		sb.append("Classifier:\t").append(classifier.getClass().getSimpleName()).append("\n\n");
@@ -289,6 +953,18 @@ public abstract class WekaClassifier implements Externalizable, PathObjectClassi
 		else
 			normalization = Normalization.NONE;
 		sb.append("Normalization:\t").append(normalization).append("\n\n");
+		if (featureSelectionMethod != WekaFeatureSelection.Method.NONE)
+			sb.append("Feature selection:\t").append(featureSelectionMethod).append("\n\n");
+		if (missingValuePolicy != MissingValues.Policy.NONE) {
+			sb.append("Missing values:\t").append(missingValuePolicy);
+			if (missingValuePolicy == MissingValues.Policy.FALLBACK_CLASS)
+				sb.append(" (").append(fallbackPathClass).append(")");
+			sb.append("\n\n");
+		}
+		if (snapshot.getCalibration() != null)
+			sb.append("Calibration:\t").append(snapshot.getCalibration()).append("\n\n");
+		if (rejectThreshold > 0)
+			sb.append("Reject threshold:\t").append(rejectThreshold).append("\n\n");
 		List<String> measurements = getRequiredMeasurements();
 		sb.append("Required measurements (").append(measurements.size()).append("):\n");
 		Iterator<String> iter = getRequiredMeasurements().iterator();
@@ -308,7 +984,8 @@ public abstract class WekaClassifier implements Externalizable, PathObjectClassi
 	
 	@Override
 	public long getLastModifiedTimestamp() {
-		return lastModifiedTimestamp;
+		ModelSnapshot snapshot = this.snapshot;
+		return snapshot == null ? 0L : snapshot.getTimestamp();
 	}
 
 	
@@ -316,28 +993,83 @@ public abstract class WekaClassifier implements Externalizable, PathObjectClassi
 	
 	@Override
 	public void writeExternal(ObjectOutput out) throws IOException {
-		out.writeLong(serialVersionUID);
-		out.writeLong(lastModifiedTimestamp);
-		out.writeObject(trainingAttributes);
-		out.writeObject(classAttribute);
-		out.writeObject(classifier);
-		out.writeObject(filter);
-		out.writeObject(measurements);
-		out.writeObject(pathClassMap);
+		ModelSnapshot snapshot = this.snapshot;
+		if (snapshot == null)
+			snapshot = new ModelSnapshot(0L, null, null, null, null, null, null, null, null, null, false);
+		out.writeLong(EXTERNAL_VERSION);
+		out.writeLong(snapshot.getTimestamp());
+		out.writeObject(new ArrayList<>(snapshot.getTrainingAttributes()));
+		out.writeObject(snapshot.getClassAttribute());
+		out.writeObject(snapshot.getClassifier());
+		out.writeObject(snapshot.getFilter());
+		out.writeObject(new ArrayList<>(snapshot.getMeasurements()));
+		out.writeObject(new TreeMap<>(snapshot.getPathClassMap()));
+		// Added in version 3
+		out.writeObject(missingValuePolicy.name());
+		out.writeObject(fallbackPathClass);
+		out.writeObject(snapshot.getTrainingMeans());
+		out.writeObject(snapshot.getTrainingMedians());
+		// Added in version 4
+		out.writeObject(calibrationMethod.name());
+		out.writeObject(snapshot.getCalibration());
+		out.writeDouble(rejectThreshold);
+		// Added in version 5
+		out.writeObject(featureSelectionMethod.name());
+		out.writeInt(maxFeatures);
+		out.writeBoolean(deduplicate);
+		out.writeDouble(deduplicationTolerance);
+		TrainingSampler sampler = trainingSampler;
+		out.writeBoolean(sampler != null);
+		if (sampler != null) {
+			out.writeInt(sampler.getMaxPerAnnotation());
+			out.writeInt(sampler.getMaxPerTile());
+			out.writeDouble(sampler.getTileSize());
+			out.writeLong(sampler.getSeed());
+		}
 	}
 
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-		in.readLong();
-		lastModifiedTimestamp = in.readLong();
-		trainingAttributes = (ArrayList<Attribute>)in.readObject();
-		classAttribute = (Attribute)in.readObject();
-		classifier = (Classifier)in.readObject();
-		filter = (Filter)in.readObject();
-		measurements = (List<String>)in.readObject();
-		pathClassMap = (HashMap<String, PathClass>)in.readObject();
+		long version = in.readLong();
+		long timestamp = in.readLong();
+		ArrayList<Attribute> trainingAttributes = (ArrayList<Attribute>)in.readObject();
+		Attribute classAttribute = (Attribute)in.readObject();
+		Classifier classifier = (Classifier)in.readObject();
+		Filter filter = (Filter)in.readObject();
+		List<String> measurements = (List<String>)in.readObject();
+		Map<String, PathClass> pathClassMap = (Map<String, PathClass>)in.readObject();
+		double[] trainingMeans = null;
+		double[] trainingMedians = null;
+		if (version >= 3) {
+			missingValuePolicy = MissingValues.Policy.valueOf((String)in.readObject());
+			fallbackPathClass = (PathClass)in.readObject();
+			trainingMeans = (double[])in.readObject();
+			trainingMedians = (double[])in.readObject();
+		}
+		ProbabilityCalibration calibration = null;
+		if (version >= 4) {
+			calibrationMethod = ProbabilityCalibration.Method.valueOf((String)in.readObject());
+			calibration = (ProbabilityCalibration)in.readObject();
+			rejectThreshold = in.readDouble();
+		}
+		if (version >= 5) {
+			featureSelectionMethod = WekaFeatureSelection.Method.valueOf((String)in.readObject());
+			maxFeatures = in.readInt();
+			deduplicate = in.readBoolean();
+			deduplicationTolerance = in.readDouble();
+			if (in.readBoolean()) {
+				trainingSampler = new TrainingSampler()
+						.setMaxPerAnnotation(in.readInt())
+						.setMaxPerTile(in.readInt())
+						.setTileSize(in.readDouble())
+						.setSeed(in.readLong());
+			} else
+				trainingSampler = null;
+		}
+		setSnapshot(new ModelSnapshot(timestamp, trainingAttributes, classAttribute, classifier, filter,
+				measurements, pathClassMap, trainingMeans, trainingMedians, calibration, isThreadSafe(classifier)));
 	}
 	
 }
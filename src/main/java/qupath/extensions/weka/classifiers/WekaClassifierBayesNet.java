@@ -29,12 +29,16 @@ import weka.core.Instances;
 
 /**
  * QuPath wrapper for a classifier using Weka's Bayes net implementation.
+ * <p>
+ * The trained network is compiled into a {@link LookupTableClassifier} for classification.
  * 
  * @author Pete Bankhead
  *
  */
 public class WekaClassifierBayesNet extends WekaClassifier {
 	
+	private static final long serialVersionUID = -6760665117218436039L;
+	
 	@Override
 	public String getName() {
 		return "Bayes Net";
@@ -45,11 +49,16 @@ public class WekaClassifierBayesNet extends WekaClassifier {
 		return true;
 	}
 
+	@Override
+	protected boolean supportsInstanceWeights() {
+		return true;
+	}
+
 	@Override
 	protected Classifier createClassifier(Instances trainingInstances) throws Exception {
 		BayesNet classifier = new BayesNet();
 		classifier.buildClassifier(trainingInstances);
-		return classifier;
+		return LookupTableClassifier.compile(classifier);
 	}
 	
 	
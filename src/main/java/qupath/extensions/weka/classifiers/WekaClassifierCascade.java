@@ -0,0 +1,279 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Collection;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.extensions.weka.WekaFeatureCache.FeatureSource;
+import qupath.extensions.weka.WekaHelpers;
+import qupath.lib.objects.PathObject;
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.plugins.parameters.Parameterizable;
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+
+/**
+ * QuPath wrapper for a {@link CascadeClassifier}, which applies a fast Weka classifier to every object
+ * and a more expensive classifier only to objects where the fast classifier is uncertain.
+ * <p>
+ * Each stage is specified by its class name and an option string, as for {@link WekaClassifierGeneric}.
+ * The fraction of objects escalated to the expensive classifier is always logged after classification, and included in the description.
+ * Optionally, the cascade can also be evaluated on held-out training data to estimate the fraction escalated
+ * and the speed-up compared to applying the expensive classifier alone.
+ * This is off by default, since it requires training each classifier twice.
+ */
+public class WekaClassifierCascade extends WekaClassifier implements Parameterizable {
+
+	private static final long serialVersionUID = 1L;
+
+	final private static Logger logger = LoggerFactory.getLogger(WekaClassifierCascade.class);
+
+	private String fastClassName = "weka.classifiers.trees.J48";
+	private String fastOptions = "-C 0.25 -M 10";
+	private String expensiveClassName = "weka.classifiers.trees.RandomForest";
+	private String expensiveOptions = "";
+	private double threshold = 0.9;
+	private boolean evaluate = false;
+
+	private transient ParameterList params;
+
+	/**
+	 * Immutable copy of the cascade parameters, read once whenever they are needed - so that training
+	 * (which may occur on several threads at once, e.g. for cross-validation) never modifies the wrapper.
+	 */
+	private static class CascadeConfig {
+
+		private final String fastClassName;
+		private final String fastOptions;
+		private final String expensiveClassName;
+		private final String expensiveOptions;
+		private final double threshold;
+		private final boolean evaluate;
+
+		private CascadeConfig(final String fastClassName, final String fastOptions, final String expensiveClassName, final String expensiveOptions,
+				final double threshold, final boolean evaluate) {
+			this.fastClassName = fastClassName;
+			this.fastOptions = fastOptions;
+			this.expensiveClassName = expensiveClassName;
+			this.expensiveOptions = expensiveOptions;
+			this.threshold = threshold;
+			this.evaluate = evaluate;
+		}
+
+	}
+
+	@Override
+	public String getName() {
+		return "Cascade (fast + expensive)";
+	}
+
+	@Override
+	public boolean supportsAutoUpdate() {
+		// We don't know how expensive training might be
+		return false;
+	}
+
+	@Override
+	protected boolean supportsInstanceWeights() {
+		try {
+			CascadeClassifier classifier = createUntrainedCascade(getConfig());
+			return WekaClassifierGeneric.handlesInstanceWeights(classifier.getFastClassifier()) &&
+					WekaClassifierGeneric.handlesInstanceWeights(classifier.getExpensiveClassifier());
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	@Override
+	protected Classifier createClassifier(Instances trainingInstances) throws Exception {
+		CascadeClassifier classifier = createUntrainedCascade(getConfig());
+		classifier.buildClassifier(trainingInstances);
+		return classifier;
+	}
+
+	/**
+	 * Train the cascade, evaluating it on held-out data first if requested.
+	 * <p>
+	 * The evaluation is only performed here (when training the model itself), and not by {@link #createClassifier(Instances)}, 
+	 * which is also used for calibration and parameter searches - where the extra training would be wasted.
+	 */
+	@Override
+	protected Classifier createClassifier(Instances trainingInstances, Classifier previous) throws Exception {
+		CascadeConfig config = getConfig();
+		String summary = config.evaluate ? evaluateCascade(trainingInstances, config) : null;
+		CascadeClassifier classifier = createUntrainedCascade(config);
+		classifier.buildClassifier(trainingInstances);
+		classifier.setSummary(summary);
+		return classifier;
+	}
+
+	/**
+	 * Classify objects, and then log the fraction escalated to the expensive classifier since the cascade was trained.
+	 */
+	@Override
+	public int classifyPathObjects(final Collection<PathObject> pathObjects, final FeatureSource features) {
+		int n = super.classifyPathObjects(pathObjects, features);
+		Classifier classifier = getTrainedClassifier();
+		if (classifier instanceof CascadeClassifier)
+			logger.info(((CascadeClassifier)classifier).getEscalationSummary());
+		return n;
+	}
+
+	private CascadeConfig getConfig() {
+		ParameterList params = this.params;
+		if (params == null)
+			return new CascadeConfig(fastClassName, fastOptions, expensiveClassName, expensiveOptions, threshold, evaluate);
+		return new CascadeConfig(
+				params.getStringParameterValue("fastClass"),
+				params.getStringParameterValue("fastOptions"),
+				params.getStringParameterValue("expensiveClass"),
+				params.getStringParameterValue("expensiveOptions"),
+				params.getDoubleParameterValue("threshold"),
+				params.getBooleanParameterValue("evaluate"));
+	}
+
+	private static CascadeClassifier createUntrainedCascade(final CascadeConfig config) throws Exception {
+		return new CascadeClassifier(
+				WekaClassifierGeneric.createUntrainedClassifier(config.fastClassName, config.fastOptions),
+				WekaClassifierGeneric.createUntrainedClassifier(config.expensiveClassName, config.expensiveOptions),
+				config.threshold);
+	}
+
+	/**
+	 * Train a cascade on 80% of the training data, and evaluate it on the remaining 20%.
+	 * 
+	 * @return a summary of the evaluation, or null if there was too little training data
+	 */
+	private static String evaluateCascade(final Instances trainingInstances, final CascadeConfig config) throws Exception {
+		int nFolds = 5;
+		if (trainingInstances.numInstances() < nFolds * trainingInstances.numClasses() * 2) {
+			logger.warn("Not enough training data to evaluate cascade");
+			return null;
+		}
+		Instances randomized = new Instances(trainingInstances);
+		randomized.randomize(new Random(1));
+		randomized.stratify(nFolds);
+		Instances train = randomized.trainCV(nFolds, 0);
+		Instances test = randomized.testCV(nFolds, 0);
+
+		CascadeClassifier cascade = createUntrainedCascade(config);
+		cascade.buildClassifier(train);
+		Classifier fast = cascade.getFastClassifier();
+		Classifier expensive = cascade.getExpensiveClassifier();
+
+		int nEscalated = 0;
+		int nCorrectCascade = 0;
+		int nCorrectExpensive = 0;
+		for (int i = 0; i < test.numInstances(); i++) {
+			double classValue = test.instance(i).classValue();
+			double[] distribution = fast.distributionForInstance(test.instance(i));
+			if (!cascade.isConfident(distribution)) {
+				nEscalated++;
+				distribution = expensive.distributionForInstance(test.instance(i));
+			}
+			if (WekaHelpers.getMaxIndex(distribution) == classValue)
+				nCorrectCascade++;
+			if (WekaHelpers.getMaxIndex(expensive.distributionForInstance(test.instance(i))) == classValue)
+				nCorrectExpensive++;
+		}
+
+		double rateExpensive = measureThroughput(expensive, test);
+		double rateCascade = measureThroughput(cascade, test);
+		int n = test.numInstances();
+		String summary = String.format("Held-out evaluation (%d objects): %.1f%% escalated, accuracy %.2f%% (expensive alone %.2f%%), %.0f vs %.0f objects/s (%.2fx speed-up)",
+				n, nEscalated * 100.0 / n,
+				nCorrectCascade * 100.0 / n, nCorrectExpensive * 100.0 / n,
+				rateCascade, rateExpensive, rateCascade / rateExpensive);
+		logger.info(summary);
+		return summary;
+	}
+
+	/**
+	 * Estimate the number of instances classified per second, repeating classification until at least 200 ms has elapsed.
+	 */
+	private static double measureThroughput(final Classifier classifier, final Instances instances) throws Exception {
+		long minTime = 200_000_000L;
+		long count = 0;
+		long startTime = System.nanoTime();
+		long elapsed;
+		do {
+			for (int i = 0; i < instances.numInstances(); i++)
+				classifier.distributionForInstance(instances.instance(i));
+			count += instances.numInstances();
+			elapsed = System.nanoTime() - startTime;
+		} while (elapsed < minTime);
+		return count / (elapsed / 1e9);
+	}
+
+	@Override
+	public ParameterList getParameterList() {
+		if (params == null) {
+			params = new ParameterList()
+					.addStringParameter("fastClass", "Fast classifier", fastClassName, "Class name of the Weka classifier applied to all objects")
+					.addStringParameter("fastOptions", "Fast classifier options", fastOptions, "Options for the fast classifier, in the format used by Weka's command line")
+					.addStringParameter("expensiveClass", "Expensive classifier", expensiveClassName, "Class name of the Weka classifier applied only when the fast classifier is uncertain")
+					.addStringParameter("expensiveOptions", "Expensive classifier options", expensiveOptions, "Options for the expensive classifier, in the format used by Weka's command line")
+					.addDoubleParameter("threshold", "Confidence threshold", threshold, null, "Minimum probability output by the fast classifier for its prediction to be accepted")
+					.addBooleanParameter("evaluate", "Report speed-up", evaluate, "Evaluate the cascade on held-out training data to report the fraction escalated and speed-up (requires training each classifier twice)");
+		}
+		return params;
+	}
+
+	@Override
+	public void resetParameterList() {
+		params = null;
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		super.writeExternal(out);
+		CascadeConfig config = getConfig();
+		out.writeObject(config.fastClassName);
+		out.writeObject(config.fastOptions);
+		out.writeObject(config.expensiveClassName);
+		out.writeObject(config.expensiveOptions);
+		out.writeDouble(config.threshold);
+		out.writeBoolean(config.evaluate);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		super.readExternal(in);
+		fastClassName = (String)in.readObject();
+		fastOptions = (String)in.readObject();
+		expensiveClassName = (String)in.readObject();
+		expensiveOptions = (String)in.readObject();
+		threshold = in.readDouble();
+		evaluate = in.readBoolean();
+		params = null;
+	}
+
+}
@@ -0,0 +1,430 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.classifiers.Normalization;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.plugins.parameters.Parameterizable;
+
+/**
+ * Evaluate the performance of a WekaClassifier, using stratified k-fold cross-validation
+ * and learning curves.
+ * <p>
+ * Folds are trained and tested in parallel, and the time taken for training and prediction is
+ * recorded for each, so that classifiers can be compared both in terms of accuracy and throughput.
+ */
+public class WekaClassifierEvaluation {
+
+	final private static Logger logger = LoggerFactory.getLogger(WekaClassifierEvaluation.class);
+
+	/**
+	 * Results for a single fold of a cross-validation.
+	 */
+	public static class FoldResult {
+
+		private final int fold;
+		private final int nTrain;
+		private final int nTest;
+		private final long trainNanos;
+		private final long predictNanos;
+		private final long[][] confusion;
+
+		FoldResult(final int fold, final int nTrain, final int nTest, final long trainNanos, final long predictNanos, final long[][] confusion) {
+			this.fold = fold;
+			this.nTrain = nTrain;
+			this.nTest = nTest;
+			this.trainNanos = trainNanos;
+			this.predictNanos = predictNanos;
+			this.confusion = confusion;
+		}
+
+		public int getFold() {
+			return fold;
+		}
+
+		public int getTrainingCount() {
+			return nTrain;
+		}
+
+		public int getTestCount() {
+			return nTest;
+		}
+
+		public double getTrainMillis() {
+			return trainNanos / 1e6;
+		}
+
+		public double getPredictMillis() {
+			return predictNanos / 1e6;
+		}
+
+		/**
+		 * Get the number of test instances classified per second.
+		 * 
+		 * @return
+		 */
+		public double getPredictionsPerSecond() {
+			return predictNanos == 0 ? Double.NaN : nTest / (predictNanos / 1e9);
+		}
+
+		public double getAccuracy() {
+			return computeAccuracy(confusion);
+		}
+
+	}
+
+	/**
+	 * Results of a cross-validation, combining all folds.
+	 */
+	public static class EvaluationResult {
+
+		private final List<String> classNames;
+		private final List<FoldResult> folds;
+		private final long[][] confusion;
+
+		EvaluationResult(final List<String> classNames, final List<FoldResult> folds) {
+			this.classNames = Collections.unmodifiableList(new ArrayList<>(classNames));
+			this.folds = Collections.unmodifiableList(new ArrayList<>(folds));
+			int n = classNames.size();
+			confusion = new long[n][n];
+			for (FoldResult fold : folds) {
+				for (int i = 0; i < n; i++) {
+					for (int j = 0; j < n; j++)
+						confusion[i][j] += fold.confusion[i][j];
+				}
+			}
+		}
+
+		public List<String> getClassNames() {
+			return classNames;
+		}
+
+		public List<FoldResult> getFolds() {
+			return folds;
+		}
+
+		/**
+		 * Get the confusion matrix, where rows give the true class &amp; columns the predicted class.
+		 * 
+		 * @return
+		 */
+		public long[][] getConfusionMatrix() {
+			long[][] copy = new long[confusion.length][];
+			for (int i = 0; i < confusion.length; i++)
+				copy[i] = confusion[i].clone();
+			return copy;
+		}
+
+		public double getAccuracy() {
+			return computeAccuracy(confusion);
+		}
+
+		/**
+		 * Get the mean number of training instances per fold.
+		 * 
+		 * @return
+		 */
+		public double getMeanTrainingCount() {
+			double sum = 0;
+			for (FoldResult fold : folds)
+				sum += fold.getTrainingCount();
+			return folds.isEmpty() ? Double.NaN : sum / folds.size();
+		}
+
+		public double getMeanTrainMillis() {
+			double sum = 0;
+			for (FoldResult fold : folds)
+				sum += fold.getTrainMillis();
+			return folds.isEmpty() ? Double.NaN : sum / folds.size();
+		}
+
+		public double getMeanPredictMillis() {
+			double sum = 0;
+			for (FoldResult fold : folds)
+				sum += fold.getPredictMillis();
+			return folds.isEmpty() ? Double.NaN : sum / folds.size();
+		}
+
+		/**
+		 * Get the overall number of test instances classified per second (per thread).
+		 * 
+		 * @return
+		 */
+		public double getPredictionsPerSecond() {
+			long nTest = 0;
+			long nanos = 0;
+			for (FoldResult fold : folds) {
+				nTest += fold.nTest;
+				nanos += fold.predictNanos;
+			}
+			return nanos == 0 ? Double.NaN : nTest / (nanos / 1e9);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("Accuracy:\t%.2f%%\n", getAccuracy() * 100));
+			sb.append(String.format("Mean training time:\t%.1f ms\n", getMeanTrainMillis()));
+			sb.append(String.format("Mean prediction time:\t%.1f ms (%.0f objects/s)\n", getMeanPredictMillis(), getPredictionsPerSecond()));
+			sb.append("\nFold\tTrain\tTest\tAccuracy\tTrain (ms)\tPredict (ms)\n");
+			for (FoldResult fold : folds) {
+				sb.append(String.format("%d\t%d\t%d\t%.4f\t%.1f\t%.1f\n",
+						fold.getFold(), fold.getTrainingCount(), fold.getTestCount(), fold.getAccuracy(), fold.getTrainMillis(), fold.getPredictMillis()));
+			}
+			sb.append("\nConfusion matrix (rows = true class, columns = predicted class)\n");
+			for (String name : classNames)
+				sb.append("\t").append(name);
+			sb.append("\n");
+			for (int i = 0; i < confusion.length; i++) {
+				sb.append(classNames.get(i));
+				for (int j = 0; j < confusion[i].length; j++)
+					sb.append("\t").append(confusion[i][j]);
+				sb.append("\n");
+			}
+			return sb.toString();
+		}
+
+	}
+
+
+	/**
+	 * Run a stratified k-fold cross-validation, training a new model for each fold using all the training options of a WekaClassifier
+	 * (including sampling, feature selection, missing value handling, calibration and deduplication), 
+	 * and predicting classifications in the same way as {@link WekaClassifier#classifyPathObjects(java.util.Collection)}.
+	 * <p>
+	 * Note that the WekaClassifier itself is not modified, and neither are the classifications of the objects.
+	 * Objects that would be left unclassified (e.g. because of the reject threshold) are excluded from the confusion matrix.
+	 * 
+	 * @param wekaClassifier the classifier to evaluate
+	 * @param map training objects, as would be passed to {@link WekaClassifier#updateClassifier(Map, List, Normalization)}
+	 * @param measurements the measurements to use as features
+	 * @param normalization normalization to apply (fitted only on each training fold)
+	 * @param nFolds number of folds
+	 * @param seed seed for the random number generator used for shuffling
+	 * @param nThreads number of folds to process in parallel; if &lt;= 0, the number of available processors will be used
+	 * @return
+	 * @throws Exception
+	 */
+	public static EvaluationResult crossValidate(final WekaClassifier wekaClassifier, final Map<PathClass, List<PathObject>> map, final List<String> measurements, final Normalization normalization, final int nFolds, final long seed, final int nThreads) throws Exception {
+		Map<Double, EvaluationResult> results = learningCurve(wekaClassifier, map, measurements, normalization, new double[]{1.0}, nFolds, seed, nThreads);
+		return results.get(1.0);
+	}
+
+
+	/**
+	 * Compute a learning curve, by running a stratified k-fold cross-validation with the training fold
+	 * of each subsampled to a specified proportion (while retaining the proportion of each class).
+	 * <p>
+	 * All fractions and folds are processed in parallel, and each is tested using the full test fold.
+	 * Folds are trained &amp; tested as described for {@link #crossValidate(WekaClassifier, Map, List, Normalization, int, long, int)}.
+	 * 
+	 * @param wekaClassifier the classifier to evaluate
+	 * @param map training objects, as would be passed to {@link WekaClassifier#updateClassifier(Map, List, Normalization)}
+	 * @param measurements the measurements to use as features
+	 * @param normalization normalization to apply (fitted only on each training fold)
+	 * @param fractions proportions of each training fold to use, each in the range (0, 1]
+	 * @param nFolds number of folds
+	 * @param seed seed for the random number generator used for shuffling and subsampling
+	 * @param nThreads number of folds to process in parallel; if &lt;= 0, the number of available processors will be used
+	 * @return a map from each training fraction to the corresponding cross-validation results
+	 * @throws Exception
+	 */
+	public static Map<Double, EvaluationResult> learningCurve(final WekaClassifier wekaClassifier, final Map<PathClass, List<PathObject>> map, final List<String> measurements, final Normalization normalization, final double[] fractions, final int nFolds, final long seed, final int nThreads) throws Exception {
+		if (map == null || map.size() < 2)
+			throw new IllegalArgumentException("At least two classes of labelled objects are required!");
+		if (nFolds < 2)
+			throw new IllegalArgumentException("At least two folds are required for cross-validation!");
+		for (double fraction : fractions) {
+			if (!(fraction > 0 && fraction <= 1))
+				throw new IllegalArgumentException("Training fractions must be in the range (0, 1]!");
+		}
+
+		// Shuffle the objects for each class, then assign them to folds in turn (so that each fold has the same proportion of each class)
+		Random random = new Random(seed);
+		List<String> classNames = new ArrayList<>();
+		Map<PathClass, List<PathObject>> shuffled = new LinkedHashMap<>();
+		int nObjects = 0;
+		for (Map.Entry<PathClass, List<PathObject>> entry : map.entrySet()) {
+			List<PathObject> list = new ArrayList<>(entry.getValue());
+			Collections.shuffle(list, random);
+			shuffled.put(entry.getKey(), list);
+			classNames.add(entry.getKey().getName());
+			nObjects += list.size();
+		}
+		if (nObjects < nFolds)
+			throw new IllegalArgumentException("Not enough training objects for " + nFolds + "-fold cross-validation!");
+
+		// Ensure any lazily-created parameters exist before training in parallel
+		if (wekaClassifier instanceof Parameterizable)
+			((Parameterizable)wekaClassifier).getParameterList();
+
+		// Create the folds up front, then train & test these in parallel
+		int n = nThreads <= 0 ? Runtime.getRuntime().availableProcessors() : nThreads;
+		ExecutorService pool = Executors.newFixedThreadPool(n);
+		Map<Double, List<Future<FoldResult>>> futures = new LinkedHashMap<>();
+		try {
+			for (double fraction : fractions) {
+				List<Future<FoldResult>> list = new ArrayList<>();
+				for (int fold = 0; fold < nFolds; fold++) {
+					Map<PathClass, List<PathObject>> train = new LinkedHashMap<>();
+					List<PathObject> test = new ArrayList<>();
+					List<Integer> testClasses = new ArrayList<>();
+					int classIndex = 0;
+					for (Map.Entry<PathClass, List<PathObject>> entry : shuffled.entrySet()) {
+						List<PathObject> trainList = new ArrayList<>();
+						List<PathObject> objects = entry.getValue();
+						for (int i = 0; i < objects.size(); i++) {
+							if (i % nFolds == fold) {
+								test.add(objects.get(i));
+								testClasses.add(classIndex);
+							} else
+								trainList.add(objects.get(i));
+						}
+						if (fraction < 1)
+							trainList = stratifiedSubsample(trainList, fraction, new Random(seed + fold));
+						train.put(entry.getKey(), trainList);
+						classIndex++;
+					}
+					list.add(pool.submit(new FoldTask(wekaClassifier, measurements, normalization, fold, classNames, train, test, testClasses)));
+				}
+				futures.put(fraction, list);
+			}
+
+			Map<Double, EvaluationResult> results = new LinkedHashMap<>();
+			for (Map.Entry<Double, List<Future<FoldResult>>> entry : futures.entrySet()) {
+				List<FoldResult> foldResults = new ArrayList<>();
+				for (Future<FoldResult> future : entry.getValue())
+					foldResults.add(future.get());
+				EvaluationResult result = new EvaluationResult(classNames, foldResults);
+				logger.debug("{} with {} training fraction: accuracy = {}", wekaClassifier.getName(), entry.getKey(), result.getAccuracy());
+				results.put(entry.getKey(), result);
+			}
+			return results;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+
+	/**
+	 * Subsample the objects of a single class, retaining at least one object (where available).
+	 * 
+	 * @param objects
+	 * @param fraction
+	 * @param random
+	 * @return
+	 */
+	static List<PathObject> stratifiedSubsample(final List<PathObject> objects, final double fraction, final Random random) {
+		if (objects.isEmpty())
+			return objects;
+		List<PathObject> list = new ArrayList<>(objects);
+		Collections.shuffle(list, random);
+		int n = Math.max(1, (int)Math.round(list.size() * fraction));
+		return new ArrayList<>(list.subList(0, n));
+	}
+
+
+	static double computeAccuracy(final long[][] confusion) {
+		long nCorrect = 0;
+		long nTotal = 0;
+		for (int i = 0; i < confusion.length; i++) {
+			for (int j = 0; j < confusion[i].length; j++) {
+				if (i == j)
+					nCorrect += confusion[i][j];
+				nTotal += confusion[i][j];
+			}
+		}
+		return nTotal == 0 ? Double.NaN : (double)nCorrect / nTotal;
+	}
+
+
+	private static class FoldTask implements Callable<FoldResult> {
+
+		private final WekaClassifier wekaClassifier;
+		private final List<String> measurements;
+		private final Normalization normalization;
+		private final int fold;
+		private final List<String> classNames;
+		private Map<PathClass, List<PathObject>> train;
+		private final List<PathObject> test;
+		private final List<Integer> testClasses;
+
+		FoldTask(final WekaClassifier wekaClassifier, final List<String> measurements, final Normalization normalization, final int fold,
+				final List<String> classNames, final Map<PathClass, List<PathObject>> train, final List<PathObject> test, final List<Integer> testClasses) {
+			this.wekaClassifier = wekaClassifier;
+			this.measurements = measurements;
+			this.normalization = normalization;
+			this.fold = fold;
+			this.classNames = classNames;
+			this.train = train;
+			this.test = test;
+			this.testClasses = testClasses;
+		}
+
+		@Override
+		public FoldResult call() throws Exception {
+			int nTrain = 0;
+			for (List<PathObject> list : train.values())
+				nTrain += list.size();
+
+			long startTime = System.nanoTime();
+			ModelSnapshot snapshot = wekaClassifier.trainSnapshot(train, measurements, normalization, null, null);
+			long trainNanos = System.nanoTime() - startTime;
+			if (snapshot == null || !snapshot.isValid())
+				throw new Exception("Unable to train " + wekaClassifier.getName() + " for fold " + fold);
+
+			// Make the training objects available for garbage collection
+			train = null;
+
+			int nClasses = classNames.size();
+			long[][] confusion = new long[nClasses][nClasses];
+			startTime = System.nanoTime();
+			PathClass[] predictions = wekaClassifier.classifyPathObjects(snapshot, test);
+			long predictNanos = System.nanoTime() - startTime;
+			for (int i = 0; i < predictions.length; i++) {
+				int predicted = predictions[i] == null ? -1 : classNames.indexOf(predictions[i].getName());
+				if (predicted >= 0)
+					confusion[testClasses.get(i)][predicted]++;
+			}
+			return new FoldResult(fold, nTrain, test.size(), trainNanos, predictNanos, confusion);
+		}
+
+	}
+
+}
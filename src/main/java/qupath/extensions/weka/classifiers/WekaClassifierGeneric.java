@@ -0,0 +1,191 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.plugins.parameters.Parameterizable;
+import weka.classifiers.Classifier;
+import weka.classifiers.lazy.IBk;
+import weka.classifiers.meta.Bagging;
+import weka.core.Instances;
+import weka.core.OptionHandler;
+import weka.core.Utils;
+import weka.core.WeightedInstancesHandler;
+
+/**
+ * QuPath wrapper for any Weka classifier, specified by its class name and an option string
+ * (as used by Weka's command line and Explorer).
+ * <p>
+ * For example, <code>new WekaClassifierGeneric("k-NN", "weka.classifiers.lazy.IBk", "-K 5")</code>.
+ */
+public class WekaClassifierGeneric extends WekaClassifier implements Parameterizable {
+
+	private static final long serialVersionUID = 1L;
+
+	private String name;
+	private String className;
+	private String options;
+
+	private transient ParameterList params;
+
+	/**
+	 * Default constructor, required for deserialization.
+	 */
+	public WekaClassifierGeneric() {
+		this(null, null, null);
+	}
+
+	/**
+	 * Create a wrapper for a Weka classifier.
+	 * 
+	 * @param name display name (if null, the simple class name will be used)
+	 * @param className full class name of the Weka classifier
+	 * @param options default options for the Weka classifier (may be null)
+	 */
+	public WekaClassifierGeneric(final String name, final String className, final String options) {
+		this.className = className;
+		this.options = options == null ? "" : options;
+		if (name == null && className != null)
+			this.name = className.substring(className.lastIndexOf('.') + 1);
+		else
+			this.name = name;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	public String getWekaClassName() {
+		return className;
+	}
+
+	/**
+	 * Get the current option string.
+	 * 
+	 * @return
+	 */
+	public String getOptions() {
+		if (params != null)
+			return params.getStringParameterValue("options");
+		return options;
+	}
+
+	@Override
+	public boolean supportsAutoUpdate() {
+		// We don't know how expensive training might be
+		return false;
+	}
+
+	@Override
+	protected boolean supportsInstanceWeights() {
+		try {
+			return handlesInstanceWeights(createUntrainedClassifier(className, getOptions()));
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	@Override
+	protected Classifier createClassifier(Instances trainingInstances) throws Exception {
+		Classifier classifier = createUntrainedClassifier(className, getOptions());
+		classifier.buildClassifier(trainingInstances);
+		return classifier;
+	}
+	
+	/**
+	 * Returns true if a Weka classifier treats instance weights as equivalent to repeated instances.
+	 * <p>
+	 * Classifiers that use bagging or count nearest neighbours are excluded, even though they accept weights,
+	 * because merging duplicates would change their results.
+	 * 
+	 * @param classifier
+	 * @return
+	 */
+	static boolean handlesInstanceWeights(final Classifier classifier) {
+		return classifier instanceof WeightedInstancesHandler && 
+				!(classifier instanceof Bagging) &&
+				!(classifier instanceof IBk);
+	}
+	
+	/**
+	 * Create a Weka classifier from its class name and option string.
+	 * <p>
+	 * The class is loaded using the same class loader as the extension (which is also used to find Weka), 
+	 * rather than relying on Weka's own class discovery.
+	 * 
+	 * @param className
+	 * @param options
+	 * @return
+	 * @throws Exception
+	 */
+	static Classifier createUntrainedClassifier(final String className, final String options) throws Exception {
+		Class<?> cls = Class.forName(className, true, WekaClassifierGeneric.class.getClassLoader());
+		if (!Classifier.class.isAssignableFrom(cls))
+			throw new IllegalArgumentException(className + " is not a Weka classifier!");
+		Classifier classifier = (Classifier)cls.newInstance();
+		if (options != null && !options.trim().isEmpty()) {
+			if (classifier instanceof OptionHandler)
+				((OptionHandler)classifier).setOptions(Utils.splitOptions(options));
+			else
+				throw new IllegalArgumentException(className + " does not support options!");
+		}
+		return classifier;
+	}
+
+	@Override
+	public ParameterList getParameterList() {
+		if (params == null) {
+			params = new ParameterList().addStringParameter("options", "Weka options", options, "Options for " + className + ", in the format used by Weka's command line");
+		}
+		return params;
+	}
+
+	@Override
+	public void resetParameterList() {
+		params = null;
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		super.writeExternal(out);
+		out.writeObject(name);
+		out.writeObject(className);
+		out.writeObject(getOptions());
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		super.readExternal(in);
+		name = (String)in.readObject();
+		className = (String)in.readObject();
+		options = (String)in.readObject();
+		params = null;
+	}
+
+}
@@ -35,6 +35,8 @@ import weka.core.Instances;
  */
 public class WekaClassifierJ48 extends WekaClassifier {
 	
+	private static final long serialVersionUID = 7482282044080004480L;
+	
 	@Override
 	public String getName() {
 		return "J48";
@@ -45,6 +47,16 @@ public class WekaClassifierJ48 extends WekaClassifier {
 		return true;
 	}
 
+	@Override
+	protected boolean isClassifierThreadSafe() {
+		return true;
+	}
+
+	@Override
+	protected boolean supportsInstanceWeights() {
+		return true;
+	}
+
 	@Override
 	protected Classifier createClassifier(Instances trainingInstances) throws Exception {
 		J48 classifier = new J48();
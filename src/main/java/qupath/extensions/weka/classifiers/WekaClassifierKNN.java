@@ -0,0 +1,206 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.plugins.parameters.Parameterizable;
+import weka.classifiers.Classifier;
+import weka.classifiers.lazy.IBk;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SelectedTag;
+import weka.core.neighboursearch.BallTree;
+import weka.core.neighboursearch.KDTree;
+import weka.core.neighboursearch.LinearNNSearch;
+import weka.core.neighboursearch.NearestNeighbourSearch;
+
+/**
+ * QuPath wrapper for a k-nearest neighbour classifier, using Weka's IBk implementation.
+ * <p>
+ * The neighbour search index (a KD-tree by default) is built once when the classifier is trained.
+ * Weka's search trees can't handle missing values, so a linear search is used instead whenever the training data contains any.
+ * Weka's search structures keep state while querying, so each classification thread uses its own copy
+ * of the trained classifier - this copies the index rather than rebuilding it.
+ */
+public class WekaClassifierKNN extends WekaClassifier implements Parameterizable {
+
+	private static final long serialVersionUID = 1L;
+
+	final private static Logger logger = LoggerFactory.getLogger(WekaClassifierKNN.class);
+
+	/**
+	 * Available neighbour search methods.
+	 */
+	public static enum SearchMethod {
+		KD_TREE("KD-tree"),
+		BALL_TREE("Ball tree"),
+		LINEAR("Linear (exact)");
+
+		private final String name;
+
+		SearchMethod(final String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Create a new (unbuilt) Weka search structure for this method.
+		 * 
+		 * @return
+		 */
+		public NearestNeighbourSearch createSearch() {
+			switch (this) {
+			case BALL_TREE:
+				return new BallTree();
+			case LINEAR:
+				return new LinearNNSearch();
+			case KD_TREE:
+			default:
+				return new KDTree();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/**
+	 * Available methods of weighting neighbours according to their distance.
+	 */
+	public static enum DistanceWeighting {
+		NONE("None", IBk.WEIGHT_NONE),
+		INVERSE("1/distance", IBk.WEIGHT_INVERSE),
+		SIMILARITY("1-distance", IBk.WEIGHT_SIMILARITY);
+
+		private final String name;
+		private final int tag;
+
+		DistanceWeighting(final String name, final int tag) {
+			this.name = name;
+			this.tag = tag;
+		}
+
+		SelectedTag getSelectedTag() {
+			return new SelectedTag(tag, IBk.TAGS_WEIGHTING);
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	private ParameterList params;
+
+	@Override
+	public String getName() {
+		return "k-nearest neighbours";
+	}
+
+	@Override
+	public boolean supportsAutoUpdate() {
+		// Training only requires building the search index
+		return true;
+	}
+
+	@Override
+	protected Classifier createClassifier(Instances trainingInstances) throws Exception {
+		ParameterList params = getParameterList();
+		IBk classifier = new IBk();
+		classifier.setKNN(Math.max(1, params.getIntParameterValue("k")));
+		SearchMethod method = getSearchMethod();
+		// Weka's search trees can't handle missing values, so use a linear search if necessary
+		if (method != SearchMethod.LINEAR && hasMissingValues(trainingInstances)) {
+			logger.warn("Training data contains missing values - {} will be used instead of {}", SearchMethod.LINEAR, method);
+			method = SearchMethod.LINEAR;
+		}
+		classifier.setNearestNeighbourSearchAlgorithm(method.createSearch());
+		classifier.setDistanceWeighting(getDistanceWeighting().getSelectedTag());
+		// Building IBk builds the search index
+		classifier.buildClassifier(trainingInstances);
+		return classifier;
+	}
+
+	private static boolean hasMissingValues(final Instances instances) {
+		for (Instance instance : instances) {
+			if (instance.hasMissingValue())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get the currently-selected neighbour search method.
+	 * 
+	 * @return
+	 */
+	public SearchMethod getSearchMethod() {
+		Object value = getParameterList().getChoiceParameterValue("search");
+		if (value instanceof SearchMethod)
+			return (SearchMethod)value;
+		// Parameters set from text (e.g. in a script) may give the display name rather than the enum
+		for (SearchMethod method : SearchMethod.values()) {
+			if (method.toString().equals(value) || method.name().equals(value))
+				return method;
+		}
+		return SearchMethod.KD_TREE;
+	}
+
+	/**
+	 * Get the currently-selected distance weighting.
+	 * 
+	 * @return
+	 */
+	public DistanceWeighting getDistanceWeighting() {
+		Object value = getParameterList().getChoiceParameterValue("weighting");
+		if (value instanceof DistanceWeighting)
+			return (DistanceWeighting)value;
+		for (DistanceWeighting weighting : DistanceWeighting.values()) {
+			if (weighting.toString().equals(value) || weighting.name().equals(value))
+				return weighting;
+		}
+		return DistanceWeighting.NONE;
+	}
+
+	@Override
+	public ParameterList getParameterList() {
+		if (params == null) {
+			params = new ParameterList().addIntParameter("k", "Number of neighbours", 5, null, "Number of nearest neighbours used to classify each object")
+					.addChoiceParameter("search", "Neighbour search", SearchMethod.KD_TREE, SearchMethod.values(), "Method used to find nearest neighbours - the tree-based methods are usually much faster than a linear search for low-dimensional features")
+					.addChoiceParameter("weighting", "Distance weighting", DistanceWeighting.NONE, DistanceWeighting.values(), "Weight the vote of each neighbour according to its distance");
+		}
+		return params;
+	}
+
+	@Override
+	public void resetParameterList() {
+		params = null;
+	}
+
+
+}
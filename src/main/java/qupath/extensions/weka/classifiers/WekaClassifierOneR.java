@@ -29,12 +29,16 @@ import weka.core.Instances;
 
 /**
  * QuPath wrapper for a classifier using Weka's (minimalist) One-R implementation.
+ * <p>
+ * The trained rule is compiled into a {@link LookupTableClassifier} for classification.
  * 
  * @author Pete Bankhead
  *
  */
 public class WekaClassifierOneR extends WekaClassifier {
 	
+	private static final long serialVersionUID = -2124770413378871223L;
+	
 	@Override
 	public String getName() {
 		return "OneR (minimal classifier)";
@@ -45,11 +49,16 @@ public class WekaClassifierOneR extends WekaClassifier {
 		return true;
 	}
 
+	@Override
+	protected boolean isClassifierThreadSafe() {
+		return true;
+	}
+
 	@Override
 	protected Classifier createClassifier(Instances trainingInstances) throws Exception {
 		OneR classifier = new OneR();
 		classifier.buildClassifier(trainingInstances);
-		return classifier;
+		return LookupTableClassifier.compile(classifier);
 	}
 	
 	
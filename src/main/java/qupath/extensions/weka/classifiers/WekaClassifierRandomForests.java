@@ -23,6 +23,12 @@
 
 package qupath.extensions.weka.classifiers;
 
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.extensions.weka.classifiers.CompactRandomForest.Precision;
 import qupath.lib.plugins.parameters.ParameterList;
 import qupath.lib.plugins.parameters.Parameterizable;
 import weka.classifiers.Classifier;
@@ -31,12 +37,21 @@ import weka.core.Instances;
 
 /**
  * QuPath wrapper for a classifier using Weka's Random Forests implementation.
+ * <p>
+ * Optionally, the trained forest can be converted into a {@link CompactRandomForest}, which is smaller and faster to apply.
+ * <p>
+ * Alternatively, a {@link WarmStartRandomForest} can be used so that existing trees are reused when the classifier is updated
+ * (e.g. after adding a few more training objects, or increasing the number of iterations).
  * 
  * @author Pete Bankhead
  *
  */
 public class WekaClassifierRandomForests extends WekaClassifier implements Parameterizable {
 	
+	private static final long serialVersionUID = 3635600564468502990L;
+	
+	final private static Logger logger = LoggerFactory.getLogger(WekaClassifierRandomForests.class);
+	
 	private ParameterList params;
 	
 	@Override
@@ -49,10 +64,32 @@ public class WekaClassifierRandomForests extends WekaClassifier implements Param
 		return true;
 	}
 
+	@Override
+	protected boolean isClassifierThreadSafe() {
+		return true;
+	}
+
+	@Override
+	protected boolean isWarmStartEnabled() {
+		ParameterList params = getParameterList();
+		return params.getBooleanParameterValue("warmStart") && !params.getBooleanParameterValue("compact");
+	}
+
 	@Override
 	protected Classifier createClassifier(Instances trainingInstances) throws Exception {
-		RandomForest classifier = new RandomForest();
+		return createClassifier(trainingInstances, null);
+	}
+	
+	@Override
+	protected Classifier createClassifier(Instances trainingInstances, Classifier previous) throws Exception {
 		ParameterList params = getParameterList();
+		if (params.getBooleanParameterValue("warmStart")) {
+			if (!params.getBooleanParameterValue("compact"))
+				return createWarmStartClassifier(trainingInstances, previous instanceof WarmStartRandomForest ? (WarmStartRandomForest)previous : null, params);
+			logger.warn("Warm start is not supported for compact models - the forest will be rebuilt");
+		}
+		
+		RandomForest classifier = new RandomForest();
 		// Seem to be better off (in general) to not do it in parallel...?
 		if (params.getBooleanParameterValue("doParallel"))
 			classifier.setNumExecutionSlots(Runtime.getRuntime().availableProcessors());
@@ -64,9 +101,110 @@ public class WekaClassifierRandomForests extends WekaClassifier implements Param
 		classifier.setBagSizePercent(params.getIntParameterValue("bagSizePercent"));
 		classifier.setSeed(params.getIntParameterValue("seed"));
 		
+		if (params.getBooleanParameterValue("compact"))
+			return createCompactClassifier(classifier, trainingInstances, params);
+		
 		classifier.buildClassifier(trainingInstances);
 		return classifier;
 	}
+	
+	/**
+	 * Train a forest that reuses trees from a previous forest, where possible.
+	 */
+	private Classifier createWarmStartClassifier(final Instances trainingInstances, final WarmStartRandomForest previous, final ParameterList params) throws Exception {
+		WarmStartRandomForest classifier = new WarmStartRandomForest();
+		if (params.getBooleanParameterValue("doParallel"))
+			classifier.setNumThreads(Runtime.getRuntime().availableProcessors());
+		classifier.setNumTrees(params.getIntParameterValue("nIterations"));
+		classifier.setMaxDepth(params.getIntParameterValue("maxDepth"));
+		classifier.setNumFeatures(params.getIntParameterValue("nFeatures"));
+		classifier.setBagSizePercent(params.getIntParameterValue("bagSizePercent"));
+		classifier.setSeed(params.getIntParameterValue("seed"));
+		classifier.setReplaceFraction(params.getDoubleParameterValue("warmStartReplace") / 100.0);
+		classifier.buildClassifier(trainingInstances, previous);
+		return classifier;
+	}
+	
+	/**
+	 * Train a forest and convert it to a compact representation.
+	 * <p>
+	 * Training data is only held out if trees may be dropped, since the held-out data is needed to decide which trees to keep;
+	 * otherwise, the forest is trained using all the training data.
+	 * If compaction fails, the original forest is returned.
+	 */
+	private Classifier createCompactClassifier(final RandomForest classifier, final Instances trainingInstances, final ParameterList params) throws Exception {
+		boolean dropTrees = params.getBooleanParameterValue("compactDropTrees");
+		int holdoutPercent = params.getIntParameterValue("holdoutPercent");
+		Instances train = trainingInstances;
+		Instances holdout = null;
+		int nFolds = holdoutPercent <= 0 ? 0 : (int)Math.round(100.0 / Math.min(holdoutPercent, 50));
+		if (dropTrees) {
+			if (nFolds >= 2 && trainingInstances.numInstances() >= nFolds * trainingInstances.numClasses()) {
+				Instances randomized = new Instances(trainingInstances);
+				randomized.randomize(new Random(params.getIntParameterValue("seed")));
+				randomized.stratify(nFolds);
+				train = randomized.trainCV(nFolds, 0);
+				holdout = randomized.testCV(nFolds, 0);
+				logger.info("Holding out {}/{} training objects to select trees for the compact model", holdout.numInstances(), trainingInstances.numInstances());
+			} else
+				logger.warn("Not enough training data to hold out {}% - trees will not be dropped", holdoutPercent);
+		}
+		
+		classifier.buildClassifier(train);
+		try {
+			return new RandomForestCompactor()
+					.setPrecision(getCompactPrecision())
+					.setMaxDepth(params.getIntParameterValue("compactMaxDepth"))
+					.setMaxNodesPerTree(params.getIntParameterValue("compactMaxNodes"))
+					.setDropTrees(dropTrees)
+					.setMaxAccuracyLoss(params.getDoubleParameterValue("compactMaxLoss") / 100.0)
+					.compact(classifier, holdout);
+		} catch (Exception e) {
+			logger.warn("Unable to compact random forest - the original forest will be used", e);
+			return classifier;
+		}
+	}
+	
+	/**
+	 * Approximate memory required for each tree node, excluding its class distribution.
+	 */
+	private static final long BYTES_PER_NODE = 128;
+	
+	/**
+	 * Estimate the memory required to train the forest, accounting for the bags being built concurrently 
+	 * and the nodes of all trees (assuming roughly one node per training object in each bag, unless the depth is limited).
+	 */
+	@Override
+	protected long estimateClassifierMemory(final long nRows, final int nFeatures, final int nClasses) {
+		ParameterList params = getParameterList();
+		int nTrees = Math.max(1, params.getIntParameterValue("nIterations"));
+		long bagRows = Math.max(1, nRows * params.getIntParameterValue("bagSizePercent") / 100);
+		int nSlots = params.getBooleanParameterValue("doParallel") ? Runtime.getRuntime().availableProcessors() : 1;
+		long bagBytes = TrainingMemoryEstimator.estimateInstancesBytes(bagRows, nFeatures + 1) * Math.min(nSlots, nTrees);
+		long nodesPerTree = bagRows;
+		int maxDepth = params.getIntParameterValue("maxDepth");
+		if (maxDepth > 0 && maxDepth < 40)
+			nodesPerTree = Math.min(nodesPerTree, 1L << (maxDepth + 1));
+		long treeBytes = nTrees * nodesPerTree * (BYTES_PER_NODE + 8L * nClasses);
+		// Weka copies the training data before bagging
+		return TrainingMemoryEstimator.estimateInstancesBytes(nRows, nFeatures + 1) + bagBytes + treeBytes;
+	}
+	
+	/**
+	 * Get the precision to use for compact forests.
+	 * 
+	 * @return
+	 */
+	public Precision getCompactPrecision() {
+		Object value = getParameterList().getChoiceParameterValue("compactPrecision");
+		if (value instanceof Precision)
+			return (Precision)value;
+		for (Precision precision : Precision.values()) {
+			if (precision.name().equalsIgnoreCase(String.valueOf(value)))
+				return precision;
+		}
+		return Precision.FLOAT;
+	}
 
 	@Override
 	public ParameterList getParameterList() {
@@ -76,7 +214,16 @@ public class WekaClassifierRandomForests extends WekaClassifier implements Param
 					.addIntParameter("nFeatures", "Number of features", 0, null, "The number of randomly-chosen features")
 					.addIntParameter("bagSizePercent", "Bag size percent", 100, null, "Size of each bag, as a percentage of training set")
 					.addIntParameter("seed", "Random seed", 1, null, "Seed for random number generator - keep the same for reproducibility, or vary to explore robustness")
-					.addBooleanParameter("doParallel", "Use parallelized training", false, "Use multiple CPUs for training - may help (or harm) performance");
+					.addBooleanParameter("doParallel", "Use parallelized training", false, "Use multiple CPUs for training - may help (or harm) performance")
+					.addBooleanParameter("warmStart", "Warm start", false, "Reuse existing trees when the classifier is updated, growing only new or replacement trees - much faster for interactive training")
+					.addDoubleParameter("warmStartReplace", "Warm start trees replaced", 20, "%", "Minimum percentage of trees to replace when new training data is added")
+					.addBooleanParameter("compact", "Compact model", false, "Convert the trained forest into a smaller, faster representation - predictions may change slightly")
+					.addChoiceParameter("compactPrecision", "Compact precision", Precision.FLOAT, Precision.values(), "Precision used to store split thresholds and leaf probabilities in the compact model")
+					.addIntParameter("compactMaxDepth", "Compact max tree depth", 0, null, "Prune trees in the compact model to this depth (0 for no limit)")
+					.addIntParameter("compactMaxNodes", "Compact max nodes per tree", 0, null, "Prune trees in the compact model to meet this size budget (0 for no limit)")
+					.addBooleanParameter("compactDropTrees", "Drop redundant trees", true, "Drop trees from the compact model if they do not improve accuracy on held-out training data")
+					.addDoubleParameter("compactMaxLoss", "Max accuracy loss", 0.5, "%", "Maximum reduction in held-out accuracy accepted when dropping trees")
+					.addIntParameter("holdoutPercent", "Held-out data", 20, "%", "Percentage of training data held out to decide which trees to drop from the compact model (only used if dropping trees)");
 		}
 		return params;
 	}
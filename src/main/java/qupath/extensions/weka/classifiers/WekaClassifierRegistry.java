@@ -0,0 +1,136 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of the WekaClassifiers available to QuPath.
+ * <p>
+ * Classifiers can be added either by registering a {@link WekaClassifierProvider} directly,
+ * by registering any Weka classifier by class name and options, or by listing a provider
+ * as a service so that it can be discovered with a ServiceLoader.
+ */
+public class WekaClassifierRegistry {
+
+	final private static Logger logger = LoggerFactory.getLogger(WekaClassifierRegistry.class);
+
+	private static List<WekaClassifierProvider> discoveredProviders;
+	private static List<WekaClassifierProvider> registeredProviders = new ArrayList<>();
+	private static Map<String, WekaClassifierProvider> registeredClassifiers = new LinkedHashMap<>();
+
+	/**
+	 * Register a provider of classifiers.
+	 * 
+	 * @param provider
+	 */
+	public static synchronized void registerProvider(final WekaClassifierProvider provider) {
+		if (!registeredProviders.contains(provider))
+			registeredProviders.add(provider);
+	}
+
+	/**
+	 * Register any Weka classifier, using its class name and an option string.
+	 * <p>
+	 * Registering a classifier with the same name as one registered previously replaces the earlier registration.
+	 * 
+	 * @param name display name for the classifier
+	 * @param className full class name, e.g. "weka.classifiers.lazy.IBk"
+	 * @param options default option string, e.g. "-K 5"
+	 */
+	public static synchronized void registerClassifier(final String name, final String className, final String options) {
+		registeredClassifiers.put(name, () -> Collections.singletonList(new WekaClassifierGeneric(name, className, options)));
+	}
+
+	/**
+	 * Reload any providers available as services, e.g. after new JARs have been added to the classpath.
+	 */
+	public static synchronized void refresh() {
+		discoveredProviders = null;
+	}
+
+	/**
+	 * Get all available providers - those discovered as services first, followed by those that were registered directly.
+	 * 
+	 * @return
+	 */
+	public static synchronized List<WekaClassifierProvider> getProviders() {
+		if (discoveredProviders == null)
+			discoveredProviders = discoverProviders();
+		List<WekaClassifierProvider> providers = new ArrayList<>(discoveredProviders);
+		providers.addAll(registeredProviders);
+		providers.addAll(registeredClassifiers.values());
+		return providers;
+	}
+
+	/**
+	 * Create new (untrained) instances of all available classifiers.
+	 * 
+	 * @return
+	 */
+	public static List<WekaClassifier> createClassifiers() {
+		List<WekaClassifier> classifiers = new ArrayList<>();
+		for (WekaClassifierProvider provider : getProviders()) {
+			try {
+				classifiers.addAll(provider.createClassifiers());
+			} catch (Exception | LinkageError e) {
+				logger.error("Unable to create classifiers from " + provider, e);
+			}
+		}
+		return classifiers;
+	}
+
+
+	private static List<WekaClassifierProvider> discoverProviders() {
+		List<WekaClassifierProvider> providers = new ArrayList<>();
+		boolean hasDefault = false;
+		ServiceLoader<WekaClassifierProvider> loader = ServiceLoader.load(WekaClassifierProvider.class, WekaClassifierRegistry.class.getClassLoader());
+		try {
+			for (WekaClassifierProvider provider : loader) {
+				// Ensure the default provider comes first
+				if (provider instanceof DefaultWekaClassifierProvider) {
+					providers.add(0, provider);
+					hasDefault = true;
+				} else
+					providers.add(provider);
+				logger.debug("Found Weka classifier provider: {}", provider.getClass().getName());
+			}
+		} catch (ServiceConfigurationError e) {
+			logger.error("Error loading Weka classifier providers", e);
+		}
+		if (!hasDefault)
+			providers.add(0, new DefaultWekaClassifierProvider());
+		return providers;
+	}
+
+}
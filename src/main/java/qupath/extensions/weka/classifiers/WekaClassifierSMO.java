@@ -35,6 +35,8 @@ import weka.core.Instances;
  */
 public class WekaClassifierSMO extends WekaClassifier {
 	
+	private static final long serialVersionUID = -6291464415937967580L;
+	
 	@Override
 	public String getName() {
 		return "SMO";
@@ -45,6 +47,19 @@ public class WekaClassifierSMO extends WekaClassifier {
 		return false;
 	}
 
+	@Override
+	protected boolean supportsInstanceWeights() {
+		return true;
+	}
+
+	/**
+	 * SMO training time grows faster than linearly with the number of instances.
+	 */
+	@Override
+	protected double getTrainingTimeExponent() {
+		return 2.0;
+	}
+
 	@Override
 	protected Classifier createClassifier(Instances trainingInstances) throws Exception {
 		SMO classifier = new SMO();
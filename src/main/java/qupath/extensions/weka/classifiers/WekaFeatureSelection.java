@@ -0,0 +1,208 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import weka.attributeSelection.ASEvaluation;
+import weka.attributeSelection.ASSearch;
+import weka.attributeSelection.AttributeSelection;
+import weka.attributeSelection.BestFirst;
+import weka.attributeSelection.CfsSubsetEval;
+import weka.attributeSelection.GainRatioAttributeEval;
+import weka.attributeSelection.InfoGainAttributeEval;
+import weka.attributeSelection.Ranker;
+import weka.attributeSelection.ReliefFAttributeEval;
+import weka.core.Instances;
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.Remove;
+
+/**
+ * Helper methods to select the most useful features prior to training a classifier, using Weka's attribute evaluators.
+ * <p>
+ * Pruning features in this way can reduce the cost of both extracting measurements and applying the classifier.
+ */
+public class WekaFeatureSelection {
+
+	/**
+	 * Supported feature selection methods.
+	 */
+	public static enum Method {
+		/**
+		 * No feature selection - use all features.
+		 */
+		NONE,
+		/**
+		 * Rank features by information gain with respect to the class.
+		 */
+		INFO_GAIN,
+		/**
+		 * Rank features by gain ratio with respect to the class.
+		 */
+		GAIN_RATIO,
+		/**
+		 * Rank features using ReliefF (slower, but sensitive to feature interactions).
+		 */
+		RELIEF_F,
+		/**
+		 * Select a subset of features that correlate with the class but not with one another.
+		 */
+		CFS_SUBSET;
+
+		@Override
+		public String toString() {
+			switch (this) {
+			case CFS_SUBSET:
+				return "Correlation-based subset";
+			case GAIN_RATIO:
+				return "Gain ratio";
+			case INFO_GAIN:
+				return "Information gain";
+			case RELIEF_F:
+				return "ReliefF";
+			case NONE:
+			default:
+				return "None";
+			}
+		}
+	}
+
+	/**
+	 * Select the indices of the most useful (non-class) attributes within a set of training instances.
+	 * 
+	 * @param instances training instances, with the class attribute set
+	 * @param method the feature selection method
+	 * @param maxFeatures the maximum number of features to retain; if &lt;= 0, then the method itself decides (for ranking methods, all features will be kept)
+	 * @return sorted array of selected attribute indices, not including the class attribute
+	 * @throws Exception
+	 */
+	public static int[] selectAttributes(final Instances instances, final Method method, final int maxFeatures) throws Exception {
+		int classIndex = instances.classIndex();
+		if (method == null || method == Method.NONE)
+			return allAttributes(instances);
+
+		int[] selected;
+		if (method == Method.CFS_SUBSET) {
+			selected = runSelection(instances, new CfsSubsetEval(), new BestFirst());
+			// If we have too many, keep those that rank highest by information gain
+			if (maxFeatures > 0 && countNonClass(selected, classIndex) > maxFeatures) {
+				Set<Integer> subset = new LinkedHashSet<>();
+				for (int ind : selected)
+					subset.add(ind);
+				int[] ranked = rankAttributes(instances, new InfoGainAttributeEval(), -1);
+				int[] topSelected = new int[maxFeatures];
+				int n = 0;
+				for (int ind : ranked) {
+					if (n == maxFeatures)
+						break;
+					if (subset.contains(ind))
+						topSelected[n++] = ind;
+				}
+				selected = topSelected;
+			}
+		} else {
+			ASEvaluation evaluator;
+			switch (method) {
+			case GAIN_RATIO:
+				evaluator = new GainRatioAttributeEval();
+				break;
+			case RELIEF_F:
+				evaluator = new ReliefFAttributeEval();
+				break;
+			case INFO_GAIN:
+			default:
+				evaluator = new InfoGainAttributeEval();
+				break;
+			}
+			selected = rankAttributes(instances, evaluator, maxFeatures);
+		}
+
+		// Remove the class attribute (if present) & sort to retain the original feature order
+		int[] indices = new int[countNonClass(selected, classIndex)];
+		int n = 0;
+		for (int ind : selected) {
+			if (ind != classIndex)
+				indices[n++] = ind;
+		}
+		Arrays.sort(indices);
+		return indices;
+	}
+
+	/**
+	 * Create a filtered copy of the instances, retaining only the specified attributes (along with the class attribute).
+	 * 
+	 * @param instances
+	 * @param attributeIndices
+	 * @return
+	 * @throws Exception
+	 */
+	public static Instances retainAttributes(final Instances instances, final int[] attributeIndices) throws Exception {
+		int[] indices = Arrays.copyOf(attributeIndices, attributeIndices.length + 1);
+		indices[indices.length-1] = instances.classIndex();
+		Remove remove = new Remove();
+		remove.setAttributeIndicesArray(indices);
+		remove.setInvertSelection(true);
+		remove.setInputFormat(instances);
+		return Filter.useFilter(instances, remove);
+	}
+
+
+	private static int[] rankAttributes(final Instances instances, final ASEvaluation evaluator, final int maxFeatures) throws Exception {
+		Ranker ranker = new Ranker();
+		if (maxFeatures > 0)
+			ranker.setNumToSelect(maxFeatures);
+		return runSelection(instances, evaluator, ranker);
+	}
+
+	private static int[] runSelection(final Instances instances, final ASEvaluation evaluator, final ASSearch search) throws Exception {
+		AttributeSelection selection = new AttributeSelection();
+		selection.setEvaluator(evaluator);
+		selection.setSearch(search);
+		selection.SelectAttributes(instances);
+		return selection.selectedAttributes();
+	}
+
+	private static int countNonClass(final int[] indices, final int classIndex) {
+		int n = 0;
+		for (int ind : indices) {
+			if (ind != classIndex)
+				n++;
+		}
+		return n;
+	}
+
+	private static int[] allAttributes(final Instances instances) {
+		int classIndex = instances.classIndex();
+		int[] indices = new int[classIndex < 0 ? instances.numAttributes() : instances.numAttributes()-1];
+		int n = 0;
+		for (int i = 0; i < instances.numAttributes(); i++) {
+			if (i != classIndex)
+				indices[n++] = i;
+		}
+		return indices;
+	}
+
+}
@@ -0,0 +1,541 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.extensions.weka.WekaClassifierTools;
+import qupath.lib.classifiers.Normalization;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.plugins.parameters.Parameter;
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.plugins.parameters.Parameterizable;
+
+/**
+ * Search for good parameter values for a {@link WekaClassifier} that implements {@link Parameterizable}.
+ * <p>
+ * Candidate configurations are drawn from a grid of values for each parameter (either exhaustively, or by random sampling),
+ * trained in parallel on one part of the training objects and evaluated on the remainder.
+ * Each candidate is trained and applied using all the training options of the classifier being searched
+ * (including sampling, feature selection, missing value handling, calibration, the reject threshold and deduplication),
+ * so that its accuracy and throughput are those of the model that would be trained using its parameters.
+ * Candidates are ranked both by accuracy and by throughput, so that the fastest configuration meeting an accuracy target
+ * can be chosen - and its values written back to the classifier's {@link ParameterList}.
+ */
+public class WekaHyperparameterSearch {
+
+	final private static Logger logger = LoggerFactory.getLogger(WekaHyperparameterSearch.class);
+
+	/**
+	 * Minimum time spent measuring the throughput of each candidate.
+	 */
+	private static final long MIN_THROUGHPUT_NANOS = 100_000_000L;
+
+	/**
+	 * Strategy used to choose candidate configurations.
+	 */
+	public static enum Mode {
+		/**
+		 * Evaluate every combination of parameter values.
+		 */
+		GRID,
+		/**
+		 * Evaluate a random sample of combinations of parameter values.
+		 */
+		RANDOM;
+	}
+
+	/**
+	 * Results for a single candidate configuration.
+	 */
+	public static class Candidate {
+
+		private final Map<String, Object> parameters;
+		private final double accuracy;
+		private final long trainNanos;
+		private final double predictionsPerSecond;
+
+		Candidate(final Map<String, Object> parameters, final double accuracy, final long trainNanos, final double predictionsPerSecond) {
+			this.parameters = Collections.unmodifiableMap(new LinkedHashMap<>(parameters));
+			this.accuracy = accuracy;
+			this.trainNanos = trainNanos;
+			this.predictionsPerSecond = predictionsPerSecond;
+		}
+
+		/**
+		 * Get the parameter values that differ between candidates.
+		 * 
+		 * @return
+		 */
+		public Map<String, Object> getParameters() {
+			return parameters;
+		}
+
+		/**
+		 * Get the accuracy on the validation data, i.e. the proportion of validation objects classified correctly.
+		 * Objects left unclassified (e.g. because of the reject threshold) are counted as incorrect.
+		 * 
+		 * @return
+		 */
+		public double getAccuracy() {
+			return accuracy;
+		}
+
+		public double getTrainMillis() {
+			return trainNanos / 1e6;
+		}
+
+		/**
+		 * Get the number of validation objects classified per second (on a single thread).
+		 * 
+		 * @return
+		 */
+		public double getPredictionsPerSecond() {
+			return predictionsPerSecond;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: accuracy %.2f%%, training %.1f ms, %.0f objects/s", parameters, accuracy * 100, getTrainMillis(), predictionsPerSecond);
+		}
+
+	}
+
+	/**
+	 * Results of a search.
+	 */
+	public static class SearchResult {
+
+		private final List<Candidate> candidates;
+
+		SearchResult(final List<Candidate> candidates) {
+			List<Candidate> sorted = new ArrayList<>(candidates);
+			Collections.sort(sorted, Comparator.comparingDouble(Candidate::getAccuracy).reversed()
+					.thenComparing(Comparator.comparingDouble(Candidate::getPredictionsPerSecond).reversed()));
+			this.candidates = Collections.unmodifiableList(sorted);
+		}
+
+		/**
+		 * Get all candidates, ranked by accuracy (most accurate first).
+		 * 
+		 * @return
+		 */
+		public List<Candidate> getCandidates() {
+			return candidates;
+		}
+
+		/**
+		 * Get all candidates, ranked by throughput (fastest first).
+		 * 
+		 * @return
+		 */
+		public List<Candidate> getCandidatesByThroughput() {
+			List<Candidate> sorted = new ArrayList<>(candidates);
+			Collections.sort(sorted, Comparator.comparingDouble(Candidate::getPredictionsPerSecond).reversed()
+					.thenComparing(Comparator.comparingDouble(Candidate::getAccuracy).reversed()));
+			return sorted;
+		}
+
+		/**
+		 * Choose the fastest candidate with at least the specified accuracy.
+		 * If no candidate meets the target (or the target is NaN), the most accurate candidate is returned.
+		 * 
+		 * @param minAccuracy the accuracy target, in the range 0-1
+		 * @return the chosen candidate, or null if there are no candidates
+		 */
+		public Candidate getBest(final double minAccuracy) {
+			if (!Double.isNaN(minAccuracy)) {
+				for (Candidate candidate : getCandidatesByThroughput()) {
+					if (candidate.getAccuracy() >= minAccuracy)
+						return candidate;
+				}
+				logger.warn("No candidate reached the target accuracy of {}% - the most accurate will be used", minAccuracy * 100);
+			}
+			return candidates.isEmpty() ? null : candidates.get(0);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("Rank\tAccuracy\tTrain (ms)\tObjects/s\tParameters\n");
+			int rank = 1;
+			for (Candidate candidate : candidates) {
+				sb.append(String.format("%d\t%.4f\t%.1f\t%.0f\t%s\n",
+						rank++, candidate.getAccuracy(), candidate.getTrainMillis(), candidate.getPredictionsPerSecond(), candidate.getParameters()));
+			}
+			return sb.toString();
+		}
+
+	}
+
+	private final Map<String, List<Object>> values = new LinkedHashMap<>();
+	private Mode mode = Mode.RANDOM;
+	private int maxCandidates = 20;
+	private double validationFraction = 0.2;
+	private double minAccuracy = Double.NaN;
+	private long seed = 1;
+	private int nThreads = 0;
+
+
+	/**
+	 * Create a search over the main parameters of {@link WekaClassifierRandomForests}.
+	 * 
+	 * @param nMeasurements the number of measurements used as features, used to choose values for the number of features per split
+	 * @return
+	 */
+	public static WekaHyperparameterSearch createRandomForestSearch(final int nMeasurements) {
+		Set<Object> nFeatures = new LinkedHashSet<>();
+		nFeatures.add(0);
+		nFeatures.add(Math.max(1, (int)Math.round(Math.sqrt(nMeasurements))));
+		nFeatures.add(Math.max(1, nMeasurements / 2));
+		return new WekaHyperparameterSearch()
+				.addValues("nIterations", 10, 25, 50, 100)
+				.addValues("maxDepth", 0, 8, 16)
+				.addValues("nFeatures", nFeatures.toArray())
+				.addValues("bagSizePercent", 50, 100);
+	}
+
+	/**
+	 * Add values to try for a parameter.
+	 * 
+	 * @param name the parameter name, as used in the classifier's {@link ParameterList}
+	 * @param values
+	 * @return
+	 */
+	public WekaHyperparameterSearch addValues(final String name, final Object... values) {
+		List<Object> list = this.values.get(name);
+		if (list == null) {
+			list = new ArrayList<>();
+			this.values.put(name, list);
+		}
+		for (Object value : values) {
+			if (!list.contains(value))
+				list.add(value);
+		}
+		return this;
+	}
+
+	public WekaHyperparameterSearch setMode(final Mode mode) {
+		this.mode = mode;
+		return this;
+	}
+
+	/**
+	 * Set the maximum number of candidates to evaluate in {@link Mode#RANDOM} mode.
+	 * 
+	 * @param maxCandidates
+	 * @return
+	 */
+	public WekaHyperparameterSearch setMaxCandidates(final int maxCandidates) {
+		if (maxCandidates < 1)
+			throw new IllegalArgumentException("At least one candidate is required!");
+		this.maxCandidates = maxCandidates;
+		return this;
+	}
+
+	/**
+	 * Set the proportion of the training data used for validation, in the range (0, 0.5].
+	 * 
+	 * @param validationFraction
+	 * @return
+	 */
+	public WekaHyperparameterSearch setValidationFraction(final double validationFraction) {
+		if (!(validationFraction > 0 && validationFraction <= 0.5))
+			throw new IllegalArgumentException("Validation fraction must be in the range (0, 0.5]!");
+		this.validationFraction = validationFraction;
+		return this;
+	}
+
+	/**
+	 * Set the accuracy target used by {@link #searchAndApply(WekaClassifier, Map, List, Normalization)}.
+	 * 
+	 * @param minAccuracy the minimum accuracy, in the range 0-1; if NaN, the most accurate candidate will be chosen
+	 * @return
+	 */
+	public WekaHyperparameterSearch setMinAccuracy(final double minAccuracy) {
+		this.minAccuracy = minAccuracy;
+		return this;
+	}
+
+	public WekaHyperparameterSearch setSeed(final long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	/**
+	 * Set the number of candidates to train in parallel.
+	 * 
+	 * @param nThreads if &lt;= 0, the number of available processors will be used
+	 * @return
+	 */
+	public WekaHyperparameterSearch setNumThreads(final int nThreads) {
+		this.nThreads = nThreads;
+		return this;
+	}
+
+
+	/**
+	 * Search for the best parameters, and set these for the classifier.
+	 * <p>
+	 * The classifier is not retrained.
+	 * 
+	 * @param wekaClassifier the classifier, which must implement {@link Parameterizable}
+	 * @param map training objects, as would be passed to {@link WekaClassifier#updateClassifier(Map, List, Normalization)}
+	 * @param measurements the measurements to use as features
+	 * @param normalization normalization to apply (fitted only on the training part of the data)
+	 * @return the chosen candidate
+	 * @throws Exception
+	 */
+	public Candidate searchAndApply(final WekaClassifier wekaClassifier, final Map<PathClass, List<PathObject>> map, final List<String> measurements, final Normalization normalization) throws Exception {
+		SearchResult result = search(wekaClassifier, map, measurements, normalization);
+		logger.info("Hyperparameter search results for {}\n{}", wekaClassifier.getName(), result);
+		Candidate best = result.getBest(minAccuracy);
+		if (best == null)
+			throw new IllegalStateException("No candidates were evaluated!");
+		WekaClassifierTools.setParameters(wekaClassifier, best.getParameters());
+		logger.info("Selected parameters: {}", best);
+		return best;
+	}
+
+
+	/**
+	 * Evaluate candidate parameter values for a classifier.
+	 * <p>
+	 * Each candidate is a new instance of the same class as the classifier, with the same parameters apart from those being searched.
+	 * Candidates are trained in parallel, each using a single thread; throughput is then measured for each candidate in turn,
+	 * so that the timings are comparable.
+	 * <p>
+	 * Note that the classifier itself is not modified.
+	 * 
+	 * @param wekaClassifier the classifier, which must implement {@link Parameterizable}
+	 * @param map training objects, as would be passed to {@link WekaClassifier#updateClassifier(Map, List, Normalization)}
+	 * @param measurements the measurements to use as features
+	 * @param normalization normalization to apply (fitted only on the training part of the data)
+	 * @return
+	 * @throws Exception
+	 */
+	public SearchResult search(final WekaClassifier wekaClassifier, final Map<PathClass, List<PathObject>> map, final List<String> measurements, final Normalization normalization) throws Exception {
+		if (!(wekaClassifier instanceof Parameterizable))
+			throw new IllegalArgumentException(wekaClassifier.getName() + " does not support parameters!");
+		if (map == null || map.size() < 2)
+			throw new IllegalArgumentException("At least two classes of labelled objects are required!");
+		if (values.isEmpty())
+			throw new IllegalArgumentException("No parameter values to search!");
+
+		ParameterList params = ((Parameterizable)wekaClassifier).getParameterList();
+		for (String name : values.keySet()) {
+			if (!params.getParameters().containsKey(name))
+				throw new IllegalArgumentException("Unknown parameter '" + name + "' for " + wekaClassifier.getName());
+		}
+		Map<String, Object> baseParameters = new LinkedHashMap<>();
+		for (Map.Entry<String, Parameter<?>> entry : params.getParameters().entrySet()) {
+			Object value = entry.getValue().getValueOrDefault();
+			if (value != null)
+				baseParameters.put(entry.getKey(), value);
+		}
+		// Parallelize across candidates, rather than within them
+		if (baseParameters.containsKey("doParallel"))
+			baseParameters.put("doParallel", Boolean.FALSE);
+
+		// Split the objects of each class into training & validation sets
+		Random random = new Random(seed);
+		Map<PathClass, List<PathObject>> train = new LinkedHashMap<>();
+		List<PathObject> validation = new ArrayList<>();
+		List<String> validationClasses = new ArrayList<>();
+		int nTrain = 0;
+		for (Map.Entry<PathClass, List<PathObject>> entry : map.entrySet()) {
+			List<PathObject> list = new ArrayList<>(entry.getValue());
+			if (list.size() < 2)
+				throw new IllegalArgumentException("Not enough training objects for a validation split!");
+			Collections.shuffle(list, random);
+			int nValidation = Math.min(list.size() - 1, Math.max(1, (int)Math.round(list.size() * validationFraction)));
+			for (PathObject pathObject : list.subList(0, nValidation)) {
+				validation.add(pathObject);
+				validationClasses.add(entry.getKey().getName());
+			}
+			train.put(entry.getKey(), new ArrayList<>(list.subList(nValidation, list.size())));
+			nTrain += list.size() - nValidation;
+		}
+
+		List<Map<String, Object>> configurations = createConfigurations();
+		logger.info("Evaluating {} candidate configurations for {} ({} training, {} validation objects)",
+				configurations.size(), wekaClassifier.getName(), nTrain, validation.size());
+
+		int n = nThreads <= 0 ? Runtime.getRuntime().availableProcessors() : nThreads;
+		ExecutorService pool = Executors.newFixedThreadPool(n);
+		List<Future<TrainedCandidate>> futures = new ArrayList<>();
+		try {
+			for (Map<String, Object> configuration : configurations) {
+				Map<String, Object> parameters = new LinkedHashMap<>(baseParameters);
+				parameters.putAll(configuration);
+				WekaClassifier candidate = WekaClassifierTools.createClassifier(wekaClassifier.getClass(), parameters);
+				candidate.copyTrainingOptions(wekaClassifier);
+				futures.add(pool.submit(new CandidateTask(candidate, configuration, train, measurements, normalization, validation, validationClasses)));
+			}
+			// Measure throughput one candidate at a time, so that training does not compete for the CPU
+			List<Candidate> candidates = new ArrayList<>();
+			for (Future<TrainedCandidate> future : futures) {
+				TrainedCandidate trained = future.get();
+				candidates.add(new Candidate(trained.parameters, trained.accuracy, trained.trainNanos, 
+						measureThroughput(trained.wekaClassifier, trained.snapshot, validation)));
+			}
+			return new SearchResult(candidates);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+
+	/**
+	 * Create the parameter values for each candidate, according to the search mode.
+	 */
+	List<Map<String, Object>> createConfigurations() {
+		List<String> names = new ArrayList<>(values.keySet());
+		long nCombinations = 1;
+		for (String name : names)
+			nCombinations *= Math.max(1, values.get(name).size());
+
+		List<Long> indices = new ArrayList<>();
+		if (mode == Mode.GRID || nCombinations <= maxCandidates) {
+			for (long i = 0; i < nCombinations; i++)
+				indices.add(i);
+		} else {
+			Random random = new Random(seed);
+			Set<Long> sampled = new LinkedHashSet<>();
+			while (sampled.size() < maxCandidates)
+				sampled.add((long)(random.nextDouble() * nCombinations));
+			indices.addAll(sampled);
+		}
+
+		List<Map<String, Object>> configurations = new ArrayList<>();
+		for (long index : indices) {
+			Map<String, Object> configuration = new LinkedHashMap<>();
+			long remainder = index;
+			for (String name : names) {
+				List<Object> list = values.get(name);
+				if (list.isEmpty())
+					continue;
+				configuration.put(name, list.get((int)(remainder % list.size())));
+				remainder /= list.size();
+			}
+			configurations.add(configuration);
+		}
+		return configurations;
+	}
+
+
+	/**
+	 * Estimate the number of objects classified per second, repeating classification until a minimum time has elapsed.
+	 */
+	private static double measureThroughput(final WekaClassifier wekaClassifier, final ModelSnapshot snapshot, final List<PathObject> pathObjects) {
+		long count = 0;
+		long startTime = System.nanoTime();
+		long elapsed;
+		do {
+			wekaClassifier.classifyPathObjects(snapshot, pathObjects);
+			count += pathObjects.size();
+			elapsed = System.nanoTime() - startTime;
+		} while (elapsed < MIN_THROUGHPUT_NANOS);
+		return count / (elapsed / 1e9);
+	}
+
+
+	private static class TrainedCandidate {
+
+		private final Map<String, Object> parameters;
+		private final WekaClassifier wekaClassifier;
+		private final ModelSnapshot snapshot;
+		private final double accuracy;
+		private final long trainNanos;
+
+		TrainedCandidate(final Map<String, Object> parameters, final WekaClassifier wekaClassifier, final ModelSnapshot snapshot, final double accuracy, final long trainNanos) {
+			this.parameters = parameters;
+			this.wekaClassifier = wekaClassifier;
+			this.snapshot = snapshot;
+			this.accuracy = accuracy;
+			this.trainNanos = trainNanos;
+		}
+
+	}
+
+
+	private static class CandidateTask implements Callable<TrainedCandidate> {
+
+		private final WekaClassifier wekaClassifier;
+		private final Map<String, Object> parameters;
+		private final Map<PathClass, List<PathObject>> train;
+		private final List<String> measurements;
+		private final Normalization normalization;
+		private final List<PathObject> validation;
+		private final List<String> validationClasses;
+
+		CandidateTask(final WekaClassifier wekaClassifier, final Map<String, Object> parameters, final Map<PathClass, List<PathObject>> train,
+				final List<String> measurements, final Normalization normalization, final List<PathObject> validation, final List<String> validationClasses) {
+			this.wekaClassifier = wekaClassifier;
+			this.parameters = parameters;
+			this.train = train;
+			this.measurements = measurements;
+			this.normalization = normalization;
+			this.validation = validation;
+			this.validationClasses = validationClasses;
+		}
+
+		@Override
+		public TrainedCandidate call() throws Exception {
+			long startTime = System.nanoTime();
+			ModelSnapshot snapshot = wekaClassifier.trainSnapshot(train, measurements, normalization, null, null);
+			long trainNanos = System.nanoTime() - startTime;
+			if (snapshot == null || !snapshot.isValid())
+				throw new Exception("Unable to train " + wekaClassifier.getName() + " with parameters " + parameters);
+
+			PathClass[] predictions = wekaClassifier.classifyPathObjects(snapshot, validation);
+			int nCorrect = 0;
+			for (int i = 0; i < predictions.length; i++) {
+				if (predictions[i] != null && predictions[i].getName().equals(validationClasses.get(i)))
+					nCorrect++;
+			}
+			double accuracy = predictions.length == 0 ? Double.NaN : (double)nCorrect / predictions.length;
+			logger.debug("{}: accuracy = {}", parameters, accuracy);
+			return new TrainedCandidate(parameters, wekaClassifier, snapshot, accuracy, trainNanos);
+		}
+
+	}
+
+}
@@ -0,0 +1,187 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import qupath.extensions.weka.classifiers.WekaClassifierKNN.SearchMethod;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.lazy.IBk;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Command line benchmark comparing exact (linear) k-nearest neighbour search with indexed search.
+ * <p>
+ * Synthetic 'cells' are generated from a mixture of Gaussian clusters, a k-NN classifier is trained
+ * using each search method and then used to classify the same set of query cells in parallel.
+ * The time to build each index, the query throughput and the agreement with the exact result are reported.
+ * <p>
+ * Usage: <code>KNNBenchmark [nQueries] [nTraining] [nFeatures] [k] [nThreads]</code>
+ * <p>
+ * Defaults are 1,000,000 queries, 5,000 training cells, 10 features, k = 5 and one thread per processor.
+ */
+public class KNNBenchmark {
+
+	private static final int N_CLASSES = 3;
+
+	/**
+	 * Run the benchmark.
+	 * 
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int nQueries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		int nTraining = args.length > 1 ? Integer.parseInt(args[1]) : 5_000;
+		int nFeatures = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		int k = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+		int nThreads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+
+		System.out.println(String.format("k-NN benchmark: %d queries, %d training cells, %d features, k=%d, %d thread(s)",
+				nQueries, nTraining, nFeatures, k, nThreads));
+
+		Random random = new Random(1);
+		double[][] centers = createCenters(nFeatures, random);
+		Instances training = createInstances("training", nTraining, centers, random);
+		Instances queries = createInstances("queries", nQueries, centers, random);
+
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		try {
+			double[] exact = null;
+			// Run the exact search first, so that the others can be compared against it
+			for (SearchMethod method : new SearchMethod[]{SearchMethod.LINEAR, SearchMethod.KD_TREE, SearchMethod.BALL_TREE}) {
+				IBk classifier = new IBk(k);
+				classifier.setNearestNeighbourSearchAlgorithm(method.createSearch());
+
+				long startTime = System.nanoTime();
+				classifier.buildClassifier(training);
+				long buildTime = System.nanoTime() - startTime;
+
+				startTime = System.nanoTime();
+				double[] predictions = classifyInParallel(classifier, queries, nThreads, pool);
+				long queryTime = System.nanoTime() - startTime;
+
+				String agreement;
+				if (exact == null) {
+					exact = predictions;
+					agreement = "(reference)";
+				} else
+					agreement = String.format("%.4f%% agreement with exact", computeAgreement(exact, predictions) * 100);
+
+				System.out.println(String.format("%-16s build: %8.1f ms, query: %9.1f ms, %12.0f queries/s  %s",
+						method, buildTime / 1e6, queryTime / 1e6, nQueries / (queryTime / 1e9), agreement));
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+
+	/**
+	 * Classify all instances, splitting them between threads.
+	 * <p>
+	 * Weka's search structures are not thread-safe, so each thread uses its own copy of the classifier
+	 * (which includes a copy of the index, rather than rebuilding it).
+	 */
+	static double[] classifyInParallel(final Classifier classifier, final Instances instances, final int nThreads, final ExecutorService pool) throws Exception {
+		double[] predictions = new double[instances.numInstances()];
+		int n = instances.numInstances();
+		int blockSize = (n + nThreads - 1) / nThreads;
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t = 0; t < nThreads; t++) {
+			int start = t * blockSize;
+			int end = Math.min(n, start + blockSize);
+			if (start >= end)
+				break;
+			Classifier copy = AbstractClassifier.makeCopy(classifier);
+			futures.add(pool.submit(() -> {
+				for (int i = start; i < end; i++)
+					predictions[i] = copy.classifyInstance(instances.instance(i));
+				return null;
+			}));
+		}
+		for (Future<?> future : futures)
+			future.get();
+		return predictions;
+	}
+
+
+	static double computeAgreement(final double[] reference, final double[] predictions) {
+		int nSame = 0;
+		for (int i = 0; i < reference.length; i++) {
+			if (reference[i] == predictions[i])
+				nSame++;
+		}
+		return (double)nSame / reference.length;
+	}
+
+
+	static double[][] createCenters(final int nFeatures, final Random random) {
+		double[][] centers = new double[N_CLASSES * 2][nFeatures];
+		for (double[] center : centers) {
+			for (int f = 0; f < nFeatures; f++)
+				center[f] = random.nextDouble() * 4;
+		}
+		return centers;
+	}
+
+
+	/**
+	 * Create instances from a mixture of Gaussians, with two clusters per class so that the
+	 * classes are not trivially separable.
+	 */
+	static Instances createInstances(final String name, final int n, final double[][] centers, final Random random) {
+		int nFeatures = centers[0].length;
+		ArrayList<Attribute> attributes = new ArrayList<>();
+		for (int f = 0; f < nFeatures; f++)
+			attributes.add(new Attribute("Feature " + (f + 1)));
+		List<String> classNames = new ArrayList<>();
+		for (int c = 0; c < N_CLASSES; c++)
+			classNames.add("Class " + (c + 1));
+		attributes.add(new Attribute("Class", classNames));
+
+		Instances instances = new Instances(name, attributes, n);
+		instances.setClassIndex(nFeatures);
+		for (int i = 0; i < n; i++) {
+			int cluster = random.nextInt(centers.length);
+			double[] values = new double[nFeatures + 1];
+			for (int f = 0; f < nFeatures; f++)
+				values[f] = centers[cluster][f] + random.nextGaussian();
+			values[nFeatures] = cluster % N_CLASSES;
+			Instance instance = new DenseInstance(1.0, values);
+			instances.add(instance);
+		}
+		return instances;
+	}
+
+}
@@ -0,0 +1,413 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import qupath.extensions.weka.classifiers.TrainingMemoryEstimator.PeakMonitor;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.roi.RectangleROI;
+
+/**
+ * Command line load test, which trains and applies every available {@link WekaClassifier} end-to-end
+ * using synthetic detections at increasing scales.
+ * <p>
+ * Synthetic 'cells' have measurement lists resembling those of QuPath's cell detection (nucleus, cytoplasm &amp; cell
+ * shape and stain measurements), with four classes of different frequencies arranged in spatially-coherent regions,
+ * and occasional missing values.
+ * For each classifier and each number of objects (10^4, 10^5, ... up to the maximum), the classifier is trained with
+ * {@link WekaClassifier#updateClassifier(Map, List, qupath.lib.classifiers.Normalization)} and then applied with
+ * {@link WekaClassifier#classifyPathObjects(java.util.Collection)} to batches of objects (representing tiles) in parallel.
+ * Training time, classification throughput, per-batch latency percentiles and peak heap usage are reported
+ * as tab-delimited rows, so that scaling curves can be plotted.
+ * <p>
+ * To keep memory bounded, a fixed pool of batches is generated for each thread and reused until the required
+ * number of objects has been classified.  No GUI is required.
+ * <p>
+ * Usage: <code>LoadTestBenchmark [maxObjects] [maxTraining] [nThreads] [batchSize] [maxSeconds] [classifier names...]</code>
+ * <p>
+ * Defaults are 10,000,000 objects, at most 50,000 training objects, one thread per processor, 1,000 objects per batch,
+ * at most 600 s per step (larger sizes are skipped once this would be exceeded) and all registered classifiers.
+ */
+public class LoadTestBenchmark {
+
+	private static final String[] CLASS_NAMES = {"Tumor", "Stroma", "Immune cells", "Necrosis"};
+
+	/**
+	 * Relative frequency of each class.
+	 */
+	private static final double[] CLASS_FREQUENCIES = {0.45, 0.30, 0.20, 0.05};
+
+	/**
+	 * Mean nucleus area, nucleus eccentricity, hematoxylin OD, eosin OD and nucleus/cell area ratio for each class.
+	 */
+	private static final double[][] CLASS_PROFILES = {
+			{55, 0.55, 0.45, 0.25, 0.45},
+			{30, 0.90, 0.30, 0.35, 0.30},
+			{20, 0.35, 0.60, 0.15, 0.70},
+			{25, 0.60, 0.20, 0.40, 0.50}
+	};
+
+	/**
+	 * Size of each square region in which one class dominates, in pixels.
+	 */
+	private static final double REGION_SIZE = 500;
+
+	/**
+	 * Proportion of objects within a region belonging to its dominant class.
+	 */
+	private static final double REGION_PURITY = 0.7;
+
+	/**
+	 * Probability that any measurement is missing.
+	 */
+	private static final double MISSING_PROBABILITY = 0.002;
+
+	/**
+	 * Maximum number of objects held in each thread's pool of batches.
+	 */
+	private static final int MAX_POOL_PER_THREAD = 20_000;
+
+	private static final String[] COMPARTMENTS = {"Nucleus", "Cell", "Cytoplasm"};
+
+	private static final String[] STAINS = {"Hematoxylin OD", "Eosin OD"};
+
+	private static final String[] STAIN_STATISTICS = {"mean", "std dev", "max", "min"};
+
+	private static final String[] SHAPE_MEASUREMENTS = {"Area", "Perimeter", "Circularity", "Max caliper", "Min caliper", "Eccentricity"};
+
+	private static final List<String> MEASUREMENT_NAMES = Collections.unmodifiableList(createMeasurementNames());
+
+	/**
+	 * Run the load test.
+	 * 
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+
+		long maxObjects = args.length > 0 ? Long.parseLong(args[0]) : 10_000_000L;
+		int maxTraining = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+		int nThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		int batchSize = args.length > 3 ? Integer.parseInt(args[3]) : 1_000;
+		double maxSeconds = args.length > 4 ? Double.parseDouble(args[4]) : 600;
+		List<String> names = args.length > 5 ? Arrays.asList(args).subList(5, args.length) : null;
+
+		List<Long> sizes = new ArrayList<>();
+		for (long n = 10_000; n <= maxObjects; n *= 10)
+			sizes.add(n);
+		List<String> measurements = MEASUREMENT_NAMES;
+
+		System.out.println(String.format("Load test: up to %d objects, up to %d training objects, %d measurements, %d thread(s), %d objects per batch, max heap %.0f MB",
+				maxObjects, maxTraining, measurements.size(), nThreads, batchSize, Runtime.getRuntime().maxMemory() / (1024.0 * 1024.0)));
+		System.out.println("Classifier\tObjects\tTraining objects\tTrain (s)\tTrain peak (MB)\tObjects/s\tp50 (ms)\tp90 (ms)\tp99 (ms)\tMax (ms)\tClassify peak (MB)\tAccuracy");
+
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		try {
+			int nClassifiers = WekaClassifierRegistry.createClassifiers().size();
+			for (int c = 0; c < nClassifiers; c++) {
+				String name = WekaClassifierRegistry.createClassifiers().get(c).getName();
+				if (names != null && !names.contains(name))
+					continue;
+				double previousSeconds = 0;
+				for (long n : sizes) {
+					// Skip larger sizes if they are expected to take too long (assuming linear scaling)
+					if (previousSeconds * 10 > maxSeconds) {
+						System.out.println(String.format("%s\t%d\tskipped (expected to exceed %.0f s)", name, n, maxSeconds));
+						continue;
+					}
+					// Use a new classifier for each size, so that no state is carried over
+					WekaClassifier classifier = WekaClassifierRegistry.createClassifiers().get(c);
+					long startTime = System.nanoTime();
+					try {
+						runStep(classifier, n, (int)Math.min(n, maxTraining), measurements, nThreads, batchSize, pool);
+					} catch (Exception | OutOfMemoryError e) {
+						System.out.println(String.format("%s\t%d\tfailed (%s)", name, n, e));
+						break;
+					}
+					previousSeconds = (System.nanoTime() - startTime) / 1e9;
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+
+	/**
+	 * Train a classifier, then classify the specified number of objects and print the results.
+	 */
+	static void runStep(final WekaClassifier classifier, final long nObjects, final int nTraining, final List<String> measurements,
+			final int nThreads, final int batchSize, final ExecutorService pool) throws Exception {
+
+		// Train
+		Random random = new Random(nObjects);
+		Map<PathClass, List<PathObject>> map = new LinkedHashMap<>();
+		for (String className : CLASS_NAMES)
+			map.put(PathClassFactory.getPathClass(className), new ArrayList<>());
+		List<PathObject> trainingObjects = new ArrayList<>();
+		int[] trainingClasses = createDetections(nTraining, random, trainingObjects);
+		for (int i = 0; i < nTraining; i++)
+			map.get(PathClassFactory.getPathClass(CLASS_NAMES[trainingClasses[i]])).add(trainingObjects.get(i));
+		trainingObjects = null;
+
+		System.gc();
+		PeakMonitor monitor = new PeakMonitor();
+		long startTime = System.nanoTime();
+		if (!classifier.updateClassifier(map, measurements, null) || !classifier.isValid())
+			throw new IllegalStateException("Training failed");
+		long trainNanos = System.nanoTime() - startTime;
+		long trainPeak = monitor.getPeakBytes();
+		monitor.close();
+		map = null;
+
+		// Create a pool of batches for each thread
+		long nBatches = (nObjects + batchSize - 1) / batchSize;
+		int batchesPerThread = (int)Math.max(1, Math.min((nBatches + nThreads - 1) / nThreads, MAX_POOL_PER_THREAD / batchSize));
+		List<List<List<PathObject>>> batches = new ArrayList<>();
+		List<List<int[]>> truth = new ArrayList<>();
+		for (int t = 0; t < nThreads; t++) {
+			List<List<PathObject>> threadBatches = new ArrayList<>();
+			List<int[]> threadTruth = new ArrayList<>();
+			for (int b = 0; b < batchesPerThread; b++) {
+				List<PathObject> batch = new ArrayList<>();
+				threadTruth.add(createDetections(batchSize, random, batch));
+				threadBatches.add(batch);
+			}
+			batches.add(threadBatches);
+			truth.add(threadTruth);
+		}
+
+		// Classify, recording the latency of each batch
+		System.gc();
+		monitor = new PeakMonitor();
+		double[] latencies = new double[(int)nBatches];
+		List<Future<?>> futures = new ArrayList<>();
+		startTime = System.nanoTime();
+		for (int t = 0; t < nThreads; t++) {
+			int thread = t;
+			futures.add(pool.submit(() -> {
+				List<List<PathObject>> threadBatches = batches.get(thread);
+				int count = 0;
+				for (long b = thread; b < nBatches; b += nThreads) {
+					List<PathObject> batch = threadBatches.get(count++ % threadBatches.size());
+					// The last batch may be partial
+					if ((b + 1) * batchSize > nObjects)
+						batch = batch.subList(0, (int)(nObjects - b * batchSize));
+					long batchStart = System.nanoTime();
+					classifier.classifyPathObjects(batch);
+					latencies[(int)b] = (System.nanoTime() - batchStart) / 1e6;
+				}
+				return null;
+			}));
+		}
+		for (Future<?> future : futures)
+			future.get();
+		long classifyNanos = System.nanoTime() - startTime;
+		long classifyPeak = monitor.getPeakBytes();
+		monitor.close();
+
+		// Check accuracy using the most recent classification of each object
+		long nCorrect = 0;
+		long nTotal = 0;
+		for (int t = 0; t < nThreads; t++) {
+			for (int b = 0; b < batches.get(t).size(); b++) {
+				List<PathObject> batch = batches.get(t).get(b);
+				int[] classes = truth.get(t).get(b);
+				for (int i = 0; i < batch.size(); i++) {
+					PathClass pathClass = batch.get(i).getPathClass();
+					if (pathClass == null)
+						continue;
+					if (pathClass.getName().equals(CLASS_NAMES[classes[i]]))
+						nCorrect++;
+					nTotal++;
+				}
+			}
+		}
+
+		Arrays.sort(latencies);
+		System.out.println(String.format("%s\t%d\t%d\t%.2f\t%.1f\t%.0f\t%.2f\t%.2f\t%.2f\t%.2f\t%.1f\t%.4f",
+				classifier.getName(), nObjects, nTraining,
+				trainNanos / 1e9, toMB(trainPeak),
+				nObjects / (classifyNanos / 1e9),
+				percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99), latencies[latencies.length-1],
+				toMB(classifyPeak),
+				nTotal == 0 ? Double.NaN : (double)nCorrect / nTotal));
+	}
+
+
+	static double percentile(final double[] sorted, final double p) {
+		int ind = (int)Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, ind))];
+	}
+
+
+	static double toMB(final long bytes) {
+		return bytes < 0 ? Double.NaN : bytes / (1024.0 * 1024.0);
+	}
+
+
+	static List<String> createMeasurementNames() {
+		List<String> names = new ArrayList<>();
+		for (String compartment : new String[]{"Nucleus", "Cell"}) {
+			for (String shape : SHAPE_MEASUREMENTS)
+				names.add(compartment + ": " + shape);
+		}
+		for (String compartment : COMPARTMENTS) {
+			for (String stain : STAINS) {
+				for (String statistic : STAIN_STATISTICS)
+					names.add(compartment + ": " + stain + " " + statistic);
+			}
+		}
+		names.add("Nucleus/Cell area ratio");
+		return names;
+	}
+
+
+	/**
+	 * Create synthetic detections, adding them to a list.
+	 * 
+	 * @param n number of detections to create
+	 * @param random
+	 * @param detections list to which detections should be added
+	 * @return the true class index for each detection
+	 */
+	static int[] createDetections(final int n, final Random random, final List<PathObject> detections) {
+		int[] classes = new int[n];
+		int nMeasurements = MEASUREMENT_NAMES.size();
+		// Arrange objects in a square, with density similar to that of cells in tissue (one per 15x15 pixels)
+		double width = Math.sqrt(n) * 15;
+		for (int i = 0; i < n; i++) {
+			double x = random.nextDouble() * width;
+			double y = random.nextDouble() * width;
+			int c = chooseClass(x, y, random);
+			classes[i] = c;
+			MeasurementList measurementList = MeasurementListFactory.createMeasurementList(nMeasurements, MeasurementList.TYPE.FLOAT);
+			addMeasurements(measurementList, CLASS_PROFILES[c], random);
+			measurementList.closeList();
+			detections.add(new PathDetectionObject(new RectangleROI(x, y, 10, 10), null, measurementList));
+		}
+		return classes;
+	}
+
+
+	/**
+	 * Choose a class, based on the dominant class of the region containing a location.
+	 */
+	private static int chooseClass(final double x, final double y, final Random random) {
+		if (random.nextDouble() < REGION_PURITY) {
+			// Hash the region coordinates to choose its dominant class deterministically
+			long region = (long)(x / REGION_SIZE) * 73856093L ^ (long)(y / REGION_SIZE) * 19349663L;
+			return sampleClass(new Random(region).nextDouble());
+		}
+		return sampleClass(random.nextDouble());
+	}
+
+	private static int sampleClass(final double p) {
+		double sum = 0;
+		for (int c = 0; c < CLASS_FREQUENCIES.length; c++) {
+			sum += CLASS_FREQUENCIES[c];
+			if (p < sum)
+				return c;
+		}
+		return CLASS_FREQUENCIES.length - 1;
+	}
+
+
+	/**
+	 * Add measurements for a single detection, in the same order as {@link #MEASUREMENT_NAMES}.
+	 * <p>
+	 * Shape measurements are derived from a log-normally distributed area and an eccentricity,
+	 * while stain measurements for each compartment are derived from a per-cell mean optical density.
+	 */
+	private static void addMeasurements(final MeasurementList measurementList, final double[] profile, final Random random) {
+		double nucleusArea = profile[0] * Math.exp(random.nextGaussian() * 0.3);
+		double eccentricity = clip(profile[1] + random.nextGaussian() * 0.1, 0, 0.99);
+		double ratio = clip(profile[4] + random.nextGaussian() * 0.08, 0.1, 0.95);
+		double cellArea = nucleusArea / ratio;
+		double hematoxylin = Math.max(0, profile[2] + random.nextGaussian() * 0.12);
+		double eosin = Math.max(0, profile[3] + random.nextGaussian() * 0.1);
+
+		int ind = 0;
+		ind = addShapeMeasurements(measurementList, ind, nucleusArea, eccentricity, random);
+		ind = addShapeMeasurements(measurementList, ind, cellArea, clip(eccentricity + random.nextGaussian() * 0.05, 0, 0.99), random);
+		// Nucleus, cell & cytoplasm stain measurements - nuclei are more strongly stained by hematoxylin
+		double[] hematoxylinWeights = {1.0, 0.7, 0.5};
+		double[] eosinWeights = {0.6, 0.9, 1.0};
+		List<String> names = MEASUREMENT_NAMES;
+		for (int compartment = 0; compartment < COMPARTMENTS.length; compartment++) {
+			for (int stain = 0; stain < STAINS.length; stain++) {
+				double mean = (stain == 0 ? hematoxylin * hematoxylinWeights[compartment] : eosin * eosinWeights[compartment])
+						* Math.exp(random.nextGaussian() * 0.05);
+				double stdDev = mean * (0.15 + random.nextDouble() * 0.1);
+				ind = addMeasurement(measurementList, names, ind, mean, random);
+				ind = addMeasurement(measurementList, names, ind, stdDev, random);
+				ind = addMeasurement(measurementList, names, ind, mean + 2.5 * stdDev, random);
+				ind = addMeasurement(measurementList, names, ind, Math.max(0, mean - 2.5 * stdDev), random);
+			}
+		}
+		addMeasurement(measurementList, names, ind, nucleusArea / cellArea, random);
+	}
+
+	private static int addShapeMeasurements(final MeasurementList measurementList, int ind, final double area, final double eccentricity, final Random random) {
+		List<String> names = MEASUREMENT_NAMES;
+		// Treat the shape as an ellipse with the specified area & eccentricity
+		double axisRatio = Math.sqrt(1 - eccentricity * eccentricity);
+		double major = Math.sqrt(area / (Math.PI * axisRatio));
+		double minor = major * axisRatio;
+		double perimeter = Math.PI * (3 * (major + minor) - Math.sqrt((3 * major + minor) * (major + 3 * minor))) * (1 + Math.abs(random.nextGaussian()) * 0.05);
+		ind = addMeasurement(measurementList, names, ind, area, random);
+		ind = addMeasurement(measurementList, names, ind, perimeter, random);
+		ind = addMeasurement(measurementList, names, ind, Math.min(1, 4 * Math.PI * area / (perimeter * perimeter)), random);
+		ind = addMeasurement(measurementList, names, ind, 2 * major, random);
+		ind = addMeasurement(measurementList, names, ind, 2 * minor, random);
+		ind = addMeasurement(measurementList, names, ind, eccentricity, random);
+		return ind;
+	}
+
+	private static int addMeasurement(final MeasurementList measurementList, final List<String> names, final int ind, final double value, final Random random) {
+		measurementList.addMeasurement(names.get(ind), random.nextDouble() < MISSING_PROBABILITY ? Double.NaN : value);
+		return ind + 1;
+	}
+
+	private static double clip(final double value, final double min, final double max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+}
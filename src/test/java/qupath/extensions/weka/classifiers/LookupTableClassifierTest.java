@@ -0,0 +1,189 @@
+/*-
+ * #%L
+ * This file is part of a QuPath extension.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.extensions.weka.classifiers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import weka.classifiers.Classifier;
+import weka.classifiers.bayes.BayesNet;
+import weka.classifiers.rules.OneR;
+import weka.classifiers.trees.J48;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Tests that {@link LookupTableClassifier} gives the same predictions as the Weka classifiers it was compiled from,
+ * including for instances with missing values.
+ */
+public class LookupTableClassifierTest extends TestCase {
+
+	/**
+	 * Maximum absolute difference in any class probability.
+	 */
+	private static final double TOLERANCE = 1e-9;
+
+	private static final int N_NUMERIC = 5;
+
+	private static final String[] CLASSES = {"Tumor", "Stroma", "Immune cells"};
+
+	private static final String[] NOMINAL_VALUES = {"Low", "Medium", "High"};
+
+
+	public void testOneR() throws Exception {
+		Instances train = createInstances(600, 0.05, 1);
+		OneR oneR = new OneR();
+		oneR.buildClassifier(train);
+		assertEquivalent(oneR, train, createInstances(300, 0.2, 2));
+	}
+
+	public void testOneRNominal() throws Exception {
+		// Make the nominal attribute the most informative, so that OneR uses it for its rule
+		Instances train = createInstances(600, 0.05, 3);
+		for (Instance instance : train) {
+			if (!instance.isMissing(N_NUMERIC))
+				instance.setValue(N_NUMERIC, instance.classValue());
+		}
+		OneR oneR = new OneR();
+		oneR.buildClassifier(train);
+		assertEquivalent(oneR, train, createInstances(300, 0.2, 4));
+	}
+
+	public void testBayesNet() throws Exception {
+		Instances train = createInstances(600, 0.05, 5);
+		BayesNet bayesNet = new BayesNet();
+		bayesNet.buildClassifier(train);
+		assertEquivalent(bayesNet, train, createInstances(300, 0.2, 6));
+	}
+
+	public void testBayesNetWithoutMissingTrainingValues() throws Exception {
+		Instances train = createInstances(600, 0, 7);
+		BayesNet bayesNet = new BayesNet();
+		bayesNet.buildClassifier(train);
+		assertEquivalent(bayesNet, train, createInstances(300, 0.2, 8));
+	}
+
+	public void testCannotTrainDirectly() throws Exception {
+		Instances train = createInstances(100, 0, 9);
+		OneR oneR = new OneR();
+		oneR.buildClassifier(train);
+		Classifier compiled = LookupTableClassifier.compile(oneR);
+		try {
+			compiled.buildClassifier(train);
+			fail("Training a compiled classifier should fail");
+		} catch (Exception e) {
+			// Expected
+		}
+	}
+
+	public void testUnsupportedClassifierUnchanged() throws Exception {
+		Instances train = createInstances(100, 0, 10);
+		J48 j48 = new J48();
+		j48.buildClassifier(train);
+		assertSame(j48, LookupTableClassifier.compile(j48));
+	}
+
+
+	/**
+	 * Compile a classifier, and check that it gives the same predictions as the original for the training data, 
+	 * test data and copies of each with a missing value for every attribute in turn.
+	 */
+	private static void assertEquivalent(final Classifier classifier, final Instances train, final Instances test) throws Exception {
+		Classifier compiled = LookupTableClassifier.compile(classifier);
+		assertTrue("Classifier was not compiled", compiled instanceof LookupTableClassifier);
+		for (Instances instances : Arrays.asList(train, test)) {
+			for (Instance instance : instances) {
+				assertSamePrediction(classifier, compiled, instance);
+				for (int a = 0; a < instances.numAttributes(); a++) {
+					if (a == instances.classIndex())
+						continue;
+					Instance missing = (Instance)instance.copy();
+					missing.setMissing(a);
+					assertSamePrediction(classifier, compiled, missing);
+				}
+			}
+		}
+		// All feature values missing
+		Instance allMissing = (Instance)test.instance(0).copy();
+		for (int a = 0; a < test.numAttributes(); a++) {
+			if (a != test.classIndex())
+				allMissing.setMissing(a);
+		}
+		assertSamePrediction(classifier, compiled, allMissing);
+	}
+
+	private static void assertSamePrediction(final Classifier classifier, final Classifier compiled, final Instance instance) throws Exception {
+		double[] expected = classifier.distributionForInstance(instance);
+		double[] actual = compiled.distributionForInstance(instance);
+		assertEquals(expected.length, actual.length);
+		for (int c = 0; c < expected.length; c++) {
+			if (Double.isNaN(expected[c]) && Double.isNaN(actual[c]))
+				continue;
+			assertEquals("Prediction differs for " + instance + ": expected " + Arrays.toString(expected) + " but found " + Arrays.toString(actual),
+					expected[c], actual[c], TOLERANCE);
+		}
+	}
+
+
+	/**
+	 * Create instances with several numeric attributes (with class-dependent means), 
+	 * one nominal attribute and a nominal class.
+	 * 
+	 * @param n number of instances
+	 * @param missingFraction approximate fraction of feature values to set as missing
+	 * @param seed
+	 * @return
+	 */
+	private static Instances createInstances(final int n, final double missingFraction, final long seed) {
+		ArrayList<Attribute> attributes = new ArrayList<>();
+		for (int a = 0; a < N_NUMERIC; a++)
+			attributes.add(new Attribute("Feature " + (a+1)));
+		attributes.add(new Attribute("Intensity", Arrays.asList(NOMINAL_VALUES)));
+		attributes.add(new Attribute("Class", Arrays.asList(CLASSES)));
+		Instances instances = new Instances("Test", attributes, n);
+		instances.setClassIndex(attributes.size()-1);
+
+		Random random = new Random(seed);
+		for (int i = 0; i < n; i++) {
+			int c = i % CLASSES.length;
+			double[] values = new double[attributes.size()];
+			for (int a = 0; a < N_NUMERIC; a++)
+				values[a] = random.nextGaussian() + c * (a + 1) * 0.5;
+			values[N_NUMERIC] = random.nextInt(NOMINAL_VALUES.length);
+			values[N_NUMERIC+1] = c;
+			Instance instance = new DenseInstance(1.0, values);
+			for (int a = 0; a <= N_NUMERIC; a++) {
+				if (random.nextDouble() < missingFraction)
+					instance.setMissing(a);
+			}
+			instances.add(instance);
+		}
+		return instances;
+	}
+
+}